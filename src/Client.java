@@ -1,3 +1,5 @@
+import client.EndpointCache;
+import client.HedgePolicy;
 import messages.Message;
 import messages.MessageType;
 import services.ServiceReply;
@@ -6,13 +8,20 @@ import services.ServiceTime;
 import services.ServiceType;
 import util.ConfigReader;
 import util.MachineAddress;
+import util.MemberList;
+import util.Options;
+import util.RetryScheduler;
+import util.RttTable;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Henrik Akesson
@@ -25,22 +34,31 @@ import java.util.Scanner;
  *
  * 1. Ask a random linker the address of a specific service [ACK_SERVICE-TYPE]
  * 2a. if OK [ACK_SERVICE | message]
- * 2b. if Error -> goto 1.
+ * 2b. if Error -> goto 1. (the next linker, after a random backoff, see RetryScheduler)
+ *
+ * The linker sends several endpoints of the type, kept for a while (see EndpointCache): when the service does not
+ * reply, the client reports it and goes on with the next cached endpoint, without asking a linker again.
  *
  * Launching clients:
- *  `java Client <type> <port>`
+ *  `java Client <type> <port> [endpoints=<number of endpoints asked to the linker>] [hedge=<budget in %>]
+ *              [timeout.min=<ms>] [timeout.max=<ms>]
+ *              [retry.attempts=<number of attempts, default 20, 0 for no limit>]`
  *  type: Type of service
  *      - "reply"
  *      - "time"
  *      - "sum"
  *
- *  client ---(request_service)--> linker
- *         <--(service_address)---
+ *  client ---(request_service [type | digest of the linkers | endpoints wanted])--> linker
+ *         <--(service_endpoints [ttl | endpoints | linkers (optional)])---
  *
  *  client -------(request)------> service
  *         <------(response)------
  *
- *  If no response is received after the timeout, the client notifies a linker then restarts it's process
+ *  If no response is received after the timeout, the client notifies a linker then restarts it's process.
+ *  The timeout of each linker and service is derived from the round-trip times measured (see RttTable).
+ *
+ *  With hedging, a request not answered within the p95 latency of the service type is sent again to another cached
+ *  endpoint (within a budget of extra requests, see HedgePolicy), and the first response is used.
  */
 public class Client {
 
@@ -55,16 +73,52 @@ public class Client {
     private final ServiceType serviceType;
 
     /**
-     * The list of all existing linkers (cannot change)
+     * The list of all existing linkers, updated by the linkers when it changes
      */
-    private final List<MachineAddress> linkers;
+    private volatile List<MachineAddress> linkers;
 
     /**
      * The connected service
      */
     private MachineAddress service;
 
-    private int timeout = 500;
+    /**
+     * Round-trip times of the linkers and services, from which the time to wait for their answers is derived
+     */
+    private RttTable rtt = new RttTable(500, 20, 5000);
+
+    /**
+     * Whether a lookup timed out since the last answer of a linker: the round-trip time of the answer is then not
+     * measured, it may answer an earlier lookup (Karn)
+     */
+    private boolean retried;
+
+    /**
+     * Retries of the lookups and reports, with backoff and jitter
+     */
+    private RetryScheduler retry = new RetryScheduler(RetryScheduler.DEFAULT_ATTEMPTS);
+
+    /**
+     * Endpoints given by the linkers, to fail over without asking a linker again
+     */
+    private final EndpointCache cache = new EndpointCache();
+
+    /**
+     * Number of endpoints asked to the linker for each lookup (1 for a single endpoint, not cached)
+     */
+    private int endpoints = 8;
+
+    /**
+     * Hedging of the requests, null when disabled
+     */
+    private HedgePolicy hedging;
+
+    private int lastRequestId;
+
+    /**
+     * Input of the user, kept across the services used: a new scanner would lose the lines buffered by the last one
+     */
+    private final Scanner keyboard = new Scanner(System.in);
 
     public Client(final List<MachineAddress> linkers, final String type, final int port) throws SocketException {
         this.linkers = linkers;
@@ -82,55 +136,151 @@ public class Client {
         this.socket = new DatagramSocket(port);
     }
 
+    /**
+     * Bounds of the time to wait for an answer (ms)
+     *
+     * @param floor
+     * @param ceiling
+     */
+    public void setTimeouts(long floor, long ceiling) {
+        this.rtt = new RttTable(500, floor, ceiling);
+    }
+
+    /**
+     * Attempts of a lookup or a report before giving up
+     *
+     * @param attempts 0 for no limit
+     */
+    public void setRetryAttempts(int attempts) {
+        this.retry = new RetryScheduler(attempts);
+    }
+
+    public void setEndpoints(int endpoints) {
+        this.endpoints = Math.max(1, Math.min(0xFF, endpoints));
+    }
+
+    /**
+     * Hedge the requests that are slower than the p95 latency of the service type
+     *
+     * @param budget extra requests allowed, relative to the requests (0.05 for 5 %), 0 to disable
+     */
+    public void setHedgeBudget(double budget) {
+        this.hedging = budget > 0 ? new HedgePolicy(budget, 1) : null;
+    }
+
     void handleNotRespondingService() throws IOException, ClassNotFoundException {
         System.out.println("[i] Service down");
 
-        boolean isSent = false;
+        cache.remove(serviceType, service);
+
         byte[] buff = new Message(
                 MessageType.SERVICE_DOWN,
                 this.service.toByteArray()
         ).toByteArray();
 
-        // Send to linker
-        // Use a random linker in the list
-        while (!isSent) {
+        if (cache.size(serviceType) > 0) {
+            // Other endpoints are cached: report the service without waiting for the linker
             MachineAddress linker = linkers.get((int) (Math.random() * linkers.size()));
-            DatagramPacket packet = new DatagramPacket(buff, buff.length, linker.getAddress(), linker.getPort());
+            socket.send(new DatagramPacket(buff, buff.length, linker.getAddress(), linker.getPort()));
+            return;
+        }
 
-            packet.setData(buff);
-            socket.send(packet);
+        // Send to the linkers in turn, until one of them acknowledges the report
+        try {
+            if (retry.run(() -> linkers, linker -> reportDown(linker, buff)) == null) {
+                System.out.println("[i] No linker acknowledged the report");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-            socket.setSoTimeout(timeout);
+    /**
+     * Send a SERVICE_DOWN report to a linker and wait for its ACK
+     *
+     * @param linker
+     * @param report
+     * @return true once acknowledged, null if the linker did not answer in time
+     * @throws IOException
+     */
+    private Boolean reportDown(MachineAddress linker, byte[] report) throws IOException {
+        long sentAt = System.currentTimeMillis();
+        socket.send(new DatagramPacket(report, report.length, linker.getAddress(), linker.getPort()));
 
-            try {
-                socket.receive(packet);
+        byte[] buff = new byte[512];
+        DatagramPacket packet = new DatagramPacket(buff, buff.length);
+        socket.setSoTimeout((int) rtt.timeout(linker));
 
-                Message message = Message.fromByteArray(buff);
-                if (message.getMessageType() == MessageType.ACK) {
-                    isSent = true;
-                }
-            } catch (SocketTimeoutException e) {
-                System.out.println("[i] Timeout, will try to contact an other linker");
+        try {
+            socket.receive(packet);
+
+            Message message = Message.fromByteArray(buff);
+            if (message.getMessageType() == MessageType.ACK) {
+                rtt.sample(linker, System.currentTimeMillis() - sentAt);
+                return true;
+            }
+        } catch (SocketTimeoutException e) {
+            System.out.println("[i] Timeout, will try to contact an other linker");
+            rtt.backoff(linker);
+        } catch (ClassNotFoundException e) {
+            System.out.println("[i] The packet is corrupt");
+        }
+        return null;
+    }
+
+    /**
+     * Use the next cached endpoint of the service type
+     *
+     * @return false if there is no cached endpoint left, a linker has to be asked
+     */
+    boolean useCachedService() {
+        MachineAddress cached = cache.next(serviceType, System.currentTimeMillis());
+        if (cached == null) {
+            return false;
+        }
+
+        service = cached;
+        System.out.println("[i] Use cached service " + service);
+        return true;
+    }
+
+    /**
+     * Subscribe client to a linker, the linkers are asked in turn until one of them gives a service
+     * (see RetryScheduler)
+     *
+     * @return false if no linker gave a service after all the attempts
+     * @throws IOException
+     */
+    boolean subscribeToLinker() throws IOException {
+        try {
+            if (retry.run(() -> linkers, this::lookup) != null) {
+                return true;
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
         }
+
+        System.out.println("[i] No linker gave a service, give up");
+        return false;
     }
 
     /**
-     * Subscribe client to a random linker
+     * Ask a linker for the service
      *
-     * @return
+     * @param linker
+     * @return the service, or null if the linker did not answer in time or does not know any service of the type
      * @throws IOException
-     * @throws ClassNotFoundException
      */
-    boolean subscribeToLinker() throws IOException, ClassNotFoundException {
+    private MachineAddress lookup(MachineAddress linker) throws IOException {
         byte[] buff = new byte[1024];
 
-        // Use a random linker in the list
-        MachineAddress linker = linkers.get((int) (Math.random() * linkers.size()));
-
-        byte[] payload = new byte[]{
-                this.serviceType.getType()
-        };
+        // [service type | digest of the linkers known | endpoints wanted], the linker sends its linkers back if they differ
+        byte[] payload = ByteBuffer.allocate(2 + Integer.BYTES)
+                .put(this.serviceType.getType())
+                .putInt(MemberList.digest(linkers))
+                .put((byte) endpoints)
+                .array();
 
         // Request a specific service
         DatagramPacket packet = new DatagramPacket(buff, buff.length, linker.getAddress(), linker.getPort());
@@ -142,34 +292,68 @@ public class Client {
 
         System.out.println("[i] Request service to linker " + linker);
 
+        long sentAt = System.currentTimeMillis();
         socket.send(packet);
 
         // Reset packet
         packet = new DatagramPacket(buff, buff.length);
 
-        socket.setSoTimeout(timeout);
+        socket.setSoTimeout((int) rtt.timeout(linker));
 
         // Get response
         while (true) {
             try {
                 socket.receive(packet);
             } catch (SocketTimeoutException e) {
-                System.out.println("[i] Timeout, ask an other linker");
+                System.out.println("[i] Timeout (" + rtt.timeout(linker) + " ms), ask an other linker");
+                rtt.backoff(linker);
+                retried = true;
 
-                return subscribeToLinker();
+                return null;
             }
 
             try {
                 Message message = Message.fromByteArray(buff);
 
-                if (message.getMessageType() == MessageType.RESPONSE) {
+                if (message.getMessageType() == MessageType.RESPONSE
+                        || message.getMessageType() == MessageType.SERVICE_ENDPOINTS) {
                     System.out.println("[i] Get service address");
-
-                    service = MachineAddress.fromByteArray(message.getPayload());
+                    if (!retried) {
+                        rtt.sample(linker, System.currentTimeMillis() - sentAt);
+                    }
+                    retried = false;
+
+                    ByteBuffer response = ByteBuffer.wrap(message.getPayload());
+                    if (message.getMessageType() == MessageType.SERVICE_ENDPOINTS) {
+                        // [ttl | count | service address... | linkers (optional)]
+                        int ttl = response.getInt();
+                        int count = response.get() & 0xFF;
+                        List<MachineAddress> received = new ArrayList<>(count);
+                        for (int i = 0; i < count; i++) {
+                            received.add(MachineAddress.readFrom(response));
+                        }
+                        cache.put(serviceType, received, ttl, System.currentTimeMillis());
+                        service = cache.next(serviceType, System.currentTimeMillis());
+                        System.out.println("[i] " + count + " endpoints cached for " + ttl + " ms");
+                    } else {
+                        // [service address | linkers (optional)]
+                        service = MachineAddress.readFrom(response);
+                    }
+                    if (service == null) {
+                        System.out.println("[i] No service of this type yet");
+                        return null;
+                    }
+                    if (response.remaining() >= Short.BYTES) {
+                        List<MachineAddress> members = MemberList.read(response);
+                        if (!members.isEmpty()) {
+                            linkers = members;
+                            System.out.println("[i] Linkers changed: " + members);
+                        }
+                    }
 
                     System.out.println(service);
 
-                    return true;
+                    return service;
                 }
             } catch (IOException | ClassNotFoundException e) {
                 System.out.println("[i] The packet is corrupt");
@@ -178,20 +362,73 @@ public class Client {
     }
 
 
+    /**
+     * Wait for the response of a request, the other messages are skipped
+     * (late answers of the linkers, responses of previous requests that were hedged)
+     *
+     * @param packet
+     * @param buff
+     * @param requestId
+     * @param deadline (ms)
+     * @return the response, or null if it did not come before the deadline
+     * @throws IOException
+     */
+    private Message receiveResponse(DatagramPacket packet, byte[] buff, int requestId, long deadline) throws IOException {
+        while (true) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return null;
+            }
+            socket.setSoTimeout((int) left);
+
+            try {
+                packet.setData(buff);
+                socket.receive(packet);
+                Message message = Message.fromByteArray(buff);
+                if (message.getMessageType() == MessageType.RESPONSE && message.getRequestId() == requestId) {
+                    return message;
+                }
+            } catch (SocketTimeoutException e) {
+                return null;
+            } catch (ClassNotFoundException e) {
+                System.out.println("[i] The packet is corrupt");
+            }
+        }
+    }
+
+    /**
+     * Another cached endpoint of the service type, to hedge a request
+     *
+     * @return null if there is none
+     */
+    private MachineAddress secondEndpoint() {
+        for (int i = 0; i < cache.size(serviceType); i++) {
+            MachineAddress endpoint = cache.next(serviceType, System.currentTimeMillis());
+            if (endpoint == null) {
+                return null;
+            }
+            if (!endpoint.equals(service)) {
+                return endpoint;
+            }
+        }
+        return null;
+    }
+
     /**
      * Listens to key to interact with the specific service
      *
      * (source of the key listener: https://stackoverflow.com/questions/27381021/detect-a-key-press-in-console)
      *
+     * @return true if the user quit (or the input ended), false if the service did not reply and another one
+     *         should be used
      * @throws IOException
      * @throws ClassNotFoundException
      */
-    public void keyListener() throws IOException, ClassNotFoundException {
-        Scanner keyboard = new Scanner(System.in);
+    public boolean keyListener() throws IOException, ClassNotFoundException {
         boolean exit = false;
         while (!exit) {
             System.out.println("Enter command or payload (quit to exit):");
-            String input = keyboard.nextLine();
+            String input = keyboard.hasNextLine() ? keyboard.nextLine() : "quit";
             if (input != null) {
                 System.out.println("Your input is : " + input);
                 if ("quit".equals(input) || "q".equals(input)) {
@@ -225,27 +462,59 @@ public class Client {
                         buffSend = input.getBytes();
                     }
 
-                    packet.setData(new Message(
-                            MessageType.REQUEST,
-                            buffSend
-                    ).toByteArray());
+                    int requestId = ++lastRequestId;
+                    byte[] request = new Message(MessageType.REQUEST, buffSend, requestId).toByteArray();
+                    packet.setData(request);
 
+                    long sentAt = System.nanoTime();
                     socket.send(packet);
+                    if (hedging != null) {
+                        hedging.requested();
+                    }
 
                     //
                     // Secondly, wait for an answer and read it
                     //
                     packet = new DatagramPacket(buff, buff.length);
-                    socket.setSoTimeout(timeout);
-                    try {
-                        socket.receive(packet);
-                    } catch (SocketTimeoutException e) {
+                    long timeout = rtt.timeout(service);
+                    long deadline = System.currentTimeMillis() + timeout;
+                    Message message = null;
+
+                    long delay = hedging == null ? -1 : hedging.delay(serviceType);
+                    if (delay >= 0 && delay < timeout) {
+                        message = receiveResponse(packet, buff, requestId, System.currentTimeMillis() + delay);
+
+                        MachineAddress second = message == null ? secondEndpoint() : null;
+                        if (second != null && hedging.tryHedge()) {
+                            // Slower than usual: the same request to another endpoint, the first answer wins
+                            System.out.println("[i] No response within " + delay + " ms, hedge to " + second);
+                            socket.send(new DatagramPacket(request, request.length, second.getAddress(), second.getPort()));
+                        }
+                    }
+
+                    if (message == null) {
+                        message = receiveResponse(packet, buff, requestId, deadline);
+                    }
+                    if (message == null) {
+                        System.out.println("[i] No response within " + timeout + " ms");
+                        rtt.backoff(service);
                         handleNotRespondingService();
-                        return;
+                        return false;
+                    }
+
+                    MachineAddress from = new MachineAddress((InetSocketAddress) packet.getSocketAddress());
+                    if (!from.equals(service)) {
+                        System.out.println("[i] Answered by " + from);
+                        service = from;
+                    } else {
+                        // Each request has its own id, so the response is the one of this request
+                        rtt.sample(service, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sentAt));
+                        if (hedging != null) {
+                            hedging.record(serviceType, System.nanoTime() - sentAt);
+                        }
                     }
 
                     socket.setSoTimeout(0);
-                    Message message = Message.fromByteArray(buff);
 
                     // Dispatch responses
                     if (message.getMessageType() == MessageType.RESPONSE) {
@@ -272,27 +541,34 @@ public class Client {
         }
 
         keyboard.close();
+        return true;
     }
 
     public static void main(String... args) {
         System.out.println("- Client -");
 
         if (args.length < 2) {
-            System.out.println("Usage: java client <type> <port>");
+            System.out.println("Usage: java client <type> <port> [endpoints=<n>] [hedge=<budget %>]"
+                    + " [timeout.min=<ms>] [timeout.max=<ms>] [retry.attempts=<n>]");
             System.out.println("<type> can be 'sum', 'reply' or 'time'");
             return;
         }
 
         final String type = args[0];
         final int port = Integer.parseInt(args[1]);
+        final Options options = Options.parse(args, 2);
 
         try {
             List<MachineAddress> linkers = ConfigReader.read(new File("linkers.txt")); // TODO file name: shared const
 
             Client client = new Client(linkers, type, port);
-            while (true) {
-                if (client.subscribeToLinker()) {
-                    client.keyListener();
+            client.setEndpoints(options.getInt("endpoints", 8));
+            client.setHedgeBudget(options.getDouble("hedge", 0) / 100.0);
+            client.setTimeouts(options.getLong("timeout.min", 20), options.getLong("timeout.max", 5000));
+            client.setRetryAttempts(options.getInt("retry.attempts", RetryScheduler.DEFAULT_ATTEMPTS));
+            while (client.useCachedService() || client.subscribeToLinker()) {
+                if (client.keyListener()) {
+                    break;
                 }
             }
         } catch (IOException e) {
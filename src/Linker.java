@@ -1,12 +1,44 @@
+import messages.LoadReport;
 import messages.Message;
+import messages.MessageCodec;
 import messages.MessageType;
+import linker.ChangeLog;
+import linker.Endpoint;
+import linker.Gossip;
+import linker.HashRing;
+import linker.HeartbeatScheduler;
+import linker.HybridClock;
+import linker.LeaseTable;
+import linker.LoadBalancer;
+import linker.MerkleDigest;
+import linker.ProbeTable;
+import linker.ReliableChannel;
+import linker.RegistryStore;
+import linker.ServiceRegistry;
+import linker.TableSync;
+import linker.Tombstones;
 import services.ServiceType;
+import util.BufferPool;
 import util.ConfigReader;
+import util.EventLoop;
 import util.MachineAddress;
+import util.MemberList;
+import util.Options;
+import util.PhiAccrualDetector;
+import util.RetryScheduler;
+import util.RttTable;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
 
 /**
  * @author Henrik Akesson
@@ -18,7 +50,7 @@ import java.util.*;
  * <p>
  * When a linker is halted or stopped by error, the linker automatically tries to restart
  * <p>
- * Linkers cannot be added after the initialization
+ * Linkers can join (through a seed) and leave after the initialization, see MEMBERSHIP
  * <p>
  * Clients can send
  * REQUEST_SERVICE
@@ -28,478 +60,2448 @@ import java.util.*;
  * - Checks if the service is dead and if so removes the service from the list
  * - If true: Send his updated table to the other linkers
  *
+ * The linker never blocks: it runs on a non-blocking EventLoop and timeouts are timers of the loop.
+ * With several workers, each worker runs its own loop on its own socket, all bound to the same port
+ * with SO_REUSEPORT (the kernel spreads the senders over the sockets). The state is shared by the workers.
+ *
+ * The service given to a client is selected by the load balancer of its type (see LoadBalancer).
+ *
+ * LEASES
+ * linker <--(register [type | weight | lease])-- service
+ *        ---(ack [lease granted])------------>
+ *        <--(heartbeat)-----------------------  renews the lease, renewals are gossiped to the other linkers
+ *        ---(ack)---------------------------->  without it, the service registers with another linker
+ * A registration whose lease is not renewed is dropped by every linker, without any ping (see LeaseTable). Each
+ * linker drops it by itself, no removal is gossiped: a renewal that did not reach a linker yet is not overridden.
+ *
+ * PROACTIVE PROBES
+ * linker --(ping)--> service    every probe.interval ms, spread over the interval (see HeartbeatScheduler)
+ *        <--(pong)--            after probe.misses missed probes, the service is removed (remove_service)
+ *
+ * FAILURE DETECTION
+ * Each sign of life of a service (registration, pong, heartbeat) feeds a phi accrual detector.
+ * A service that does not answer a ping is only removed once its suspicion level (phi) reaches phi.threshold,
+ * otherwise it is pinged again: the timeout adapts to the intervals observed for this service.
+ * Linkers ping each other every peer.interval ms, a linker that is suspected is not asked for its table.
+ *
+ * GOSSIP
+ * The changes of the registry (registrations, removals) are piggybacked on the pings and pongs exchanged with
+ * gossip.fanout random linkers per round (see Gossip). A linker that learns a change gossips it in turn,
+ * so each change reaches every linker in O(log n) rounds without being sent by one linker to all the others.
+ * TABLE SYNCHRONIZATION
+ * linker --(request_linkers_table [epoch | last version seen])--> linker
+ *        <-----(table_chunk) x n-----------------------------------  changes since that version (see TableSync),
+ *                                                                     or the whole table if they are not known anymore
+ * The table is asked at startup, and again to a linker that comes back after being suspected to be down. It is
+ * asked again when its transfer stalls (a request or a chunk lost). Each change carries the version of the service,
+ * the newest one wins; the services missing from a whole table, that its sender should know, are removed.
+ *
+ * PERSISTENCE
+ * With store=<directory>, the changes of the table are appended to a log, compacted into a snapshot
+ * (see RegistryStore). A restarted linker replays them before asking the other linkers for their table.
+ *
+ * During a wave of registrations, the changes are batched: a round is started gossip.window ms after the first
+ * change, or as soon as the batch fills a datagram, instead of one message per change.
+ *
  * Launching linkers:
- *   `java Linker <linker id>`
+ *   `java Linker <linker id> [workers=<number of workers>] [balancer=<strategy>] [balancer.<service type>=<strategy>]
+ *                [probe.interval=<ms>] [probe.misses=<number>] [phi.threshold=<phi>] [peer.interval=<ms>]
+ *                [gossip.fanout=<number>] [gossip.retransmit=<number>] [gossip.window=<ms>]
+ *                [store=<directory>] [store.fsync=always|periodic|never] [store.interval=<ms>]
+ *                [lease.min=<ms>] [lease.max=<ms>] [member.timeout=<ms>]
+ *                [partition.replicas=<number>] [partition.vnodes=<number>] [entropy.interval=<ms>]
+ *                [reliable.window=<number>] [reliable.transmissions=<number>] [reliable.rto.min=<ms>]
+ *                [reliable.rto.max=<ms>] [reliable.tick=<ms>] [lookup.endpoints=<number>] [lookup.ttl=<ms>]
+ *                [timeout.min=<ms>] [timeout.max=<ms>]`
  * The linker id is the line number in linker.txt, associating a specific id to a port
+ *   `java Linker port=<port> seed=<host:port>[,<host:port>...] [options]` to join running linkers instead
+ *
+ * MEMBERSHIP
+ * new linker --(linker_join)--> seed
+ *            <--(linker_members [address of the new linker | linkers])--
+ * The seed gossips the arrival (see Gossip), a stopped linker sends LINKER_LEAVE to the others, and a linker
+ * silent for member.timeout ms is removed and its departure gossiped. A linker told it left refutes it, and a
+ * removed linker that sends anything again is admitted again (linker_members) as if it joined.
+ * Services get the linkers in the ACK, clients with the RESPONSE when the digest of their linkers is outdated.
+ *
+ * PARTITIONING (partition.replicas > 0)
+ * Each service is kept by the partition.replicas linkers that own it on a consistent-hash ring (see HashRing).
+ * linker --(route [hops | client or service | message])--> owner --(response or ack)--> client or service
+ * Registrations, heartbeats and service down reports are forwarded to an owner, lookups walk the ring until
+ * a linker owning a service of the type is found. Changes are sent to the other owners instead of being gossiped.
+ *
+ * ANTI-ENTROPY
+ * Every entropy.interval ms, the roots of a hash tree of the table (see MerkleDigest) are sent to a random linker,
+ * and only the buckets that differ are exchanged, with the recent removals (see Tombstones), to repair the changes
+ * lost with a datagram: the newest version of each service wins.
+ *
+ * RELIABLE DELIVERY (partition.replicas > 0)
+ * linker --(reliable [session | sequence | oldest not given up | register_service_from_linker or remove_service])--> linker
+ *        <--(reliable_ack [session | cumulative | selective bitmap])--
+ * Retransmitted after a timeout measured per linker, delivered in order (see ReliableChannel). Only the changes sent
+ * to the other owners of a service go through it: the changes gossiped by default are not retransmitted nor ordered,
+ * the versions and the anti-entropy repair them.
  *
  * SERVICE REGISTRATION
  * linker <--(register)-- service
  *        -----(ack)---->
  *
  * CLIENT REQUEST
- * linker <--(request)--- client
- *        ---(response)->
+ * linker <--(request [type | digest of the linkers | endpoints wanted])--- client
+ *        ---(response [address]) or (service_endpoints [ttl | addresses])->
  *
  * SERVICE TIMEOUT
  * linker <--(service_down)--- client
- *        -------(ping)------> service
- *        --(remove_service)-> linker 1
- *                  .             .
- *                  .             .
- *                  .             .
- *        --(remove_service)-> linker n
+ *        -------(ping)------> service (a single probe per service, whatever the number of reports)
+ *        ---(ping + delta)--> a few random linkers, which gossip it in turn
+ * The probe waits for the timeout of the service, derived from the round-trip times of its PONGs (see RttTable):
+ * the send time of each PING is kept with its sequence id (see ProbeTable).
  */
 public class Linker {
 
     /**
-     * UDP socket that will be used to send and receive messages
+     * Print every message received (-Dverbose=true), off by default to keep the hot path allocation free
+     */
+    private static final boolean VERBOSE = Boolean.getBoolean("verbose");
+
+    /**
+     * Time given to a linker to send its table, or to a service to answer a ping, until its round-trip time
+     * is measured (ms)
+     */
+    private static final int TIMEOUT = 1000;
+
+    /**
+     * Requests of the table of a linker while its transfer stalls, before it is given up (the anti-entropy repairs the
+     * table anyway)
+     */
+    private static final int TABLE_ATTEMPTS = 5;
+
+    /**
+     * Buffers used to build the frames to send, direct as they are written to the channel
+     */
+    private static final BufferPool SEND = new BufferPool(BufferPool.BUFFER_SIZE, true);
+
+    /**
+     * Non-blocking loops (one per worker) reading the UDP channels that will be used to send and receive messages
+     */
+    private final EventLoop[] loops;
+
+    /**
+     * List of all linkers (except itself), changed by the linkers that join and leave
+     */
+    private final CopyOnWriteArrayList<MachineAddress> linkers;
+
+    /**
+     * Linkers of linkers.txt and linkers that were members once: admitted again as soon as they send anything,
+     * a linker removed while it was down does not join again when it restarts
+     */
+    private final Set<MachineAddress> knownLinkers = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Address of this linker as known by the other linkers, null until learned when joining through a seed
+     */
+    private volatile MachineAddress self;
+
+    /**
+     * Digest of the members (MemberList.digest), compared to the one sent by the clients with their lookups
+     */
+    private volatile int membersDigest;
+
+    /**
+     * False while a linker started with seeds has not been answered by one of them
+     */
+    private volatile boolean joined = true;
+
+    /**
+     * Time without any message after which a linker is considered gone and removed from the members (ms)
+     */
+    private long memberTimeout = 30000;
+
+    /**
+     * Number of linkers owning each service in partitioned mode, 0 when every linker has the whole table
+     */
+    private int replicas = 0;
+
+    /**
+     * Number of points of each linker on the ring
+     */
+    private int virtualNodes = 64;
+
+    /**
+     * Ring of the linkers in partitioned mode, null until the address of this linker is known
+     */
+    private volatile HashRing ring;
+
+    /**
+     * Interval between two anti-entropy rounds with a random linker (ms)
+     */
+    private long entropyInterval = 5000;
+
+    /**
+     * Maximum number of endpoints sent for a lookup, and time the clients can keep them (ms)
+     */
+    private int maxLookupEndpoints = 8;
+    private int lookupTtl = 5000;
+
+    /**
+     * Reliable and ordered delivery of the registrations and removals sent to other linkers
+     */
+    private ReliableChannel reliable = newReliableChannel(64, 10, 20, 2000);
+
+    /**
+     * Round-trip times of the linkers and services, measured with the PINGs, from which the timeouts are derived
+     */
+    private RttTable rtt = new RttTable(TIMEOUT, 20, 5000);
+
+    /**
+     * Backoff between two attempts to join through the seeds
+     */
+    private final RetryScheduler joinRetry = new RetryScheduler(0);
+
+    /**
+     * Hash tree of the whole table, kept until the table changes
+     */
+    private volatile MerkleDigest digest;
+    private volatile long digestVersion = -1;
+
+    /**
+     * Machines for each type of service, shared by the workers
+     */
+    private final ServiceRegistry services = new ServiceRegistry();
+
+    /**
+     * True while the services table is requested to the other linkers: the linker is warming,
+     * it already serves the lookups with the services it knows but may miss some of them
+     */
+    private final AtomicBoolean waitingTable = new AtomicBoolean();
+
+    /**
+     * Startup time, to measure the time to the first lookup served
+     */
+    private final long startTime = EventLoop.now();
+
+    private final AtomicBoolean firstLookupServed = new AtomicBoolean();
+
+    /**
+     * Chunks of the tables being received from other linkers
+     */
+    private final TableSync tableSync = new TableSync();
+
+    /**
+     * Last version of the table of each linker applied to ours: {epoch, version}
+     */
+    private final Map<MachineAddress, long[]> syncedVersions = new ConcurrentHashMap<>();
+
+    /**
+     * Expiry of the leases, run by the first worker
+     */
+    private LeaseTable leases;
+
+    /**
+     * Bounds of the leases granted to the services (ms)
+     */
+    private int minLease = 1000;
+    private int maxLease = 60000;
+
+    /**
+     * Persistence of the table, written by the first worker (null if disabled)
+     */
+    private RegistryStore store;
+
+    /**
+     * Pings in flight to the services suspected to be down
+     */
+    private final ProbeTable probes = new ProbeTable();
+
+    /**
+     * Proactive probes of the services, run by the first worker (null if disabled)
+     */
+    private HeartbeatScheduler heartbeats;
+
+    /**
+     * Suspicion level from which a service that does not answer is removed
+     */
+    private double phiThreshold = 8;
+
+    /**
+     * Failure detectors of the other linkers
+     */
+    private final Map<MachineAddress, PhiAccrualDetector> peers = new ConcurrentHashMap<>();
+
+    /**
+     * Interval between two rounds of pings of the other linkers (ms)
+     */
+    private long peerInterval = 200;
+
+    /**
+     * Clock of the linker, from which the versions of the changes it makes are taken
+     */
+    private final HybridClock clock = new HybridClock();
+
+    /**
+     * Changes of the registry to be gossiped to the other linkers
+     */
+    private Gossip gossip = new Gossip(3, clock);
+
+    /**
+     * Services removed recently, exchanged by the anti-entropy so that a lost removal is repaired
+     */
+    private final Tombstones tombstones = new Tombstones(clock, Gossip.TOMBSTONE_TTL);
+
+    /**
+     * Number of linkers pinged per round
+     */
+    private int gossipFanout = 3;
+
+    /**
+     * Maximum time a change waits for other changes before being gossiped (ms)
+     */
+    private long gossipWindow = 20;
+
+    /**
+     * True while a round is scheduled to send the current batch of changes
+     */
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    public Linker(final int port, List<MachineAddress> otherLinkers) throws IOException {
+        this(port, otherLinkers, 1);
+    }
+
+    public Linker(final int port, List<MachineAddress> otherLinkers, int workers) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        SocketOption<Boolean> reusePort = reusePortOption(channel);
+
+        if (workers > 1 && reusePort == null) {
+            System.out.println("[i] SO_REUSEPORT is not supported, only one worker is used");
+            workers = 1;
+        }
+
+        this.loops = new EventLoop[workers];
+        for (int i = 0; i < workers; i++) {
+            if (i > 0) {
+                channel = DatagramChannel.open();
+            }
+            if (workers > 1) {
+                channel.setOption(reusePort, true);
+            }
+            channel.bind(new InetSocketAddress(port));
+
+            loops[i] = new EventLoop(channel, this::dispatch);
+        }
+
+        this.linkers = new CopyOnWriteArrayList<>(otherLinkers);
+        this.membersDigest = MemberList.digest(members());
+        knownLinkers.addAll(otherLinkers);
+        for (MachineAddress linker : otherLinkers) {
+            peers.put(linker, new PhiAccrualDetector(peerInterval));
+        }
+    }
+
+    /**
+     * Address of this linker, to be given when it is launched with an id of linkers.txt
+     *
+     * @param self
+     */
+    public void setSelf(MachineAddress self) {
+        this.self = self;
+        this.membersDigest = MemberList.digest(members());
+    }
+
+    /**
+     * Configure the answers to the lookups: at most "lookup.endpoints" endpoints are sent to the clients that ask
+     * for several, which can keep them "lookup.ttl" ms
+     *
+     * @param options
+     */
+    private void configureLookups(Options options) {
+        maxLookupEndpoints = Math.max(1, Math.min(0xFF, options.getInt("lookup.endpoints", maxLookupEndpoints)));
+        lookupTtl = Math.max(0, options.getInt("lookup.ttl", lookupTtl));
+    }
+
+    /**
+     * Select the load balancer of each type of service:
+     * "balancer" for all types, "balancer.<service type>" for a specific type
+     *
+     * @param options
+     */
+    private void configureBalancers(Options options) {
+        String defaultBalancer = options.getString("balancer", "random");
+        Map<String, String> balancers = options.getAll("balancer.");
+
+        for (ServiceType type : ServiceType.values()) {
+            String name = balancers.getOrDefault(type.name(), defaultBalancer);
+            services.setBalancer(type, LoadBalancer.forName(name));
+            System.out.println("[i] Load balancer of " + type + ": " + name);
+        }
+    }
+
+    /**
+     * Configure the failure detection and the gossip between linkers:
+     * "phi.threshold" suspicion level from which a service is removed,
+     * "peer.interval" between two rounds of pings of the other linkers (ms, 0 to disable),
+     * "gossip.fanout" linkers pinged per round, "gossip.retransmit" retransmissions of a change per log2(n + 1),
+     * "gossip.window" maximum time a change waits for other changes before being gossiped (ms)
+     *
+     * @param options
+     */
+    private void configureFailureDetection(Options options) {
+        phiThreshold = options.getDouble("phi.threshold", phiThreshold);
+        peerInterval = options.getLong("peer.interval", peerInterval);
+        gossipFanout = Math.max(1, options.getInt("gossip.fanout", gossipFanout));
+        gossip = new Gossip(options.getInt("gossip.retransmit", 3), clock);
+        gossipWindow = options.getLong("gossip.window", gossipWindow);
+        memberTimeout = options.getLong("member.timeout", memberTimeout);
+
+        if (peerInterval > 0) {
+            for (MachineAddress linker : linkers) {
+                peers.put(linker, new PhiAccrualDetector(expectedPeerInterval()));
+            }
+            loops[0].execute(this::pingPeers);
+        }
+    }
+
+    /**
+     * Partition the services table between the linkers: "partition.replicas" linkers own each service
+     * (0, the default, to keep the whole table on every linker), "partition.vnodes" points per linker on the ring
+     *
+     * @param options
+     */
+    private void configurePartitioning(Options options) {
+        replicas = Math.max(0, options.getInt("partition.replicas", replicas));
+        virtualNodes = Math.max(1, options.getInt("partition.vnodes", virtualNodes));
+
+        if (replicas > 0) {
+            System.out.println("[i] Partitioned table: " + replicas + " replicas, " + virtualNodes + " virtual nodes");
+            rebuildRing();
+        }
+    }
+
+    /**
+     * Update the digest of the members and the ring after the linkers changed
+     */
+    private void membersChanged() {
+        membersDigest = MemberList.digest(members());
+        rebuildRing();
+    }
+
+    /**
+     * Build the ring again after the linkers changed, and move the services whose owners changed
+     */
+    private void rebuildRing() {
+        if (replicas == 0 || self == null) {
+            return;
+        }
+
+        ring = new HashRing(members(), virtualNodes);
+        loops[0].execute(this::rebalance);
+    }
+
+    /**
+     * Send the services to their new owners: the primary owner of a service sends it to the other owners,
+     * a linker that does not own a service anymore sends it to its owners and drops it
+     *
+     * @throws IOException
+     */
+    private void rebalance() throws IOException {
+        HashRing current = ring;
+        if (current == null) {
+            return;
+        }
+
+        List<Endpoint> endpoints = new ArrayList<>();
+        services.forEach((type, all) -> endpoints.addAll(Arrays.asList(all)));
+
+        int moved = 0;
+        for (Endpoint endpoint : endpoints) {
+            List<MachineAddress> owners = current.owners(endpoint.getAddress(), replicas);
+            if (owners.isEmpty()) {
+                continue;
+            }
+
+            if (owners.get(0).equals(self)) {
+                sendRegistration(owners.subList(1, owners.size()), endpoint);
+            } else if (!owners.contains(self)) {
+                sendRegistration(owners, endpoint);
+                services.remove(endpoint.getAddress());
+                moved++;
+            }
+        }
+
+        if (moved > 0) {
+            System.out.println("[i] " + moved + " services moved to their new owners");
+        }
+    }
+
+    /**
+     * Whether this linker owns the given service (always true when the table is not partitioned)
+     *
+     * @param service
+     * @return
+     */
+    private boolean isOwner(MachineAddress service) {
+        HashRing current = ring;
+        return current == null || current.owners(service, replicas).contains(self);
+    }
+
+    /**
+     * Whether a linker owns the given service (always true when the table is not partitioned)
+     *
+     * @param service
+     * @param linker
+     * @return
+     */
+    private boolean ownedBy(MachineAddress service, MachineAddress linker) {
+        HashRing current = ring;
+        return current == null || current.owners(service, replicas).contains(linker);
+    }
+
+    /**
+     * Other linkers owning the given service, empty when the table is not partitioned
+     *
+     * @param service
+     * @return
+     */
+    private List<MachineAddress> otherOwners(MachineAddress service) {
+        HashRing current = ring;
+        if (current == null) {
+            return Collections.emptyList();
+        }
+
+        List<MachineAddress> owners = current.owners(service, replicas);
+        owners.remove(self);
+        return owners;
+    }
+
+    /**
+     * Forward a message of a client or a service to another linker, which handles it as if it was sent directly
+     *
+     * @param linker
+     * @param message
+     * @param origin client or service
+     * @param hops number of times the message can still be forwarded
+     * @throws IOException
+     */
+    private void route(MachineAddress linker, Message message, InetSocketAddress origin, int hops) throws IOException {
+        // [hops | origin | message type | payload]
+        ByteBuffer out = SEND.acquire();
+        int start = MessageCodec.beginFrame(out, MessageType.ROUTE);
+        out.put((byte) Math.min(hops, 0xFF));
+        new MachineAddress(origin).writeTo(out);
+        out.put((byte) message.getMessageType().ordinal());
+        if (message.getPayload() != null) {
+            out.put(message.getPayload());
+        }
+        MessageCodec.endFrame(out, start);
+
+        loop().send(out, linker);
+    }
+
+    /**
+     * Forward a message about a service to its primary owner, if this linker does not own it
+     *
+     * @param service
+     * @param message
+     * @param origin
+     * @return true if the message was forwarded
+     * @throws IOException
+     */
+    private boolean routeToOwner(MachineAddress service, Message message, InetSocketAddress origin) throws IOException {
+        HashRing current = ring;
+        if (current == null) {
+            return false;
+        }
+
+        List<MachineAddress> owners = current.owners(service, replicas);
+        if (owners.isEmpty() || owners.contains(self)) {
+            return false;
+        }
+
+        // The first owner that is not suspected to be down
+        MachineAddress owner = owners.get(0);
+        for (MachineAddress candidate : owners) {
+            if (!isPeerSuspected(candidate)) {
+                owner = candidate;
+                break;
+            }
+        }
+        route(owner, message, origin, 0);
+        return true;
+    }
+
+    /**
+     * Send the registration of a service to other linkers
+     *
+     * @param linkers
+     * @param endpoint
+     * @throws IOException
+     */
+    private void sendRegistration(List<MachineAddress> linkers, Endpoint endpoint) throws IOException {
+        if (linkers.isEmpty()) {
+            return;
+        }
+
+        // [service type | service address | weight | lease | version]
+        ByteBuffer payload = ByteBuffer.allocate(2 + Integer.BYTES + Long.BYTES + endpoint.getAddress().encodedSize());
+        payload.put(endpoint.getType().getType());
+        endpoint.getAddress().writeTo(payload);
+        payload.put((byte) endpoint.getWeight());
+        payload.putInt(endpoint.getLeaseMillis());
+        payload.putLong(endpoint.getVersion());
+
+        for (MachineAddress linker : linkers) {
+            reliable.send(linker, MessageType.REGISTER_SERVICE_FROM_LINKER, payload.array());
+        }
+    }
+
+    /**
+     * Share a registration (or the renewal of its lease) with the other linkers: gossiped to all of them,
+     * or sent to the other owners of the service when the table is partitioned
+     *
+     * @param endpoint
+     * @throws IOException
+     */
+    private void shareRegistration(Endpoint endpoint) throws IOException {
+        if (replicas > 0) {
+            endpoint.updateVersion(clock.next());
+            sendRegistration(otherOwners(endpoint.getAddress()), endpoint);
+            return;
+        }
+
+        endpoint.updateVersion(gossip.added(endpoint.getType(), endpoint.getAddress(), endpoint.getWeight(),
+                endpoint.getLeaseMillis()));
+        gossipChanged();
+    }
+
+    /**
+     * Configure the delivery of the control messages to the other linkers: "reliable.window" messages in flight
+     * per linker, "reliable.transmissions" before a message is given up, retransmission timeout measured within
+     * "reliable.rto.min" and "reliable.rto.max" (ms), checked every "reliable.tick" ms
+     *
+     * @param options
+     */
+    private void configureReliability(Options options) {
+        reliable = newReliableChannel(
+                options.getInt("reliable.window", 64),
+                options.getInt("reliable.transmissions", 10),
+                options.getLong("reliable.rto.min", 20),
+                options.getLong("reliable.rto.max", 2000));
+
+        long tick = Math.max(1, options.getLong("reliable.tick", 10));
+        loops[0].execute(() -> tickReliable(tick));
+    }
+
+    /**
+     * Configure the timeouts of the table requests, joins and probes of the services: derived from the round-trip
+     * time measured for each node, within "timeout.min" and "timeout.max" (ms)
+     *
+     * @param options
+     */
+    private void configureTimeouts(Options options) {
+        rtt = new RttTable(TIMEOUT, options.getLong("timeout.min", 20), options.getLong("timeout.max", 5000));
+    }
+
+    private ReliableChannel newReliableChannel(int window, int transmissions, long minTimeout, long maxTimeout) {
+        return new ReliableChannel((frame, to) -> loop().send(frame, to), window, transmissions, minTimeout, maxTimeout);
+    }
+
+    /**
+     * Retransmit the control messages not acknowledged in time
+     *
+     * @param tick
+     */
+    private void tickReliable(long tick) {
+        try {
+            reliable.tick(EventLoop.now());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        loop().schedule(tick, () -> tickReliable(tick));
+    }
+
+    /**
+     * Start the anti-entropy rounds: every "entropy.interval" ms (0 to disable), the hash tree of the table is
+     * compared with the one of a random linker, and only the buckets that differ are exchanged
+     *
+     * @param options
+     */
+    private void configureAntiEntropy(Options options) {
+        entropyInterval = options.getLong("entropy.interval", entropyInterval);
+
+        if (entropyInterval > 0) {
+            loops[0].execute(() -> loop().schedule(entropyInterval, this::antiEntropyRound));
+        }
+    }
+
+    /**
+     * Send the roots of the hash tree to a random linker, then wait for the next round
+     *
+     * @throws IOException
+     */
+    private void antiEntropyRound() throws IOException {
+        List<MachineAddress> candidates = new ArrayList<>();
+        for (MachineAddress linker : linkers) {
+            if (!isPeerSuspected(linker)) {
+                candidates.add(linker);
+            }
+        }
+
+        if (!candidates.isEmpty() && !waitingTable.get()) {
+            MachineAddress linker = candidates.get(ThreadLocalRandom.current().nextInt(candidates.size()));
+
+            ByteBuffer out = SEND.acquire();
+            int start = MessageCodec.beginFrame(out, MessageType.ENTROPY_ROOTS);
+            digestFor(linker).writeRoots(out);
+            MessageCodec.endFrame(out, start);
+
+            loop().send(out, linker);
+        }
+
+        loop().schedule(entropyInterval, this::antiEntropyRound);
+    }
+
+    /**
+     * Services to compare with another linker: all of them, or those owned by both linkers when partitioned
+     *
+     * @param linker
+     * @return
+     */
+    private Predicate<MachineAddress> entropyFilter(MachineAddress linker) {
+        HashRing current = ring;
+        if (current == null) {
+            return service -> true;
+        }
+
+        return service -> {
+            List<MachineAddress> owners = current.owners(service, replicas);
+            return owners.contains(self) && owners.contains(linker);
+        };
+    }
+
+    /**
+     * Hash tree of the services to compare with another linker
+     *
+     * @param linker
+     * @return
+     */
+    private MerkleDigest digestFor(MachineAddress linker) {
+        if (ring != null) {
+            // Depends on the linker, not worth keeping
+            return MerkleDigest.of(services, entropyFilter(linker));
+        }
+
+        long version = services.getLog().getVersion();
+        MerkleDigest current = digest;
+        if (current == null || digestVersion != version) {
+            current = MerkleDigest.of(services, service -> true);
+            digest = current;
+            digestVersion = version;
+        }
+        return current;
+    }
+
+    /**
+     * Another linker sent the roots of its hash tree: send back the buckets of the types that differ
+     *
+     * @param message
+     * @param sender
+     * @throws IOException
+     */
+    private void handleEntropyRoots(Message message, InetSocketAddress sender) throws IOException {
+        if (!peers.containsKey(sender)) {
+            return;
+        }
+
+        MerkleDigest tree = digestFor(new MachineAddress(sender));
+        List<ServiceType> types = tree.differingTypes(ByteBuffer.wrap(message.getPayload()));
+        if (types.isEmpty()) {
+            return;
+        }
+
+        ByteBuffer out = SEND.acquire();
+        int start = MessageCodec.beginFrame(out, MessageType.ENTROPY_LEAVES);
+        tree.writeLeaves(out, types);
+        MessageCodec.endFrame(out, start);
+
+        loop().send(out, sender);
+    }
+
+    /**
+     * Another linker sent the buckets that differ: send the services of these buckets, and ask for its own
+     *
+     * @param message
+     * @param sender
+     * @throws IOException
+     */
+    private void handleEntropyLeaves(Message message, InetSocketAddress sender) throws IOException {
+        if (!peers.containsKey(sender)) {
+            return;
+        }
+
+        MachineAddress linker = new MachineAddress(sender);
+        List<MerkleDigest.Bucket> buckets = digestFor(linker).differingBuckets(ByteBuffer.wrap(message.getPayload()));
+        if (buckets.isEmpty()) {
+            return;
+        }
+
+        sendBuckets(linker, buckets, true);
+    }
+
+    /**
+     * Another linker sent the services of buckets that differ, and their removals: the newest state of each service
+     * wins (a missing service is added unless it was removed since, a removal removes an older registration),
+     * and ours are sent if asked
+     *
+     * @param message
+     * @param sender
+     * @throws IOException
+     */
+    private void handleEntropyBuckets(Message message, InetSocketAddress sender) throws IOException {
+        if (!peers.containsKey(sender)) {
+            return;
+        }
+
+        MerkleDigest.Repair repair;
+        try {
+            repair = MerkleDigest.readRepair(ByteBuffer.wrap(message.getPayload()));
+        } catch (IOException | ClassNotFoundException | RuntimeException e) {
+            System.out.println("[i] Malformed anti-entropy buckets");
+            return;
+        }
+
+        int added = 0;
+        int removed = 0;
+        for (MerkleDigest.Entry entry : repair.getEntries()) {
+            MachineAddress service = entry.getAddress();
+            if (!isOwner(service)) {
+                continue;
+            }
+            clock.observe(entry.getVersion());
+
+            Endpoint endpoint = services.get(service);
+            if (entry.isRemoval()) {
+                if (removeService(service, entry.getType(), entry.getVersion())) {
+                    removed++;
+                }
+            } else if (endpoint == null && entry.getVersion() > tombstones.version(service)) {
+                handleRegisterService(entry.getType(), service, entry.getWeight(), entry.getLease(), entry.getVersion());
+                added++;
+            }
+        }
+        if (added > 0 || removed > 0) {
+            System.out.println("[i] Anti-entropy with " + sender + ": " + added + " missing services added, "
+                    + removed + " removed");
+        }
+
+        if (repair.isReply()) {
+            sendBuckets(new MachineAddress(sender), repair.getBuckets(), false);
+        }
+    }
+
+    /**
+     * Send the services of the given buckets, and their removals, to another linker
+     *
+     * @param linker
+     * @param buckets
+     * @param reply whether the other linker has to send its services of the same buckets
+     * @throws IOException
+     */
+    private void sendBuckets(MachineAddress linker, List<MerkleDigest.Bucket> buckets, boolean reply)
+            throws IOException {
+        for (byte[] payload : MerkleDigest.repair(services, tombstones, buckets, entropyFilter(linker), reply)) {
+            ByteBuffer out = SEND.acquire();
+            int start = MessageCodec.beginFrame(out, MessageType.ENTROPY_BUCKETS);
+            out.put(payload);
+            MessageCodec.endFrame(out, start);
+
+            loop().send(out, linker);
+        }
+    }
+
+    /**
+     * Expected interval between two messages of another linker (ms):
+     * each linker is pinged every (linkers / fanout) rounds on average
+     *
+     * @return
+     */
+    private long expectedPeerInterval() {
+        return Math.max(1, peerInterval) * Math.max(1, (linkers.size() + gossipFanout - 1) / gossipFanout);
+    }
+
+    /**
+     * Run a round of pings, then wait for the next round
+     *
+     * @throws IOException
+     */
+    private void pingPeers() throws IOException {
+        removeSilentLinkers();
+        gossipRound();
+        loop().schedule(peerInterval, this::pingPeers);
+    }
+
+    /**
+     * Add a linker to the members, if it is not known yet
+     *
+     * @param linker
+     * @return true if the linker was added
+     */
+    private boolean addLinker(MachineAddress linker) {
+        if (linker.equals(self) || !linkers.addIfAbsent(linker)) {
+            return false;
+        }
+        peers.put(linker, new PhiAccrualDetector(expectedPeerInterval()));
+        knownLinkers.add(linker);
+        System.out.println("[i] Linker " + linker + " joined (" + (linkers.size() + 1) + " linkers)");
+        membersChanged();
+        return true;
+    }
+
+    /**
+     * Remove a linker from the members
+     *
+     * @param linker
+     * @return true if the linker was known
+     */
+    private boolean removeLinker(MachineAddress linker) {
+        if (!linkers.remove(linker)) {
+            return false;
+        }
+        peers.remove(linker);
+        syncedVersions.remove(linker);
+        reliable.forget(linker);
+        rtt.forget(linker);
+        System.out.println("[i] Linker " + linker + " left (" + (linkers.size() + 1) + " linkers)");
+        membersChanged();
+        return true;
+    }
+
+    /**
+     * Remove the linkers that sent nothing for "member.timeout" ms, and gossip their departure
+     *
+     * @throws IOException
+     */
+    private void removeSilentLinkers() throws IOException {
+        long now = EventLoop.now();
+
+        for (MachineAddress linker : linkers) {
+            PhiAccrualDetector detector = peers.get(linker);
+            if (detector != null && detector.getLastHeartbeat() >= 0
+                    && now - detector.getLastHeartbeat() > memberTimeout && removeLinker(linker)) {
+                gossip.left(linker);
+                gossipChanged();
+            }
+        }
+    }
+
+    /**
+     * Current members, this linker included once its address is known
+     *
+     * @return
+     */
+    private List<MachineAddress> members() {
+        List<MachineAddress> members = new ArrayList<>(linkers.size() + 1);
+        if (self != null) {
+            members.add(self);
+        }
+        members.addAll(linkers);
+        return members;
+    }
+
+    /**
+     * Send a batch of changes without waiting for the next round, once it is full or after the window
+     *
+     * @throws IOException
+     */
+    private void flushGossip() throws IOException {
+        flushScheduled.set(false);
+
+        if (gossip.getUnsentBytes() > 0) {
+            gossipRound();
+        }
+    }
+
+    /**
+     * Called after changes were added to the gossip: start a round once the batch is full,
+     * or schedule one at the end of the window
+     */
+    private void gossipChanged() {
+        if (linkers.isEmpty()) {
+            return;
+        }
+
+        if (gossip.getUnsentBytes() >= Gossip.MAX_BYTES) {
+            loops[0].execute(this::flushGossip);
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            loops[0].execute(() -> loop().schedule(gossipWindow, this::flushGossip));
+        }
+    }
+
+    /**
+     * Ping a few random linkers, with the pending changes of the registry
+     *
+     * @throws IOException
+     */
+    private void gossipRound() throws IOException {
+        List<MachineAddress> targets = linkers;
+        if (linkers.size() > gossipFanout) {
+            targets = new ArrayList<>(linkers);
+            Collections.shuffle(targets, ThreadLocalRandom.current());
+            targets = targets.subList(0, gossipFanout);
+        }
+
+        for (MachineAddress linker : targets) {
+            // [sequence id | gossip]
+            ByteBuffer out = SEND.acquire();
+            int start = MessageCodec.beginFrame(out, MessageType.PING);
+            out.putInt(probes.nextSequence());
+            gossip.writeTo(out, linkers.size() + 1);
+            MessageCodec.endFrame(out, start);
+
+            loop().send(out, linker);
+        }
+    }
+
+    /**
+     * Apply the changes of the registry gossiped by another linker
+     *
+     * @param payload gossip section of a PING or PONG
+     */
+    private void applyGossip(ByteBuffer payload) {
+        try {
+            List<Gossip.Delta> deltas = gossip.readFrom(payload);
+            for (Gossip.Delta delta : deltas) {
+                if (delta.isLinker()) {
+                    applyMembership(delta);
+                } else if (delta.isRemoval()) {
+                    removeService(delta.getAddress(), delta.getType(), delta.getVersion());
+                } else {
+                    handleRegisterService(delta.getType(), delta.getAddress(), delta.getWeight(), delta.getLease(),
+                            delta.getVersion());
+                }
+            }
+
+            if (!deltas.isEmpty()) {
+                gossipChanged();
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            System.out.println("[i] Malformed gossip");
+        }
+    }
+
+    /**
+     * Apply a change of the membership gossiped by another linker
+     *
+     * @param delta
+     * @throws IOException
+     */
+    private void applyMembership(Gossip.Delta delta) throws IOException {
+        if (delta.getAddress().equals(self)) {
+            if (delta.isRemoval()) {
+                // Wrongly thought gone by another linker: refute it with a newer join
+                gossip.joined(self);
+            }
+        } else if (delta.isRemoval()) {
+            removeLinker(delta.getAddress());
+        } else {
+            addLinker(delta.getAddress());
+        }
+    }
+
+    /**
+     * Whether another linker is suspected to be down
+     *
+     * @param linker
+     * @return
+     */
+    private boolean isPeerSuspected(MachineAddress linker) {
+        PhiAccrualDetector detector = peers.get(linker);
+        return detector != null && detector.isSuspected(EventLoop.now(), phiThreshold);
+    }
+
+    /**
+     * Start the expiry of the leases on the first worker: leases asked by the services are granted
+     * within "lease.min" and "lease.max" (ms)
+     *
+     * @param options
+     */
+    private void configureLeases(Options options) {
+        minLease = options.getInt("lease.min", minLease);
+        maxLease = Math.max(minLease, options.getInt("lease.max", maxLease));
+
+        leases = new LeaseTable(
+                services,
+                endpoint -> expireLease(endpoint.getAddress()),
+                maxLease,
+                options.getLong("lease.tick", 100),
+                EventLoop.now()
+        );
+
+        loops[0].execute(this::tickLeases);
+    }
+
+    /**
+     * Drop the expired leases, then wait for the next tick
+     */
+    private void tickLeases() {
+        leases.tick(EventLoop.now());
+        loop().schedule(leases.getTick(), this::tickLeases);
+    }
+
+    /**
+     * Replay the table persisted in the "store" directory, then persist its changes every "store.interval" ms,
+     * forced to the disk according to "store.fsync" (always, periodic or never)
+     *
+     * @param options
+     * @throws IOException
+     */
+    private void configureStore(Options options) throws IOException {
+        String directory = options.getString("store", null);
+        if (directory == null) {
+            return;
+        }
+
+        store = new RegistryStore(
+                Paths.get(directory),
+                services,
+                tombstones,
+                RegistryStore.Fsync.forName(options.getString("store.fsync", "periodic"))
+        );
+
+        long start = System.nanoTime();
+        int records = store.recover(change -> {
+            // The tombstones and the clock are recovered with the table
+            long version = change.getServiceVersion();
+            clock.observe(version);
+
+            if (change.isRemoval() && version == 0) {
+                // Removed here without warning the other linkers (expired lease, reconciliation)
+                removeService(change.getAddress());
+            } else if (change.isRemoval()) {
+                removeService(change.getAddress(), change.getType(), version);
+            } else {
+                // A whole lease from now: the time the linker was down is not known
+                handleRegisterService(change.getType(), change.getAddress(), change.getWeight(), change.getLease(),
+                        version);
+            }
+        });
+        System.out.println("[i] Table recovered from " + directory + " (" + records + " records, "
+                + (System.nanoTime() - start) / 1000 + " us)");
+        printServices();
+
+        long interval = options.getLong("store.interval", 50);
+        loops[0].execute(() -> flushStore(interval));
+    }
+
+    /**
+     * Persist the changes of the table, then wait for the next flush
+     *
+     * @param interval
+     */
+    private void flushStore(long interval) {
+        try {
+            store.flush(EventLoop.now());
+        } catch (IOException e) {
+            System.out.println("[i] Table could not be persisted: " + e.getMessage());
+        }
+        loop().schedule(interval, () -> flushStore(interval));
+    }
+
+    /**
+     * Start the proactive probes of the services on the first worker:
+     * "probe.interval" between two probes of a service (ms, 0 to disable),
+     * "probe.misses" consecutive missed probes before eviction, "probe.tick" precision of the schedule (ms)
+     *
+     * @param options
+     */
+    private void configureHeartbeats(Options options) {
+        long interval = options.getLong("probe.interval", 2000);
+        if (interval <= 0) {
+            return;
+        }
+
+        heartbeats = new HeartbeatScheduler(
+                services,
+                new HeartbeatScheduler.Prober() {
+                    @Override
+                    public void ping(Endpoint endpoint) throws IOException {
+                        sendPing(endpoint.getAddress(), probes.nextSequence());
+                    }
+
+                    @Override
+                    public void evict(Endpoint endpoint) throws IOException {
+                        retireService(endpoint.getAddress());
+                    }
+                },
+                interval,
+                options.getInt("probe.misses", 3),
+                phiThreshold,
+                options.getLong("probe.tick", 10),
+                EventLoop.now()
+        );
+
+        loops[0].execute(this::tickHeartbeats);
+    }
+
+    /**
+     * Send the proactive probes that are due, then wait for the next tick
+     */
+    private void tickHeartbeats() {
+        heartbeats.tick(EventLoop.now());
+        loop().schedule(heartbeats.getTick(), this::tickHeartbeats);
+    }
+
+    /**
+     * Find the SO_REUSEPORT option, only available on some platforms (and since Java 9)
+     *
+     * @param channel
+     * @return the option, or null if not supported
+     */
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePortOption(DatagramChannel channel) {
+        for (SocketOption<?> option : channel.supportedOptions()) {
+            if (option.name().equals("SO_REUSEPORT")) {
+                return (SocketOption<Boolean>) option;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Loop of the worker running the current handler
+     *
+     * @return
+     */
+    private static EventLoop loop() {
+        return EventLoop.current();
+    }
+
+    /**
+     * Handle register service request from a service, forwarded to its owner when the table is partitioned
+     *
+     * @param message
+     * @param sender
+     * @throws IOException
+     */
+    private void handleFirstRegisterService(Message message, InetSocketAddress sender) throws IOException {
+        if (!routeToOwner(new MachineAddress(sender), message, sender)) {
+            registerService(message, sender);
+        }
+    }
+
+    /**
+     * Register a service and acknowledge it (the ACK tells the service which linker to send its heartbeats to)
+     *
+     * @param message
+     * @param sender
+     * @throws IOException
+     */
+    private void registerService(Message message, InetSocketAddress sender) throws IOException {
+        // [service type | weight (optional) | lease (optional)]
+        ByteBuffer payload = ByteBuffer.wrap(message.getPayload());
+        ServiceType serviceType = ServiceType.fromType(payload.get());
+        int weight = payload.hasRemaining() ? payload.get() & 0xFF : 1;
+        int lease = payload.remaining() >= Integer.BYTES ? grantLease(payload.getInt()) : 0;
+
+        // Asked by the service itself: newer than any removal known here
+        MachineAddress newService = new MachineAddress(sender);
+        handleRegisterService(serviceType, newService, weight, lease, clock.next());
+
+        // Send an ACK to show that the linker is alive, with the lease granted and the current linkers
+        ByteBuffer out = SEND.acquire();
+        if (lease > 0) {
+            int start = MessageCodec.beginFrame(out, MessageType.ACK);
+            out.putInt(lease);
+            MemberList.write(out, members());
+            MessageCodec.endFrame(out, start);
+        } else {
+            MessageCodec.encodeEmpty(out, MessageType.ACK);
+        }
+        loop().send(out, sender);
+
+        Endpoint endpoint = services.get(newService);
+        if (endpoint != null) {
+            endpoint.shouldGossipLease(EventLoop.now());
+
+            // Gossip the service to the other linkers
+            shareRegistration(endpoint);
+        }
+
+        System.out.println("[i] Services:");
+        printServices();
+    }
+
+    /**
+     * Handle register service when it comes from a linker
+     *
+     * @param message
+     * @param sender
+     * @throws IOException
+     */
+    private void handleLinkerRegisterService(Message message, InetSocketAddress sender) throws IOException {
+        try {
+            // We read the [service type | machine address | weight (optional) | lease (optional) | version (optional)]
+            ByteBuffer payload = ByteBuffer.wrap(message.getPayload());
+            ServiceType serviceType = ServiceType.fromType(payload.get());
+            MachineAddress ma = MachineAddress.readFrom(payload);
+            int weight = payload.hasRemaining() ? payload.get() & 0xFF : 1;
+            int lease = payload.remaining() >= Integer.BYTES ? payload.getInt() : 0;
+            long version = payload.remaining() >= Long.BYTES ? payload.getLong() : 0;
+            clock.observe(version);
+
+            handleRegisterService(serviceType, ma, weight, lease, version);
+
+            System.out.println("[i] Services:");
+            printServices();
+        } catch (ClassNotFoundException e) {
+            System.out.println("[i] Message malformed");
+        }
+    }
+
+    /**
+     * Lease granted to a service, within the bounds of the linker
+     *
+     * @param asked lease asked by the service (ms), 0 for a registration that does not expire
+     * @return
+     */
+    private int grantLease(int asked) {
+        if (asked <= 0 || leases == null) {
+            return 0;
+        }
+        return Math.max(minLease, Math.min(maxLease, asked));
+    }
+
+    /**
+     * Handle service without lease (or keeping its current lease)
+     *
+     * @param serviceType
+     * @param newService
+     * @param weight
+     */
+    private void handleRegisterService(ServiceType serviceType, MachineAddress newService, int weight) {
+        handleRegisterService(serviceType, newService, weight, 0);
+    }
+
+    /**
+     * Handle service whose version is not known (from a table or the store): any removal known is newer
+     *
+     * @param serviceType
+     * @param newService
+     * @param weight
+     * @param lease duration of the lease (ms), 0 to keep the current lease
+     */
+    private void handleRegisterService(ServiceType serviceType, MachineAddress newService, int weight, int lease) {
+        handleRegisterService(serviceType, newService, weight, lease, 0);
+    }
+
+    /**
+     * Handle service, used by both handleLinkerRegisterService and handleFirstRegisterService methods
+     * A registration of a service already registered renews its lease, a registration older than the last removal
+     * of the service is ignored.
+     *
+     * @param serviceType
+     * @param newService
+     * @param weight
+     * @param lease duration of the lease (ms), 0 to keep the current lease
+     * @param version version of the registration (see HybridClock), 0 if not known
+     */
+    private void handleRegisterService(ServiceType serviceType, MachineAddress newService, int weight, int lease,
+                                       long version) {
+        long removed = tombstones.version(newService);
+        if (removed > 0 && version <= removed) {
+            System.out.println("[i] Registration of " + newService + " older than its removal, ignored");
+            return;
+        }
+        System.out.println("[i] Register service (" + serviceType + ", weight " + weight + ")");
+
+        boolean added = services.add(serviceType, newService, weight);
+
+        Endpoint endpoint = services.get(newService);
+        if (endpoint == null) {
+            // Removed by another worker in the meantime
+            return;
+        }
+        endpoint.updateVersion(version);
+        tombstones.registered(newService, version);
+
+        long now = EventLoop.now();
+        endpoint.seen(now);
+
+        if (added && heartbeats != null) {
+            loops[0].execute(() -> heartbeats.track(endpoint));
+        }
+
+        if (endpoint.renewLease(lease, now) && leases != null) {
+            loops[0].execute(() -> leases.track(endpoint, EventLoop.now()));
+        }
+    }
+
+    /**
+     * Handle request service request
+     *
+     * @param message
+     * @param sender
+     * @throws IOException
+     */
+    private void handleRequestService(Message message, InetSocketAddress sender) throws IOException {
+        handleRequestService(message, sender, linkers.size());
+    }
+
+    /**
+     * @param message
+     * @param sender
+     * @param hops number of linkers the request can still be forwarded to, when the table is partitioned and
+     *             this linker owns no service of the type
+     * @throws IOException
+     */
+    private void handleRequestService(Message message, InetSocketAddress sender, int hops) throws IOException {
+        // [service type | digest of the linkers known by the client (optional) | endpoints wanted (optional)]
+        // Read in place: wrapping the payload would allocate a buffer at each lookup
+        byte[] payload = message.getPayload();
+        ServiceType serviceType = ServiceType.fromType(payload[0]);
+
+        if (VERBOSE) {
+            System.out.println("[>] A client asked for a service (" + serviceType.name() + ")");
+            System.out.println("[i] There are currently " + services.size(serviceType) + " services of type: " + serviceType.name());
+        }
+
+        Endpoint selectedService = services.isEmpty() ? null : services.select(serviceType);
+
+        if (selectedService == null) {
+            HashRing current = ring;
+            MachineAddress next = current == null || hops <= 0 ? null : current.successor(self);
+            if (next != null) {
+                // Walk the ring until a linker owning a service of this type is found
+                route(next, message, sender, hops - 1);
+            } else if (!services.isEmpty()) {
+                System.out.println(waitingTable.get() ? "[i] No service available yet (warming)" : "[i] No service available");
+            }
+            // We cannot response, the client will ask again soon.
+            return;
+        }
+
+        boolean hasDigest = payload.length >= 1 + Integer.BYTES;
+        int digest = hasDigest ? (payload[1] & 0xFF) << 24 | (payload[2] & 0xFF) << 16 | (payload[3] & 0xFF) << 8
+                | payload[4] & 0xFF : 0;
+        int wanted = payload.length > 1 + Integer.BYTES ? Math.min(payload[5] & 0xFF, maxLookupEndpoints) : 0;
+
+        ByteBuffer out = SEND.acquire();
+        int start;
+        if (wanted > 1) {
+            // Several endpoints the client can cache and fail over to: [ttl | count | address... | linkers]
+            start = MessageCodec.beginFrame(out, MessageType.SERVICE_ENDPOINTS);
+            out.putInt(lookupTtl);
+            writeEndpoints(out, serviceType, selectedService, wanted);
+        } else {
+            // Send the address of one of the specific service, written directly in the frame
+            start = MessageCodec.beginFrame(out, MessageType.RESPONSE);
+            selectedService.getAddress().writeTo(out);
+        }
+        if (hasDigest && digest != membersDigest) {
+            // The linkers changed since the client learned them: send them along
+            MemberList.write(out, members());
+        }
+        MessageCodec.endFrame(out, start);
+
+        if (VERBOSE) {
+            System.out.println("[i] Send service address to client");
+        }
+        loop().send(out, sender);
+
+        if (firstLookupServed.compareAndSet(false, true)) {
+            System.out.println("[i] First lookup served " + (EventLoop.now() - startTime) + " ms after startup"
+                    + (waitingTable.get() ? " (warming)" : ""));
+        }
+    }
+
+    /**
+     * Write the selected endpoint then other endpoints of the same type, from a random position
+     *
+     * @param out
+     * @param type
+     * @param selected
+     * @param wanted maximum number of endpoints
+     * @throws IOException
+     */
+    private void writeEndpoints(ByteBuffer out, ServiceType type, Endpoint selected, int wanted) throws IOException {
+        Endpoint[] endpoints = services.snapshot(type);
+
+        int countPosition = out.position();
+        out.put((byte) 0);
+        selected.getAddress().writeTo(out);
+        int count = 1;
+
+        int offset = endpoints.length == 0 ? 0 : ThreadLocalRandom.current().nextInt(endpoints.length);
+        for (int i = 0; i < endpoints.length && count < wanted; i++) {
+            Endpoint endpoint = endpoints[(offset + i) % endpoints.length];
+            if (endpoint != selected) {
+                endpoint.getAddress().writeTo(out);
+                count++;
+            }
+        }
+        out.put(countPosition, (byte) count);
+    }
+
+    /**
+     * Warn all other linkers that the given service is down (gossiped with the next pings),
+     * or only its other owners when the table is partitioned
+     *
+     * @param serviceDownMachineAddress
+     * @return version of the removal
+     * @throws IOException
+     */
+    private long warnOtherLinkers(MachineAddress serviceDownMachineAddress) throws IOException {
+        if (replicas > 0) {
+            // Only the other owners of the service know it, in order with the registrations
+            // [service address | version]
+            long version = clock.next();
+            ByteBuffer payload = ByteBuffer.allocate(serviceDownMachineAddress.encodedSize() + Long.BYTES);
+            serviceDownMachineAddress.writeTo(payload);
+            payload.putLong(version);
+            for (MachineAddress owner : otherOwners(serviceDownMachineAddress)) {
+                reliable.send(owner, MessageType.REMOVE_SERVICE, payload.array());
+            }
+            return version;
+        }
+
+        long version = gossip.removed(serviceDownMachineAddress);
+        gossipChanged();
+        return version;
+    }
+
+    /**
+     * A service was found down by this linker: remove it and warn the other linkers
+     *
+     * @param service
+     * @throws IOException
+     */
+    private void retireService(MachineAddress service) throws IOException {
+        long version = warnOtherLinkers(service);
+        removeService(service, null, version);
+    }
+
+    /**
+     * The lease of a service expired here: drop it without warning the other linkers. Each linker expires the leases
+     * it keeps by itself, and the last renewal may have reached another linker and not this one yet: a removal made
+     * here would be newer than that renewal, and remove the service from every linker.
+     *
+     * @param service
+     */
+    private void expireLease(MachineAddress service) {
+        removeService(service);
+    }
+
+    /**
+     * Handle remove service message from a linker, no need to check
+     *
+     * @param message
+     * @param sender
+     */
+    private void handleRemoveService(Message message, InetSocketAddress sender) {
+        try {
+            // [service address | version (optional)]
+            ByteBuffer payload = ByteBuffer.wrap(message.getPayload());
+            MachineAddress service = MachineAddress.readFrom(payload);
+            long version = payload.remaining() >= Long.BYTES ? payload.getLong() : clock.next();
+            clock.observe(version);
+            removeService(service, null, version);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (ClassNotFoundException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Handle the request table message and send the changes since the version given by the linker
+     * (or the whole table) in TABLE_CHUNK messages
+     *
+     * @param message
+     * @param sender
+     */
+    private void handleRequestTable(Message message, InetSocketAddress sender) {
+        byte[] payload = message.getPayload();
+        if (payload == null || payload.length < 2 * Long.BYTES) {
+            // Linker of a previous version
+            sendLegacyTable(sender);
+            return;
+        }
+
+        try {
+            // [epoch | last version seen]
+            ByteBuffer request = ByteBuffer.wrap(payload);
+            long epoch = request.getLong();
+            long version = request.getLong();
+
+            List<byte[]> chunks = TableSync.chunks(services, tombstones, clock.next(), epoch, version);
+            System.out.println("[i] Send services table to linker (" + chunks.size() + " chunks)");
+
+            for (byte[] chunk : chunks) {
+                ByteBuffer out = SEND.acquire();
+                int start = MessageCodec.beginFrame(out, MessageType.TABLE_CHUNK);
+                out.put(chunk);
+                MessageCodec.endFrame(out, start);
+                loop().send(out, sender);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Send the whole table in a single LINKERS_TABLE message (Java serialization), to linkers of previous versions
+     *
+     * @param sender
+     */
+    private void sendLegacyTable(InetSocketAddress sender) {
+        try {
+            // Copy of the table with plain collections, as other workers keep modifying it
+            Map<ServiceType, Set<MachineAddress>> table = services.toMap();
+
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(baos);
+            out.writeObject(table);
+
+            Message message = new Message(
+                    MessageType.LINKERS_TABLE,
+                    baos.toByteArray()
+            );
+
+            System.out.println("[i] Send services table to linker");
+            loop().send(message.toByteArray(), sender);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Ask all the linkers at once for the services table, the first complete table ends the warming.
+     * If no linker answers before the timeout, this linker is the first one to be launched.
+     *
+     * The request does not block: the linker already serves (warming) while waiting for the table.
+     */
+    private void askTableService() throws IOException {
+        waitingTable.set(true);
+
+        int asked = 0;
+        long timeout = 0;
+        for (MachineAddress linker : linkers) {
+            if (isPeerSuspected(linker)) {
+                System.out.println("[i] Linker " + linker + " is suspected to be down, not asked for its table");
+                continue;
+            }
+
+            requestTable(linker);
+            asked++;
+            timeout = Math.max(timeout, rtt.timeout(linker));
+        }
+
+        if (asked == 0) {
+            System.out.println("[i] No linker to ask, start with an empty table");
+            waitingTable.set(false);
+            return;
+        }
+
+        // Waits for the slowest linker asked
+        loop().schedule(timeout, () -> {
+            if (waitingTable.compareAndSet(true, false)) {
+                System.out.println("[i] No linker answered, start with an empty table");
+            }
+        });
+    }
+
+    /**
+     * The first table has been applied, the linker knows all the services
+     */
+    private void warm() {
+        if (waitingTable.compareAndSet(true, false)) {
+            System.out.println("[i] Warm " + (EventLoop.now() - startTime) + " ms after startup");
+        }
+    }
+
+    /**
+     * Handle the services table sent by a linker, after askTableService
+     *
+     * @param message
+     * @param sender
+     */
+    @SuppressWarnings("unchecked")
+    private void handleLinkersTable(Message message, InetSocketAddress sender) {
+        if (!waitingTable.get()) {
+            // Table not asked or already received
+            return;
+        }
+
+        try (ByteArrayInputStream bais = new ByteArrayInputStream(message.getPayload())) {
+            try (ObjectInputStream ois = new ObjectInputStream(bais)) {
+                Map<ServiceType, Set<MachineAddress>> table = (Map<ServiceType, Set<MachineAddress>>) ois.readObject();
+
+                // Services may have registered in the meantime, merge them
+                table.forEach((type, set) -> set.stream()
+                        .filter(this::isOwner)
+                        .forEach(service -> handleRegisterService(type, service, 1)));
+                warm();
+
+                System.out.println("[i] Got services table");
+                this.printServices();
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            System.out.println("[i] Malformed packet, wait for the other linkers");
+        }
+    }
+
+    /**
+     * Check if a service reported by a client is down, by sending it a PING.
+     * If no PONG is received before the timeout and the service is suspected (phi), remove it and warn
+     * the other linkers.
+     * Reports for a service that is already probed are merged into the probe in flight.
+     *
+     * @param message
+     * @param sender
+     * @throws IOException
      */
-    private final DatagramSocket socket;
+    private void handleServiceDown(Message message, InetSocketAddress sender) throws IOException {
+        System.out.println("[i] Service down !");
 
-    /**
-     * List of all linkers (except itself)
-     */
-    private List<MachineAddress> linkers;
+        // Send an ACK to the client to show that we received the request
+        ByteBuffer out = SEND.acquire();
+        MessageCodec.encodeEmpty(out, MessageType.ACK);
+        loop().send(out, sender);
 
-    /**
-     * Set of machines for each type of service
-     */
-    private Map<ServiceType, Set<MachineAddress>> services = new HashMap<>();
+        try {
+            MachineAddress possibleDeadService = MachineAddress.fromByteArray(message.getPayload());
 
-    public Linker(final int port, List<MachineAddress> otherLinkers) throws SocketException {
-        socket = new DatagramSocket(port);
-        this.linkers = otherLinkers;
+            if (routeToOwner(possibleDeadService, message, sender)) {
+                return;
+            }
+            if (!probeService(possibleDeadService)) {
+                System.out.println("[i] Service already probed");
+            }
+        } catch (ClassNotFoundException e) {
+            System.out.println("[i] Error, invalid packet");
+        }
     }
 
     /**
-     * Handle register service request from a service
+     * Ping a service suspected to be down, and evict it if it does not answer before the timeout
      *
-     * @param message
-     * @param packet
+     * @param service
+     * @return false if a probe of the service was already in flight
      * @throws IOException
      */
-    private void handleFirstRegisterService(Message message, DatagramPacket packet) throws IOException {
-        handleRegisterService(message, packet);
-
-        ServiceType serviceType = ServiceType.values()[message.getPayload()[0]];
-
-        // Send an ACK to show that the linker is alive
-        packet.setData(new Message(
-                MessageType.ACK,
-                null
-        ).toByteArray());
+    private boolean probeService(MachineAddress service) throws IOException {
+        long timeout = rtt.timeout(service);
+        ProbeTable.Probe probe = probes.start(service, EventLoop.now() + timeout);
+        if (probe == null) {
+            return false;
+        }
 
-        socket.send(packet);
+        System.out.println("[i] Send a PING to the service (timeout of " + timeout + " ms)");
+        sendPing(service, probe.getSequence());
 
-        MachineAddress newService = new MachineAddress(
-                packet.getAddress().getHostAddress(),
-                packet.getPort()
-        );
+        loop().schedule(timeout, () -> {
+            if (!probes.expire(probe, EventLoop.now())) {
+                return;
+            }
+            rtt.backoff(service);
 
-        // Concat [service type | service object]
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream( );
-        outputStream.write( serviceType.getType() );
-        outputStream.write( newService.toByteArray() );
-
-        // Send service to other linkers
-        sendToOtherLinker(
-                new Message(
-                        MessageType.REGISTER_SERVICE_FROM_LINKER,
-                        outputStream.toByteArray()
-                ),
-                packet
-        );
+            if (!evictService(service)) {
+                // Still within what was observed for this service, give it another chance
+                probeService(service);
+            }
+        });
 
-        System.out.println("[i] Services:");
-        printServices();
+        return true;
     }
 
     /**
-     * Handle register service when it comes from a linker
+     * Remove a service that did not answer, if its suspicion level reached the threshold
      *
-     * @param message
-     * @param packet
+     * @param service
+     * @return false if the service is still trusted
      * @throws IOException
      */
-    private void handleLinkerRegisterService(Message message, DatagramPacket packet) throws IOException {
-        try {
-            // We read the [service type | machine address]
-            byte[] buff = new byte[message.getPayload().length - 1];
-            System.arraycopy(message.getPayload(), 1, buff, 0, message.getPayload().length - 1);
-            MachineAddress ma = MachineAddress.fromByteArray(buff);
-            packet.setAddress(ma.getAddress());
-            packet.setPort(ma.getPort());
-
-            ServiceType serviceType = ServiceType.values()[message.getPayload()[0]];
-
-            // We rebuild the payload message just with the type
-            // (because the address is now used in the socket, it's to avoid duplication)
-            message.setPayload(
-                    new byte[]{ serviceType.getType() }
-            );
-            handleRegisterService(message, packet);
+    private boolean evictService(MachineAddress service) throws IOException {
+        Endpoint endpoint = services.get(service);
+        if (endpoint == null) {
+            // Already removed
+            return true;
+        }
 
-            System.out.println("[i] Services:");
-            printServices();
-        } catch (ClassNotFoundException e) {
-            System.out.println("[i] Message malformed");
+        double phi = endpoint.getPhi(EventLoop.now());
+        if (phi < phiThreshold) {
+            System.out.println("[i] Service " + service + " did not answer but is still trusted (phi "
+                    + String.format("%.1f", phi) + ")");
+            return false;
         }
+
+        // Service is down
+        System.out.println("[i] Service is down indeed (phi " + String.format("%.1f", phi) + ")");
+
+        retireService(service);
+        return true;
     }
 
     /**
-     * Handle service, used by both handleLinkerRegisterService and handleFirstRegisterService methods
+     * Send a PING to a service
      *
-     * @param message
-     * @param packet
+     * @param service
+     * @param sequence id, echoed by the service in its PONG
      * @throws IOException
      */
-    private void handleRegisterService(Message message, DatagramPacket packet) throws IOException {
-        ServiceType serviceType = ServiceType.values()[message.getPayload()[0]];
+    private void sendPing(MachineAddress service, int sequence) throws IOException {
+        // [sequence id]
+        ByteBuffer out = SEND.acquire();
+        int start = MessageCodec.beginFrame(out, MessageType.PING);
+        out.putInt(sequence);
+        MessageCodec.endFrame(out, start);
+
+        loop().send(out, service);
+    }
 
-        System.out.println("[i] Register service (" + serviceType + ")");
+    /**
+     * Ask a linker for the changes of its table since the last version applied to ours
+     *
+     * @param linker
+     * @throws IOException
+     */
+    private void requestTable(MachineAddress linker) throws IOException {
+        requestTable(linker, 1);
+    }
 
-        // If the set is empty, we create the new set
-        if (!services.containsKey(serviceType)) {
-            Set<MachineAddress> set = new HashSet<>();
-            services.put(serviceType, set);
-        }
+    /**
+     * @param linker
+     * @param attempt number of the request, the table is asked again while it does not come in full
+     * @throws IOException
+     */
+    private void requestTable(MachineAddress linker, int attempt) throws IOException {
+        long[] synced = syncedVersions.get(linker);
 
-        // We add the machine to the set
-        MachineAddress newService = new MachineAddress(
-                packet.getAddress().getHostAddress(),
-                packet.getPort()
-        );
-        services.get(serviceType).add(newService);
+        // [epoch | last version seen], epoch 0 for the whole table
+        ByteBuffer out = SEND.acquire();
+        int start = MessageCodec.beginFrame(out, MessageType.REQUEST_LINKERS_TABLE);
+        out.putLong(synced == null ? 0 : synced[0]);
+        out.putLong(synced == null ? 0 : synced[1]);
+        MessageCodec.endFrame(out, start);
+
+        loop().send(out, linker);
+
+        tableSync.requested(linker, EventLoop.now());
+        awaitTable(linker, attempt);
     }
 
     /**
-     * Handle request service request
+     * Ask the table again if its transfer got no chunk within the timeout of the linker (the request or a chunk
+     * was lost), at most TABLE_ATTEMPTS times
      *
-     * @param message
-     * @param packet
-     * @throws IOException
+     * @param linker
+     * @param attempt
      */
-    private void handleRequestService(Message message, DatagramPacket packet) throws IOException {
-        ServiceType serviceType = ServiceType.values()[message.getPayload()[0]];
+    private void awaitTable(MachineAddress linker, int attempt) {
+        long timeout = rtt.timeout(linker);
+        loop().schedule(timeout, () -> {
+            if (!tableSync.stalled(linker, EventLoop.now(), timeout)) {
+                if (tableSync.inProgress(linker)) {
+                    awaitTable(linker, attempt);
+                }
+            } else if (attempt < TABLE_ATTEMPTS && linkers.contains(linker)) {
+                System.out.println("[i] Table of linker " + linker + " incomplete, asked again");
+                requestTable(linker, attempt + 1);
+            } else {
+                System.out.println("[i] Table of linker " + linker + " incomplete, given up");
+            }
+        });
+    }
 
-        if (!services.isEmpty()) {
-            System.out.println("[>] A client asked for a service (" + serviceType.name() + ")");
-            if (services.containsKey(serviceType)) {
-                System.out.println(serviceType);
+    /**
+     * Handle a chunk of the table of another linker, the table is applied once all its chunks are received
+     *
+     * @param message
+     * @param sender
+     */
+    private void handleTableChunk(Message message, InetSocketAddress sender) {
+        if (!peers.containsKey(sender)) {
+            return;
+        }
 
-                Set<MachineAddress> specificServices = services.get(serviceType);
+        try {
+            TableSync.Table table = tableSync.accept(sender, ByteBuffer.wrap(message.getPayload()), EventLoop.now());
+            if (table == null) {
+                return;
+            }
 
-                System.out.println("[i] There are currently " + specificServices.size() + " services of type: " + serviceType.name());
+            // The newest change of each service wins, as with the gossip
+            clock.observe(table.getTime());
+            Set<MachineAddress> listed = table.isSnapshot() ? new HashSet<>() : null;
+            for (ChangeLog.Change change : table.getChanges()) {
+                long version = change.getServiceVersion();
+                clock.observe(version);
 
-                if (specificServices.size() <= 0) {
-                    System.out.println("[i] No service available");
-                    // We cannot response, the client will ask again soon.
-                    return;
+                if (change.isRemoval()) {
+                    removeService(change.getAddress(), change.getType(), version);
+                    continue;
                 }
+                if (listed != null) {
+                    listed.add(change.getAddress());
+                }
+                if (isOwner(change.getAddress())) {
+                    handleRegisterService(change.getType(), change.getAddress(), change.getWeight(), change.getLease(),
+                            version);
+                }
+            }
+            if (listed != null) {
+                reconcile(new MachineAddress(sender), listed, table.getTime());
+            }
 
-                MachineAddress randomService = getAny(specificServices);
+            syncedVersions.put(new MachineAddress(sender), new long[]{table.getEpoch(), table.getVersion()});
+            warm();
 
-                // Send the address of one of the specific service
-                packet.setData(new Message(
-                        MessageType.RESPONSE,
-                        randomService.toByteArray()
-                ).toByteArray());
+            System.out.println("[i] Got services table (" + (table.isSnapshot() ? "snapshot" : "changes")
+                    + ", " + table.getChanges().size() + " entries, version " + table.getVersion() + ")");
+            printServices();
+        } catch (IOException | ClassNotFoundException | RuntimeException e) {
+            System.out.println("[i] Malformed table chunk");
+        }
+    }
 
-                System.out.println("[i] Send service address to client");
-                socket.send(packet);
+    /**
+     * Remove the services missing from the snapshot of a linker, that it should know: registered before it read its
+     * table (older than its time) and, when the table is partitioned, owned by it too. They are not removed
+     * elsewhere (no tombstone): the sender may only have missed them, and their next renewal adds them again.
+     *
+     * @param linker
+     * @param listed services of the snapshot
+     * @param time hybrid clock of the linker when it read its table
+     */
+    private void reconcile(MachineAddress linker, Set<MachineAddress> listed, long time) {
+        List<MachineAddress> missing = new ArrayList<>();
+        services.forEach((type, endpoints) -> {
+            for (Endpoint endpoint : endpoints) {
+                MachineAddress service = endpoint.getAddress();
+                if (!listed.contains(service) && endpoint.getVersion() <= time && ownedBy(service, linker)) {
+                    missing.add(service);
+                }
             }
+        });
+
+        for (MachineAddress service : missing) {
+            System.out.println("[i] Service " + service + " not in the table of linker " + linker + ", removed");
+            removeService(service);
         }
     }
 
     /**
-     * Warn all other linkers that the given service is down
+     * Measure the round-trip time of a node from the PING its PONG answers
      *
-     * @param serviceDownMachineAddress
-     * @param message
-     * @param packet
-     * @throws IOException
+     * @param node
+     * @param sequence sequence id echoed in the PONG
      */
-    private void warnOtherLinkers(MachineAddress serviceDownMachineAddress, Message message, DatagramPacket packet) throws IOException {
-        sendToOtherLinker(
-                new Message(
-                    MessageType.REMOVE_SERVICE,
-                        serviceDownMachineAddress.toByteArray()
-                ),
-                packet
-        );
+    private void sampleRoundTrip(MachineAddress node, int sequence) {
+        long roundTrip = probes.roundTrip(sequence, EventLoop.now());
+        if (roundTrip >= 0) {
+            rtt.sample(node, roundTrip);
+        }
     }
 
     /**
-     * Helper to send a specific message to all linkers (except itself)
+     * Handle the answer of a service to a PING
      *
      * @param message
-     * @param packet
-     * @throws IOException
+     * @param sender
      */
-    private void sendToOtherLinker(Message message, DatagramPacket packet) throws IOException {
-        byte[] buff = new byte[512];
+    private void handlePong(Message message, InetSocketAddress sender) {
+        byte[] payload = message.getPayload();
+
+        if (peers.containsKey(sender)) {
+            // Answer of another linker (already recorded by dispatch): [sequence id | gossip]
+            if (payload != null && payload.length >= Integer.BYTES) {
+                ByteBuffer buffer = ByteBuffer.wrap(payload);
+                sampleRoundTrip(new MachineAddress(sender), buffer.getInt());
+                applyGossip(buffer);
+            }
+            return;
+        }
 
-        for (MachineAddress linker : linkers) {
-            packet = new DatagramPacket(buff, buff.length, linker.getAddress(), linker.getPort());
+        MachineAddress service = new MachineAddress(sender);
 
-            packet.setData(message.toByteArray());
+        Endpoint endpoint = services.get(service);
+        if (endpoint != null) {
+            endpoint.seen(EventLoop.now());
+        }
+
+        // [sequence id | load], services of the previous versions answer with an empty PONG
+        int sequence = -1;
+        if (payload != null && payload.length >= Integer.BYTES) {
+            ByteBuffer buffer = ByteBuffer.wrap(payload);
+            sequence = buffer.getInt();
+            sampleRoundTrip(service, sequence);
+            updateLoad(service, LoadReport.readFrom(buffer));
+        }
 
-            socket.send(packet);
+        if (probes.answer(service, sequence) != null) {
+            System.out.println("[i] Service is alive");
         }
     }
 
     /**
-     * Handle remove service message from a linker, no need to check
+     * Answer the PING of another linker, echoing its sequence id with our own pending changes
      *
      * @param message
-     * @param packet
+     * @param sender
+     * @throws IOException
      */
-    private void handleRemoveService(Message message, DatagramPacket packet) {
-        try {
-            MachineAddress service = MachineAddress.fromByteArray(message.getPayload());
-            removeService(service);
-        } catch (IOException e) {
-            e.printStackTrace();
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
+    private void handlePing(Message message, InetSocketAddress sender) throws IOException {
+        // [sequence id | gossip]
+        byte[] payload = message.getPayload();
+        int sequence = -1;
+        if (payload != null && payload.length >= Integer.BYTES) {
+            ByteBuffer buffer = ByteBuffer.wrap(payload);
+            sequence = buffer.getInt();
+            if (peers.containsKey(sender)) {
+                applyGossip(buffer);
+            }
         }
+
+        ByteBuffer out = SEND.acquire();
+        int start = MessageCodec.beginFrame(out, MessageType.PONG);
+        out.putInt(sequence);
+        if (peers.containsKey(sender)) {
+            gossip.writeTo(out, linkers.size() + 1);
+        }
+        MessageCodec.endFrame(out, start);
+
+        loop().send(out, sender);
     }
 
     /**
-     * Handle the request table message and send all services to the linker
+     * Handle the periodic heartbeat of a service, carrying its load, and acknowledge it: a service whose
+     * heartbeats are not acknowledged registers with another linker
      *
      * @param message
-     * @param packet
+     * @param sender
+     * @throws IOException
      */
-    private void handleRequestTable(Message message, DatagramPacket packet) {
-        try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            ObjectOutputStream out = new ObjectOutputStream(baos);
-            out.writeObject(services);
-
-            message = new Message(
-                    MessageType.LINKERS_TABLE,
-                    baos.toByteArray()
-            );
+    private void handleHeartbeat(Message message, InetSocketAddress sender) throws IOException {
+        handleHeartbeat(message, sender, false);
+    }
 
-            packet.setData(message.toByteArray());
+    /**
+     * @param message
+     * @param sender
+     * @param routed whether the heartbeat was forwarded by another linker (never forwarded again)
+     * @throws IOException
+     */
+    private void handleHeartbeat(Message message, InetSocketAddress sender, boolean routed) throws IOException {
+        // [service type | load]
+        ByteBuffer payload = ByteBuffer.wrap(message.getPayload());
+        payload.get();
+
+        MachineAddress service = new MachineAddress(sender);
+        updateLoad(service, LoadReport.readFrom(payload));
+
+        // The heartbeat renews the lease, the renewal is gossiped twice per lease
+        Endpoint endpoint = services.get(service);
+        if (endpoint != null) {
+            long now = EventLoop.now();
+            endpoint.renewLease(0, now);
+
+            if (endpoint.shouldGossipLease(now)) {
+                shareRegistration(endpoint);
+            }
 
-            System.out.println("[i] Send service address to client");
-            socket.send(packet);
-        } catch (IOException e) {
-            e.printStackTrace();
+            ByteBuffer out = SEND.acquire();
+            MessageCodec.encodeEmpty(out, MessageType.ACK);
+            loop().send(out, sender);
+        } else if (!routed) {
+            // The service was moved to another owner since it registered here
+            routeToOwner(service, message, sender);
         }
     }
 
     /**
-     * Ask every linker for the services table until an answer is received.
-     * If not, this linker is the first one to be launched.
+     * Store the load reported by a service next to its endpoint
+     *
+     * @param service
+     * @param report
      */
-    @SuppressWarnings("unchecked")
-    private void askTableService() {
-        byte[] buff = new byte[512];
-
-        for (MachineAddress linker : linkers) {
-            try {
+    private void updateLoad(MachineAddress service, LoadReport report) {
+        Endpoint endpoint = services.get(service);
 
-                // Ask for the table of services
-                DatagramPacket packet = new DatagramPacket(buff, buff.length, linker.getAddress(), linker.getPort());
-                packet.setData(new Message(
-                        MessageType.REQUEST_LINKERS_TABLE,
-                        null
-                ).toByteArray());
+        if (endpoint != null && report != null) {
+            endpoint.report(report, EventLoop.now());
 
-                socket.send(packet);
-
-                socket.setSoTimeout(1000);
-                try {
+            if (VERBOSE) {
+                System.out.println("[i] Load of " + service + ": " + report);
+            }
+        }
+    }
 
-                    byte[] buff2 = new byte[2048];
-                    packet = new DatagramPacket(buff2, buff2.length, linker.getAddress(), linker.getPort());
-                    socket.receive(packet);
+    /**
+     * Remove the given service from the list
+     *
+     * @param deadService
+     */
+    private void removeService(MachineAddress deadService) {
+        services.remove(deadService);
+        rtt.forget(deadService);
 
-                    try {
-                        System.out.println(buff.toString());
-                        System.out.println(buff.length);
+        System.out.println("[i] Updated services list");
+        printServices();
+    }
 
-                        Message message = Message.fromByteArray(buff2);
+    /**
+     * Remove the given service unless it registered again after its removal, and remember the removal
+     *
+     * @param deadService
+     * @param type type of the service, if it is not registered here (null if not known)
+     * @param version version of the removal (see HybridClock)
+     * @return whether the service was removed
+     */
+    private boolean removeService(MachineAddress deadService, ServiceType type, long version) {
+        Endpoint endpoint = services.get(deadService);
+        if (endpoint != null && endpoint.getVersion() > version) {
+            return false;
+        }
 
-                        if (message.getMessageType() == MessageType.LINKERS_TABLE) {
-                            System.out.println("[i] Got services table");
+        tombstones.add(endpoint != null ? endpoint.getType() : type, deadService, version);
+        if (endpoint == null) {
+            return false;
+        }
+        removeService(deadService);
+        return true;
+    }
 
-                            try (ByteArrayInputStream bais = new ByteArrayInputStream(message.getPayload())) {
-                                try (ObjectInputStream ois = new ObjectInputStream(bais)) {
-                                    Object o1 = ois.readObject();
-                                    ois.close();
-                                    this.services = (Map<ServiceType, Set<MachineAddress>>) o1;
+    /**
+     * A new linker asks to join: add it, gossip its arrival and send it the members
+     *
+     * @param message
+     * @param sender
+     * @throws IOException
+     */
+    private void handleJoin(Message message, InetSocketAddress sender) throws IOException {
+        MachineAddress joining = new MachineAddress(sender);
 
-                                    System.out.println("[i] Updated list");
-                                    this.printServices();
-                                    return;
-                                }
-                            }
-                        }
+        if (addLinker(joining)) {
+            gossip.joined(joining);
+            gossipChanged();
+        }
+        sendMembers(joining, sender);
+    }
 
-                    } catch (ClassNotFoundException e) {
-                        System.out.println("[i] Malformed packet, ask the next linker");
-                        continue;
-                    }
+    /**
+     * A linker removed from the members (down for too long, or gone) sent a message: it is back, admit it again
+     * as if it joined. It may not join by itself, e.g. a linker of linkers.txt that restarted.
+     *
+     * @param linker
+     * @param sender
+     * @throws IOException
+     */
+    private void readmitLinker(MachineAddress linker, InetSocketAddress sender) throws IOException {
+        if (!addLinker(linker)) {
+            return;
+        }
+        System.out.println("[i] Linker " + linker + " is back, admitted again");
 
-                } catch (SocketTimeoutException e) {
-                    System.out.println("[i] Timeout, ask the next linker");
-                    continue;
-                }
+        // Newer than the departure gossiped, which the linker may never receive to refute it
+        gossip.joined(linker);
+        gossipChanged();
+        sendMembers(linker, sender);
+    }
 
-            } catch (IOException e) {
-                e.printStackTrace();
+    /**
+     * Send the members to a linker that joined
+     *
+     * @param joining
+     * @param sender
+     * @throws IOException
+     */
+    private void sendMembers(MachineAddress joining, InetSocketAddress sender) throws IOException {
+        // [address of the new linker, as seen from here | members], in as many datagrams as needed
+        List<MachineAddress> members = members();
+        int sent = 0;
+        do {
+            ByteBuffer out = SEND.acquire();
+            int start = MessageCodec.beginFrame(out, MessageType.LINKER_MEMBERS);
+            joining.writeTo(out);
+            int written = MemberList.write(out, members, sent);
+            MessageCodec.endFrame(out, start);
+
+            loop().send(out, sender);
+            if (written == 0) {
+                break;
             }
-        }
+            sent += written;
+        } while (sent < members.size());
     }
 
     /**
-     * Send new list of services to other linkers
+     * A seed answered the join: learn the address of this linker and the members, then ask for the services table.
+     * The members may come in several datagrams, each one adds its members.
      *
      * @param message
-     * @param packet
+     * @param sender
      * @throws IOException
      */
-    private void handleServiceDown(Message message, DatagramPacket packet) throws IOException {
-        System.out.println("[i] Service down !");
-
-        // Send an ACK to the client to show that we received the request
-        packet.setData(new Message(
-                MessageType.ACK,
-                null
-        ).toByteArray());
-        socket.send(packet);
+    private void handleMembers(Message message, InetSocketAddress sender) throws IOException {
+        if (message.getPayload() == null) {
+            return;
+        }
 
+        List<MachineAddress> members;
+        MachineAddress address;
         try {
-            MachineAddress possibleDeadService = MachineAddress.fromByteArray(message.getPayload());
-
-            byte[] buff = new byte[512];
-            DatagramPacket tempPacket = new DatagramPacket(
-                    buff, buff.length, possibleDeadService.getAddress(), possibleDeadService.getPort());
+            ByteBuffer payload = ByteBuffer.wrap(message.getPayload());
+            address = MachineAddress.readFrom(payload);
+            members = MemberList.read(payload);
+        } catch (IOException | ClassNotFoundException e) {
+            System.out.println("[i] Malformed members list");
+            return;
+        }
 
-            tempPacket.setData(new Message(
-                    MessageType.PING,
-                    null
-            ).toByteArray());
+        if (self == null) {
+            self = address;
+            membersChanged();
+        }
+        for (MachineAddress member : members) {
+            addLinker(member);
+        }
 
-            try {
-                System.out.println("[i] Send a PING to the service");
-                socket.send(tempPacket);
+        if (!joined) {
+            joined = true;
+            System.out.println("[i] Joined as " + self + " through " + sender + " (" + (linkers.size() + 1) + " linkers)");
+            askTableService();
+        }
+    }
 
-                socket.setSoTimeout(1000);
-                socket.receive(tempPacket);
-            } catch (SocketTimeoutException socketEx) {
-                // Service is down
-                System.out.println("[i] Service is down indeed");
+    /**
+     * A linker is shutting down: remove it and gossip its departure
+     *
+     * @param message
+     * @param sender
+     * @throws IOException
+     */
+    private void handleLeave(Message message, InetSocketAddress sender) throws IOException {
+        MachineAddress leaving = new MachineAddress(sender);
 
-                removeService(possibleDeadService);
-                warnOtherLinkers(possibleDeadService, message, packet);
-                socket.setSoTimeout(0);
-            }
-        } catch (ClassNotFoundException e) {
-            System.out.println("[i] Error, invalid packet");
+        if (removeLinker(leaving)) {
+            gossip.left(leaving);
+            gossipChanged();
+        }
+    }
 
-            socket.setSoTimeout(0);
+    /**
+     * Ask the seeds, one after the other, to join the linkers until one of them answers.
+     * Scheduled on the loop, not blocking: only the delays of the RetryScheduler are used.
+     *
+     * @param seeds
+     * @param attempt
+     * @throws IOException
+     */
+    private void join(List<MachineAddress> seeds, int attempt) throws IOException {
+        if (joined) {
             return;
         }
+
+        MachineAddress seed = seeds.get(attempt % seeds.size());
+        System.out.println("[i] Ask " + seed + " to join the linkers");
+        loop().send(new Message(MessageType.LINKER_JOIN, null).toByteArray(), seed);
+
+        // Backoff with jitter, the linkers restarted together do not ask the seeds at once
+        loop().schedule(rtt.timeout(seed) + joinRetry.delay(attempt + 1), () -> join(seeds, attempt + 1));
     }
 
     /**
-     * Remove the given service from the list
-     *
-     * @param deadService
+     * Tell the other linkers that this linker is leaving, so that they do not wait for it to time out
      */
-    private void removeService(MachineAddress deadService) {
-        services.forEach((a, list) -> {
-            if (list.contains(deadService)) {
-                list.remove(deadService);
+    private void leave() {
+        try {
+            byte[] bytes = new Message(MessageType.LINKER_LEAVE, null).toByteArray();
+            for (MachineAddress linker : linkers) {
+                loops[0].send(bytes, linker);
             }
-        });
-
-        System.out.println("[i] Updated services list");
-        printServices();
+        } catch (IOException e) {
+            System.out.println("[i] Could not tell the other linkers that this linker is leaving");
+        }
     }
 
     /**
-     * Listen for new messages from clients or services
+     * Handle a message of a client or a service forwarded by another linker, as if it was sent directly
      *
+     * @param message
+     * @param sender
      * @throws IOException
-     * @throws ClassNotFoundException
      */
-    public void listen() throws IOException, ClassNotFoundException {
-        byte[] buff = new byte[1024];
-
-        DatagramPacket packet;
+    private void handleRoute(Message message, InetSocketAddress sender) throws IOException {
+        if (!peers.containsKey(sender)) {
+            return;
+        }
 
-        Message message;
+        Message routed;
+        MachineAddress origin;
+        int hops;
+        try {
+            // [hops | origin | message type | payload]
+            ByteBuffer payload = ByteBuffer.wrap(message.getPayload());
+            hops = payload.get() & 0xFF;
+            origin = MachineAddress.readFrom(payload);
+            MessageType type = MessageType.values()[payload.get()];
+            routed = new Message(type, Arrays.copyOfRange(payload.array(), payload.position(), payload.limit()));
+        } catch (IOException | ClassNotFoundException | RuntimeException e) {
+            System.out.println("[i] Malformed routed message");
+            return;
+        }
 
-        // Listen for new messages
-        System.out.println("[i] Listen for new messages (on " + socket.getLocalSocketAddress() + ")...");
-
-        while (true) {
-            // Reset packet before reuse
-            packet = new DatagramPacket(buff, buff.length);
-            socket.setSoTimeout(0); // Be sure to listen for ever
-            socket.receive(packet);
-
-            // Continue, even if the packet is corrupted and cannot be unserialized
-            try {
-                message = Message.fromByteArray(buff);
-            } catch (EOFException e) {
-                System.out.println("[i] Message could not be decoded !");
-                e.printStackTrace();
-                continue;
-            }
+        switch (routed.getMessageType()) {
+            case REQUEST_SERVICE:
+                handleRequestService(routed, origin, hops);
+                break;
+            case REGISTER_SERVICE:
+                registerService(routed, origin);
+                break;
+            case HEARTBEAT:
+                handleHeartbeat(routed, origin, true);
+                break;
+            case SERVICE_DOWN:
+                try {
+                    probeService(MachineAddress.fromByteArray(routed.getPayload()));
+                } catch (ClassNotFoundException e) {
+                    System.out.println("[i] Error, invalid packet");
+                }
+                break;
+            default:
+                System.out.println("[i] Cannot handle a routed " + routed.getMessageType());
+        }
+    }
 
-            // DEBUG
-            System.out.println("New message [" + packet.getAddress().getHostName() + ":" + packet.getPort() + "]");
+    /**
+     * Dispatch a message received by the loop
+     *
+     * @param message
+     * @param sender
+     * @throws IOException
+     */
+    private void dispatch(Message message, InetSocketAddress sender) throws IOException {
+        // DEBUG
+        if (VERBOSE) {
+            System.out.println("New message [" + sender.getAddress().getHostAddress() + ":" + sender.getPort() + "]");
             System.out.println(message);
+        }
+
+        // Any message of another linker is a sign of life
+        PhiAccrualDetector peer = peers.get(sender);
+        if (peer == null && knownLinkers.contains(sender)) {
+            readmitLinker(new MachineAddress(sender), sender);
+            peer = peers.get(sender);
+        }
+        if (peer != null) {
+            long now = EventLoop.now();
 
-            switch (message.getMessageType()) {
-                case REGISTER_SERVICE:
-                    handleFirstRegisterService(message, packet);
-                    break;
-                case REGISTER_SERVICE_FROM_LINKER:
-                    handleLinkerRegisterService(message, packet);
-                    break;
-                case REQUEST_SERVICE:
-                    handleRequestService(message, packet);
-                    break;
-                case SERVICE_DOWN:
-                    handleServiceDown(message, packet);
-                    break;
-                case REMOVE_SERVICE:
-                    handleRemoveService(message, packet);
-                    break;
-                case REQUEST_LINKERS_TABLE:
-                    handleRequestTable(message, packet);
-                    break;
-                default:
-                    System.out.println("> Got an unknown message !");
+            if (peer.isSuspected(now, phiThreshold)) {
+                // Back after a partition or a restart, catch up with the changes made in the meantime
+                System.out.println("[i] Linker " + sender + " is back, ask for its changes");
+                requestTable(new MachineAddress(sender));
             }
+            peer.heartbeat(now);
+        }
+
+        switch (message.getMessageType()) {
+            case PING:
+                handlePing(message, sender);
+                break;
+            case REGISTER_SERVICE:
+                handleFirstRegisterService(message, sender);
+                break;
+            case REGISTER_SERVICE_FROM_LINKER:
+                handleLinkerRegisterService(message, sender);
+                break;
+            case REQUEST_SERVICE:
+                handleRequestService(message, sender);
+                break;
+            case SERVICE_DOWN:
+                handleServiceDown(message, sender);
+                break;
+            case PONG:
+                handlePong(message, sender);
+                break;
+            case HEARTBEAT:
+                handleHeartbeat(message, sender);
+                break;
+            case REMOVE_SERVICE:
+                handleRemoveService(message, sender);
+                break;
+            case REQUEST_LINKERS_TABLE:
+                handleRequestTable(message, sender);
+                break;
+            case LINKERS_TABLE:
+                handleLinkersTable(message, sender);
+                break;
+            case TABLE_CHUNK:
+                handleTableChunk(message, sender);
+                break;
+            case LINKER_JOIN:
+                handleJoin(message, sender);
+                break;
+            case LINKER_MEMBERS:
+                handleMembers(message, sender);
+                break;
+            case LINKER_LEAVE:
+                handleLeave(message, sender);
+                break;
+            case ROUTE:
+                handleRoute(message, sender);
+                break;
+            case ENTROPY_ROOTS:
+                handleEntropyRoots(message, sender);
+                break;
+            case ENTROPY_LEAVES:
+                handleEntropyLeaves(message, sender);
+                break;
+            case ENTROPY_BUCKETS:
+                handleEntropyBuckets(message, sender);
+                break;
+            case RELIABLE:
+                if (peers.containsKey(sender)) {
+                    reliable.receive(message.getPayload(), sender, this::dispatch);
+                }
+                break;
+            case RELIABLE_ACK:
+                reliable.acknowledged(message.getPayload(), sender);
+                break;
+            default:
+                System.out.println("> Got an unknown message !");
         }
     }
 
     /**
-     * Helper to get a random service from the list
+     * Listen for new messages from clients or services
+     * The first worker runs on the calling thread, the others on their own thread
      *
-     * @param services
-     * @return
+     * @throws IOException
      */
-    public static MachineAddress getAny(final Set<MachineAddress> services) {
-        int num = (int) (Math.random() * services.size());
-        for (MachineAddress ma : services) if (--num < 0) return ma;
-        throw new AssertionError();
+    public void listen() throws IOException {
+        // Listen for new messages
+        System.out.println("[i] Listen for new messages (on " + loops[0].getLocalAddress() + ", "
+                + loops.length + " workers)...");
+
+        for (int i = 1; i < loops.length; i++) {
+            EventLoop worker = loops[i];
+            Thread thread = new Thread(() -> {
+                try {
+                    worker.run();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, "linker-worker-" + i);
+            thread.start();
+        }
+
+        loops[0].run();
     }
 
     /**
      * Helper to print the list of current services
      */
     private void printServices() {
-        services.forEach((m, a) -> System.out.println("- " + a));
+        services.forEach((type, endpoints) -> System.out.println("- " + type + " " + Arrays.toString(endpoints)));
     }
 
     /**
@@ -511,24 +2513,66 @@ public class Linker {
         System.out.println("- Linker -");
 
         if (args.length < 1) {
-            System.out.println("Usage: java linker <linker id>");
-            System.out.println("Note: <linker id> is the line number in linkers.txt");
+            System.out.println("Usage: java linker <linker id> [workers=<number of workers>] [balancer=<strategy>]");
+            System.out.println("       java linker port=<port> seed=<host:port>[,<host:port>...] [options]");
+            System.out.println("<strategy> can be 'random', 'round-robin', 'weighted', 'p2c' or 'least-outstanding'");
+            System.out.println("Note: <linker id> is the line number in linkers.txt, seeds are running linkers to join");
             return;
         }
 
-        final int id = Integer.parseInt(args[0]);
+        // Either an id of linkers.txt, or only options to join running linkers
+        final boolean joining = args[0].contains("=");
+        final Options options = Options.parse(args, joining ? 0 : 1);
 
         try {
-            List<MachineAddress> linkers = ConfigReader.read(new File("linkers.txt"));
-            MachineAddress config = linkers.get(id);
-            linkers.remove(id);
-
-            Linker linker = new Linker(config.getPort(), linkers);
+            List<MachineAddress> linkers = new ArrayList<>();
+            List<MachineAddress> seeds = new ArrayList<>();
+            MachineAddress config = null;
+            int port;
+
+            if (joining) {
+                for (String seed : options.getString("seed", "").split(",")) {
+                    String[] token = seed.trim().split(":", 2);
+                    if (token.length == 2) {
+                        seeds.add(new MachineAddress(token[0], Integer.parseInt(token[1])));
+                    }
+                }
+                if (seeds.isEmpty()) {
+                    System.out.println("[i] No seed to join, give seed=<host:port>");
+                    return;
+                }
+                port = options.getInt("port", 0);
+            } else {
+                final int id = Integer.parseInt(args[0]);
+                linkers = ConfigReader.read(new File("linkers.txt"));
+                config = linkers.get(id);
+                linkers.remove(id);
+                port = config.getPort();
+            }
 
-            linker.askTableService();
+            Linker linker = new Linker(port, linkers, options.getInt("workers", 1));
+            linker.setSelf(config);
+            linker.configureBalancers(options);
+            linker.configureLookups(options);
+            linker.configureFailureDetection(options);
+            linker.configureHeartbeats(options);
+            linker.configureLeases(options);
+            linker.configureStore(options);
+            linker.configurePartitioning(options);
+            linker.configureAntiEntropy(options);
+            linker.configureReliability(options);
+            linker.configureTimeouts(options);
+
+            if (joining) {
+                linker.joined = false;
+                linker.loops[0].execute(() -> linker.join(seeds, 0));
+            } else {
+                linker.loops[0].execute(linker::askTableService);
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(linker::leave, "linker-leave"));
             linker.listen();
 
-        } catch (IOException | ClassNotFoundException e) {
+        } catch (IOException e) {
             e.printStackTrace();
         }
     }
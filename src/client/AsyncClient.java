@@ -0,0 +1,424 @@
+package client;
+
+import messages.Message;
+import messages.MessageCodec;
+import messages.MessageType;
+import services.ServiceType;
+import util.BufferPool;
+import util.EventLoop;
+import util.MachineAddress;
+import util.RttTable;
+import util.TimingWheel;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Henrik Akesson
+ * @author Fabien Salathe
+ *
+ * Asynchronous client of the services: requests are sent without waiting for the previous answers.
+ *
+ * Each REQUEST carries a request id (see MessageCodec), echoed by the service in its RESPONSE. All the requests
+ * share one socket, a single receive thread completes the future of the request each response belongs to.
+ * The requests not answered in time are failed with a TimeoutException by a timing wheel (by default, the timeout
+ * is derived from the round-trip times of the service, see RttTable; hedged requests wait for the maximum timeout),
+ * and at most `maxInFlight` requests can wait for an answer: the next ones are rejected (RejectedExecutionException).
+ *
+ * Requests can be hedged (see HedgePolicy): sent to a second service when the first one is slow to answer.
+ *
+ * The futures are completed by the receive thread (responses) or the timer thread (timeouts): long callbacks
+ * should use the async variants of CompletableFuture.
+ *
+ *  client --(request [request id])--> service
+ *         --(request [request id])--> service
+ *         <--(response [request id])--
+ *         <--(response [request id])--
+ *
+ * Thread-safe.
+ */
+public class AsyncClient implements AutoCloseable {
+
+    /**
+     * Precision of the timeouts (ms)
+     */
+    public static final long TICK = 10;
+
+    /**
+     * Request waiting for its response
+     */
+    private static final class Pending {
+        private final int id;
+        private final MachineAddress service;
+        private final CompletableFuture<Message> future = new CompletableFuture<>();
+        private final long sentAt = EventLoop.now();
+        private TimingWheel.Timeout<Pending> timeout;
+
+        private Pending(int id, MachineAddress service) {
+            this.id = id;
+            this.service = service;
+        }
+    }
+
+    private final DatagramSocket socket;
+
+    private final Map<Integer, Pending> pending = new ConcurrentHashMap<>();
+
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    private final Semaphore inFlight;
+
+    private final int maxInFlight;
+
+    private final long defaultTimeout;
+
+    /**
+     * Round-trip times of the services, from which the default timeout of their requests is derived
+     */
+    private final RttTable rtt;
+
+    /**
+     * Deadlines of the requests, guarded by itself (scheduled by the callers, advanced by the timer thread)
+     */
+    private final TimingWheel<Pending> wheel;
+
+    private final ScheduledExecutorService timer;
+
+    private final Thread receiver;
+
+    private volatile boolean closed;
+
+    /**
+     * @param port local port (0 for any)
+     * @param maxInFlight maximum number of requests waiting for a response
+     * @param timeout timeout of a request to a service that never answered, and maximum timeout (ms)
+     * @throws SocketException
+     */
+    public AsyncClient(int port, int maxInFlight, long timeout) throws SocketException {
+        this.socket = new DatagramSocket(port);
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.inFlight = new Semaphore(this.maxInFlight);
+        this.defaultTimeout = Math.max(TICK, timeout);
+        this.rtt = new RttTable(defaultTimeout, 2 * TICK, defaultTimeout);
+
+        // One turn of the wheel covers the default timeout, longer ones wait for several rounds
+        this.wheel = new TimingWheel<>((int) Math.max(1, defaultTimeout / TICK), TICK, EventLoop.now());
+
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "client-timeouts");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timer.scheduleAtFixedRate(this::expire, TICK, TICK, TimeUnit.MILLISECONDS);
+
+        this.receiver = new Thread(this::receive, "client-receiver");
+        this.receiver.setDaemon(true);
+        this.receiver.start();
+    }
+
+    /**
+     * Send a request to a service, with a timeout derived from the round-trip times of the service (see RttTable)
+     *
+     * @param service
+     * @param payload
+     * @return the future response
+     */
+    public CompletableFuture<Message> request(MachineAddress service, byte[] payload) {
+        return request(service, payload, rtt.timeout(service));
+    }
+
+    /**
+     * Send a request to a service
+     *
+     * @param service
+     * @param payload
+     * @param timeout (ms), rounded up to the next tick
+     * @return the future response, failed with a TimeoutException if the service does not answer in time
+     */
+    public CompletableFuture<Message> request(MachineAddress service, byte[] payload, long timeout) {
+        return send(service, payload, timeout).future;
+    }
+
+    /**
+     * Send a request to a service, and the same request to a second service if no response comes within the p95
+     * latency of the type (see HedgePolicy). The first response is used, the other request is dropped.
+     *
+     * @param type
+     * @param primary
+     * @param secondary the service of the hedge, null to never hedge
+     * @param payload
+     * @param policy
+     * @return the future response, failed if none of the requests sent is answered
+     */
+    public CompletableFuture<Message> request(ServiceType type, MachineAddress primary, MachineAddress secondary,
+                                              byte[] payload, HedgePolicy policy) {
+        CompletableFuture<Message> result = new CompletableFuture<>();
+        List<Pending> sent = new CopyOnWriteArrayList<>();
+        // Requests sent and not failed yet: the result fails with the last one
+        AtomicInteger alive = new AtomicInteger(1);
+
+        // The request that lost is dropped, its late response is ignored. Registered first: a hedge sent after it ran
+        // is dropped by the timer below
+        result.whenComplete((response, error) -> {
+            for (Pending request : sent) {
+                drop(request);
+            }
+        });
+
+        policy.requested();
+        sent.add(hedgeable(type, primary, payload, policy, result, alive));
+
+        long delay = secondary == null ? -1 : policy.delay(type);
+        if (delay >= 0 && !result.isDone()) {
+            try {
+                timer.schedule(() -> {
+                    if (result.isDone() || !policy.tryHedge()) {
+                        return;
+                    }
+                    alive.incrementAndGet();
+                    Pending hedge = hedgeable(type, secondary, payload, policy, result, alive);
+                    sent.add(hedge);
+                    if (result.isDone()) {
+                        // Answered while the hedge was sent, the cancellation may not have seen it
+                        drop(hedge);
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Closed in the meantime, the request is failed
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Drop a request of a hedged request once the other one answered
+     *
+     * @param request
+     */
+    private void drop(Pending request) {
+        complete(request, null, new CancellationException("Answered by another service"));
+    }
+
+    /**
+     * Send one of the requests of a hedged request
+     *
+     * @param type
+     * @param service
+     * @param payload
+     * @param policy
+     * @param result
+     * @param alive
+     * @return
+     */
+    private Pending hedgeable(ServiceType type, MachineAddress service, byte[] payload, HedgePolicy policy,
+                              CompletableFuture<Message> result, AtomicInteger alive) {
+        long sentAt = System.nanoTime();
+        // Not the timeout derived from the round-trip times: the slow responses are the ones the hedge is for, and
+        // the request must not fail before its hedge is sent
+        Pending request = send(service, payload, defaultTimeout);
+
+        request.future.whenComplete((response, error) -> {
+            if (error == null) {
+                policy.record(type, System.nanoTime() - sentAt);
+                result.complete(response);
+            } else if (alive.decrementAndGet() == 0) {
+                result.completeExceptionally(error);
+            }
+        });
+        return request;
+    }
+
+    /**
+     * Send a request, tracked until its response or its timeout
+     *
+     * @param service
+     * @param payload
+     * @param timeout
+     * @return
+     */
+    private Pending send(MachineAddress service, byte[] payload, long timeout) {
+        if (closed) {
+            return failed(service, new SocketException("Client closed"));
+        }
+        if (!inFlight.tryAcquire()) {
+            return failed(service, new RejectedExecutionException("Too many requests in flight (" + maxInFlight + ")"));
+        }
+
+        Pending request = new Pending(newId(), service);
+        pending.put(request.id, request);
+
+        synchronized (wheel) {
+            request.timeout = wheel.schedule(request, timeout);
+        }
+
+        try {
+            ByteBuffer out = BufferPool.SEND.acquire();
+            MessageCodec.encode(new Message(MessageType.REQUEST, payload, request.id), out);
+            socket.send(new DatagramPacket(out.array(), out.position(), service.getAddress(), service.getPort()));
+        } catch (IOException e) {
+            complete(request, null, e);
+        }
+
+        return request;
+    }
+
+    /**
+     * Number of requests waiting for a response
+     *
+     * @return
+     */
+    public int inFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    public int getLocalPort() {
+        return socket.getLocalPort();
+    }
+
+    /**
+     * Close the socket, the requests still in flight are failed
+     */
+    @Override
+    public void close() {
+        closed = true;
+        socket.close();
+        timer.shutdownNow();
+
+        SocketException error = new SocketException("Client closed");
+        for (Pending request : pending.values()) {
+            complete(request, null, error);
+        }
+    }
+
+    /**
+     * Id of the next request, never 0 (uncorrelated messages)
+     *
+     * @return
+     */
+    private int newId() {
+        int id;
+        do {
+            id = nextId.incrementAndGet();
+        } while (id == 0 || pending.containsKey(id));
+        return id;
+    }
+
+    /**
+     * Receive loop: completes the requests with their responses
+     */
+    private void receive() {
+        byte[] buffer = new byte[EventLoop.MAX_DATAGRAM_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+
+        while (!closed) {
+            Message message;
+            try {
+                packet.setData(buffer);
+                socket.receive(packet);
+                message = MessageCodec.decode(ByteBuffer.wrap(buffer, 0, packet.getLength()));
+            } catch (IOException | ClassNotFoundException e) {
+                if (!closed) {
+                    System.out.println("[i] Message could not be decoded !");
+                }
+                continue;
+            }
+
+            if (message.getMessageType() != MessageType.RESPONSE || message.getRequestId() == 0) {
+                continue;
+            }
+
+            Pending request = pending.get(message.getRequestId());
+            if (request == null) {
+                // Late response, the request already timed out
+                continue;
+            }
+            if (!request.service.equals(new MachineAddress((InetSocketAddress) packet.getSocketAddress()))) {
+                // Same id, another service: not the response of this request
+                continue;
+            }
+
+            // Requests are never sent twice, the round-trip time is the one of this request
+            rtt.sample(request.service, EventLoop.now() - request.sentAt);
+
+            complete(request, message, null);
+        }
+    }
+
+    /**
+     * Tick of the timer thread: fail the requests whose timeout expired
+     */
+    private void expire() {
+        long now = EventLoop.now();
+        List<Pending> expired = new ArrayList<>();
+
+        synchronized (wheel) {
+            wheel.advance(now, expired::add);
+        }
+
+        // Completed outside of the lock, the callbacks may send new requests
+        for (Pending request : expired) {
+            rtt.backoff(request.service);
+            complete(request, null, new TimeoutException("No response from " + request.service));
+        }
+    }
+
+    /**
+     * Complete a request once, with its response or an error
+     *
+     * @param request
+     * @param response
+     * @param error
+     */
+    private void complete(Pending request, Message response, Throwable error) {
+        if (!pending.remove(request.id, request)) {
+            return;
+        }
+
+        synchronized (wheel) {
+            if (request.timeout != null) {
+                request.timeout.cancel();
+            }
+        }
+
+        // Given back before the callbacks run, so that they can send the next requests
+        inFlight.release();
+
+        if (error == null) {
+            request.future.complete(response);
+        } else {
+            request.future.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * Request failed before being sent (not tracked)
+     *
+     * @param service
+     * @param error
+     * @return
+     */
+    private static Pending failed(MachineAddress service, Throwable error) {
+        Pending request = new Pending(0, service);
+        request.future.completeExceptionally(error);
+        return request;
+    }
+}
@@ -0,0 +1,91 @@
+package client;
+
+import services.ServiceType;
+import util.MachineAddress;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author Henrik Akesson
+ * @author Fabien Salathe
+ *
+ * Endpoints of each type of service given by a linker, kept by the client until their time to live expires.
+ *
+ * When a service does not answer, the client removes it and goes on with the next cached endpoint,
+ * without asking a linker again. A linker is only asked once the endpoints are all down or expired.
+ *
+ * Thread-safe.
+ */
+public class EndpointCache {
+
+    private static final class Entry {
+        private final List<MachineAddress> endpoints;
+        private final long expires;
+        private int next;
+
+        private Entry(List<MachineAddress> endpoints, long expires) {
+            this.endpoints = endpoints;
+            this.expires = expires;
+        }
+    }
+
+    private final Map<ServiceType, Entry> entries = new EnumMap<>(ServiceType.class);
+
+    /**
+     * Replace the endpoints of a type
+     *
+     * @param type
+     * @param endpoints the first one is the one selected by the linker
+     * @param ttl time to live (ms)
+     * @param now
+     */
+    public synchronized void put(ServiceType type, List<MachineAddress> endpoints, long ttl, long now) {
+        entries.put(type, new Entry(new ArrayList<>(endpoints), now + ttl));
+    }
+
+    /**
+     * Next endpoint of a type, in turn
+     *
+     * @param type
+     * @param now
+     * @return the endpoint, or null if there is none left or they expired
+     */
+    public synchronized MachineAddress next(ServiceType type, long now) {
+        Entry entry = entries.get(type);
+        if (entry == null || entry.endpoints.isEmpty() || now >= entry.expires) {
+            entries.remove(type);
+            return null;
+        }
+
+        MachineAddress endpoint = entry.endpoints.get(entry.next % entry.endpoints.size());
+        entry.next++;
+        return endpoint;
+    }
+
+    /**
+     * Remove an endpoint that did not answer
+     *
+     * @param type
+     * @param endpoint
+     */
+    public synchronized void remove(ServiceType type, MachineAddress endpoint) {
+        Entry entry = entries.get(type);
+        if (entry != null) {
+            entry.endpoints.remove(endpoint);
+        }
+    }
+
+    /**
+     * Number of endpoints cached for a type (expired or not)
+     *
+     * @param type
+     * @return
+     */
+    public synchronized int size(ServiceType type) {
+        Entry entry = entries.get(type);
+        return entry == null ? 0 : entry.endpoints.size();
+    }
+}
@@ -0,0 +1,138 @@
+package client;
+
+import services.ServiceType;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * @author Henrik Akesson
+ * @author Fabien Salathe
+ *
+ * When to hedge a request: if no response comes within the p95 latency of the type of service, the same request is
+ * sent to a second endpoint, and the first response is used.
+ *
+ * The latencies of the last SAMPLES responses of each type are kept, there is no hedging until MIN_SAMPLES are known.
+ * Hedges are paid from a budget: each request earns `budget` tokens (0.05 for 5 % of extra requests) and each hedge
+ * costs one, so the extra load stays bounded even when a whole type of service is slow.
+ *
+ * Thread-safe.
+ */
+public class HedgePolicy {
+
+    /**
+     * Number of latencies kept per type of service
+     */
+    public static final int SAMPLES = 128;
+
+    /**
+     * Number of latencies needed before hedging
+     */
+    public static final int MIN_SAMPLES = 20;
+
+    /**
+     * The percentile is computed again after this number of new latencies
+     */
+    private static final int REFRESH = 16;
+
+    /**
+     * Maximum number of tokens saved, hedges in a row after a quiet period
+     */
+    private static final double MAX_TOKENS = 10;
+
+    /**
+     * Latencies of a type of service
+     */
+    private static final class Latencies {
+        private final long[] samples = new long[SAMPLES];
+        private int count;
+        private int next;
+        private int sinceRefresh;
+        private long p95 = -1;
+    }
+
+    private final Map<ServiceType, Latencies> latencies = new EnumMap<>(ServiceType.class);
+
+    private final double budget;
+
+    private final long minDelay;
+
+    private double tokens;
+
+    private long hedges;
+
+    /**
+     * @param budget extra requests allowed, relative to the requests (0.05 for 5 %)
+     * @param minDelay minimum delay before hedging (ms)
+     */
+    public HedgePolicy(double budget, long minDelay) {
+        this.budget = Math.max(0, budget);
+        this.minDelay = Math.max(1, minDelay);
+    }
+
+    /**
+     * A request is sent: earn the budget of its hedge
+     */
+    public synchronized void requested() {
+        tokens = Math.min(MAX_TOKENS, tokens + budget);
+    }
+
+    /**
+     * Delay after which a request of the type should be hedged
+     *
+     * @param type
+     * @return the delay (ms), or -1 if the latencies of the type are not known yet
+     */
+    public synchronized long delay(ServiceType type) {
+        Latencies known = latencies.get(type);
+        if (known == null || known.p95 < 0) {
+            return -1;
+        }
+        return Math.max(minDelay, (known.p95 + 999_999) / 1_000_000);
+    }
+
+    /**
+     * Take a hedge from the budget
+     *
+     * @return false if the budget is spent, the request must not be hedged
+     */
+    public synchronized boolean tryHedge() {
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        hedges++;
+        return true;
+    }
+
+    /**
+     * Latency of a response
+     *
+     * @param type
+     * @param nanos
+     */
+    public synchronized void record(ServiceType type, long nanos) {
+        Latencies known = latencies.computeIfAbsent(type, t -> new Latencies());
+
+        known.samples[known.next] = nanos;
+        known.next = (known.next + 1) % SAMPLES;
+        known.count = Math.min(SAMPLES, known.count + 1);
+
+        if (known.count >= MIN_SAMPLES && ++known.sinceRefresh >= REFRESH || known.count == MIN_SAMPLES) {
+            long[] sorted = Arrays.copyOf(known.samples, known.count);
+            Arrays.sort(sorted);
+            known.p95 = sorted[(int) Math.ceil(0.95 * sorted.length) - 1];
+            known.sinceRefresh = 0;
+        }
+    }
+
+    /**
+     * Number of hedges sent
+     *
+     * @return
+     */
+    public synchronized long getHedges() {
+        return hedges;
+    }
+}
@@ -0,0 +1,186 @@
+package linker;
+
+import services.ServiceType;
+import util.MachineAddress;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * @author Henrik Akesson
+ * @author Fabien Salathe
+ *
+ * Log of the last changes of a services registry, numbered by a monotonic version.
+ *
+ * A linker that already synchronized with this registry gives the last version it has seen, and only gets the
+ * changes made since then. The log keeps a bounded number of changes: once the changes asked for have been
+ * compacted away, the whole registry must be sent instead.
+ *
+ * The epoch identifies the log: versions of a restarted linker start again from 0 with a new epoch,
+ * so versions are only comparable within the same epoch.
+ */
+public class ChangeLog {
+
+    /**
+     * Number of changes kept by default
+     */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * Change of the registry
+     */
+    public static final class Change {
+        private final long version;
+        private final boolean removal;
+        private final ServiceType type;
+        private final MachineAddress address;
+        private final int weight;
+        private final int lease;
+        private final long serviceVersion;
+
+        public Change(long version, boolean removal, ServiceType type, MachineAddress address, int weight) {
+            this(version, removal, type, address, weight, 0);
+        }
+
+        public Change(long version, boolean removal, ServiceType type, MachineAddress address, int weight, int lease) {
+            this(version, removal, type, address, weight, lease, 0);
+        }
+
+        public Change(long version, boolean removal, ServiceType type, MachineAddress address, int weight, int lease,
+                      long serviceVersion) {
+            this.version = version;
+            this.removal = removal;
+            this.type = type;
+            this.address = address;
+            this.weight = weight;
+            this.lease = lease;
+            this.serviceVersion = serviceVersion;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public boolean isRemoval() {
+            return removal;
+        }
+
+        public ServiceType getType() {
+            return type;
+        }
+
+        public MachineAddress getAddress() {
+            return address;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        /**
+         * Duration of the lease of the registration (ms), 0 if it does not expire or is not known
+         *
+         * @return
+         */
+        public int getLease() {
+            return lease;
+        }
+
+        /**
+         * Version of the registration or of the removal of the service (see HybridClock), 0 if not known
+         *
+         * @return
+         */
+        public long getServiceVersion() {
+            return serviceVersion;
+        }
+
+        /**
+         * The same change, with the current lease and version of the service: the lease is granted and the version
+         * set after the registration is logged, and renewals are not logged. The version of a removal is the one of
+         * its tombstone, 0 once it is forgotten (or without tombstones).
+         *
+         * @param registry
+         * @param tombstones removals of the registry, null if not known
+         * @return
+         */
+        public Change current(ServiceRegistry registry, Tombstones tombstones) {
+            Endpoint endpoint = removal ? null : registry.get(address);
+            int currentLease = endpoint == null ? 0 : endpoint.getLeaseMillis();
+            long currentVersion = endpoint != null ? endpoint.getVersion()
+                    : removal && tombstones != null ? tombstones.version(address) : 0;
+            return currentLease == lease && currentVersion == serviceVersion ? this
+                    : new Change(version, removal, type, address, weight, currentLease, currentVersion);
+        }
+    }
+
+    private final long epoch;
+
+    private final Change[] changes;
+
+    /**
+     * Version of the last change, 0 if there was none
+     */
+    private long version;
+
+    public ChangeLog() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ChangeLog(int capacity) {
+        this.changes = new Change[Math.max(1, capacity)];
+
+        long random;
+        do {
+            random = ThreadLocalRandom.current().nextLong();
+        } while (random == 0);
+        this.epoch = random;
+    }
+
+    /**
+     * Identifier of the log, never 0
+     *
+     * @return
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Append a change, the oldest change is compacted away once the log is full
+     *
+     * @param removal
+     * @param type
+     * @param address
+     * @param weight
+     * @return the version of the change
+     */
+    public synchronized long append(boolean removal, ServiceType type, MachineAddress address, int weight) {
+        version++;
+        changes[(int) (version % changes.length)] = new Change(version, removal, type, address, weight);
+        return version;
+    }
+
+    /**
+     * Changes made after the given version, oldest first
+     *
+     * @param since last version seen
+     * @return the changes, or null if some of them were compacted away (or the version is unknown)
+     */
+    public synchronized List<Change> since(long since) {
+        if (since < 0 || since > version || version - since > changes.length) {
+            return null;
+        }
+
+        List<Change> result = new ArrayList<>((int) (version - since));
+        for (long v = since + 1; v <= version; v++) {
+            result.add(changes[(int) (v % changes.length)]);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,248 @@
+package linker;
+
+import messages.LoadReport;
+import services.ServiceType;
+import util.MachineAddress;
+import util.PhiAccrualDetector;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Henrik Akesson
+ * @author Fabien Salathe
+ *
+ * A service registered in the linker, with what the linker knows about its capacity and its load.
+ * Used by the load balancers to select an endpoint.
+ */
+public class Endpoint {
+
+    /**
+     * Latency assumed for a service of weight 1 that has not reported its load yet
+     */
+    private static final int DEFAULT_LATENCY_MICROS = 1000;
+
+    /**
+     * Interval assumed between two signs of life of a service, until it has sent some (ms)
+     */
+    private static final long DEFAULT_HEARTBEAT_INTERVAL = 1000;
+
+    private final ServiceType type;
+
+    private final MachineAddress address;
+
+    /**
+     * Relative capacity of the service, given at registration (1 by default)
+     */
+    private volatile int weight;
+
+    /**
+     * Estimate of the requests in flight on the service: incremented each time the endpoint is given
+     * to a client, corrected by the load reports of the service
+     */
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    /**
+     * Last load reported by the service (PONG or HEARTBEAT)
+     */
+    private volatile int queueDepth;
+
+    private volatile int latencyMicros;
+
+    /**
+     * Time of the last report (EventLoop.now()), 0 if the service never reported
+     */
+    private volatile long lastReport;
+
+    /**
+     * Time of the last sign of life of the service (registration, PONG, HEARTBEAT)
+     */
+    private volatile long lastSeen;
+
+    /**
+     * Statistics of the intervals between the signs of life of the service
+     */
+    private final PhiAccrualDetector detector = new PhiAccrualDetector(DEFAULT_HEARTBEAT_INTERVAL);
+
+    /**
+     * Duration of the lease of the registration (ms), 0 if the registration does not expire
+     */
+    private volatile int leaseMillis;
+
+    /**
+     * End of the lease (EventLoop.now()), pushed back by each renewal
+     */
+    private volatile long leaseDeadline;
+
+    /**
+     * Last time a renewal of the lease was gossiped to the other linkers, only used by the linker of the service
+     */
+    volatile long leaseGossiped;
+
+    /**
+     * Version of the last registration or renewal of the service (see HybridClock), 0 if not known
+     */
+    private volatile long version;
+
+    /**
+     * State of the proactive probes, only used by the HeartbeatScheduler
+     */
+    long lastProbe;
+    int missedProbes;
+
+    public Endpoint(ServiceType type, MachineAddress address, int weight) {
+        this.type = type;
+        this.address = address;
+        this.weight = Math.max(1, weight);
+    }
+
+    public ServiceType getType() {
+        return type;
+    }
+
+    public MachineAddress getAddress() {
+        return address;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public void setWeight(int weight) {
+        this.weight = Math.max(1, weight);
+    }
+
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * The endpoint has been given to a client
+     */
+    public void assigned() {
+        outstanding.incrementAndGet();
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public int getLatencyMicros() {
+        return latencyMicros;
+    }
+
+    public long getLastReport() {
+        return lastReport;
+    }
+
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * The service showed a sign of life
+     *
+     * @param now
+     */
+    public void seen(long now) {
+        lastSeen = now;
+        detector.heartbeat(now);
+    }
+
+    /**
+     * Suspicion level of the service (phi accrual), 0 if it never showed a sign of life
+     *
+     * @param now
+     * @return
+     */
+    public double getPhi(long now) {
+        return detector.phi(now);
+    }
+
+    public int getLeaseMillis() {
+        return leaseMillis;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * A registration or a renewal of the service was applied, the newest version is kept
+     *
+     * @param version
+     */
+    public synchronized void updateVersion(long version) {
+        if (version > this.version) {
+            this.version = version;
+        }
+    }
+
+    public long getLeaseDeadline() {
+        return leaseDeadline;
+    }
+
+    /**
+     * Renew the lease of the registration
+     *
+     * @param lease duration of the lease (ms), 0 to keep the current lease
+     * @param now
+     * @return true if the registration had no lease until now
+     */
+    public boolean renewLease(int lease, long now) {
+        boolean granted = leaseMillis == 0 && lease > 0;
+
+        if (lease > 0) {
+            leaseMillis = lease;
+        }
+        if (leaseMillis > 0) {
+            leaseDeadline = now + leaseMillis;
+        }
+
+        return granted;
+    }
+
+    /**
+     * Whether the renewal of the lease should be gossiped to the other linkers (at most twice per lease)
+     *
+     * @param now
+     * @return
+     */
+    public boolean shouldGossipLease(long now) {
+        if (leaseMillis == 0 || now - leaseGossiped < leaseMillis / 2) {
+            return false;
+        }
+        leaseGossiped = now;
+        return true;
+    }
+
+    /**
+     * Store the load reported by the service
+     *
+     * @param report
+     * @param now
+     */
+    public void report(LoadReport report, long now) {
+        queueDepth = report.getQueueDepth();
+        latencyMicros = report.getLatencyMicros();
+        lastReport = now;
+        seen(now);
+
+        // The service knows better than our estimate
+        outstanding.set(report.getInFlight());
+    }
+
+    /**
+     * Load of the service, lower is better: expected time to answer one more request (microseconds)
+     *
+     * @return
+     */
+    public double getLoad() {
+        double latency = latencyMicros > 0 ? latencyMicros : DEFAULT_LATENCY_MICROS / (double) weight;
+        return (outstanding.get() + 1) * latency;
+    }
+
+    @Override
+    public String toString() {
+        return address.toString();
+    }
+}
@@ -0,0 +1,427 @@
+package linker;
+
+import services.ServiceType;
+import util.MachineAddress;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author Henrik Akesson
+ * @author Fabien Salathe
+ *
+ * Epidemic (SWIM-style) dissemination of the changes of the services registry between linkers.
+ *
+ * Instead of sending each change to every other linker, a change (delta) is piggybacked on the PINGs and
+ * PONGs exchanged with a few random linkers per round. A linker that learns a new delta applies it and
+ * gossips it in turn. Each delta is sent retransmit * ceil(log2(n + 1)) times, n being the number of
+ * linkers, which is enough to reach all of them with a high probability in O(log n) rounds.
+ *
+ * Deltas are versioned per service, so an old delta received late never overrides a newer one:
+ * the highest version wins, and a removal wins over a registration of the same version. Versions are taken from the
+ * hybrid logical clock of the linker that makes the change (see HybridClock): a linker that restarted or missed deltas
+ * still publishes changes newer than the ones it does not know.
+ *
+ * The latest delta of each service is kept to recognize late deltas. Removals (tombstones) are forgotten TOMBSTONE_TTL
+ * ms after they were learned, well after their dissemination; deltas older than that are ignored when their service is
+ * not known, so a forgotten removal is not undone by a late registration.
+ *
+ * The deltas published since the last round form a batch, sent as soon as it fills a message (see getUnsentBytes).
+ * A registration removed before it was ever sent cancels out: neither of them is sent.
+ *
+ * Section appended to PING/PONG payloads: [count (u16) | delta...]
+ * Delta: [kind | service type | weight | version (int64) | lease (int32) | service address]
+ *
+ * A registration gossiped again renews the lease of the service on the other linkers.
+ *
+ * The membership of the linkers is gossiped the same way (LINKER_JOIN, LINKER_LEAVE), the address being the linker's.
+ *
+ * Shared by the workers of the linker.
+ */
+public class Gossip {
+
+    public static final byte ADD = 0;
+    public static final byte REMOVE = 1;
+    public static final byte LINKER_JOIN = 2;
+    public static final byte LINKER_LEAVE = 3;
+
+    /**
+     * Maximum size of the deltas piggybacked on one message, to stay below the MTU
+     */
+    public static final int MAX_BYTES = 1200;
+
+    /**
+     * Time a removal is kept after it was learned (ms), far beyond the time needed to gossip it to every linker
+     */
+    public static final long TOMBSTONE_TTL = 60000;
+
+    /**
+     * Change of the registry
+     */
+    public static final class Delta {
+        private final byte kind;
+        private final ServiceType type;
+        private final MachineAddress address;
+        private final int weight;
+        private final long version;
+        private final int lease;
+
+        /**
+         * Number of times the delta has been sent
+         */
+        private int transmissions;
+
+        /**
+         * Registration of a service that no other linker can know yet (new or removed before),
+         * cancelled by a removal published before it is sent
+         */
+        private boolean cancellable;
+
+        /**
+         * Wall-clock time from which a removal is forgotten
+         */
+        private long forgetAt;
+
+        private Delta(byte kind, ServiceType type, MachineAddress address, int weight, long version, int lease) {
+            this.kind = kind;
+            this.type = type;
+            this.address = address;
+            this.weight = weight;
+            this.version = version;
+            this.lease = lease;
+        }
+
+        public boolean isRemoval() {
+            return kind == REMOVE || kind == LINKER_LEAVE;
+        }
+
+        /**
+         * Whether the delta is a change of the membership of the linkers
+         *
+         * @return
+         */
+        public boolean isLinker() {
+            return kind == LINKER_JOIN || kind == LINKER_LEAVE;
+        }
+
+        public ServiceType getType() {
+            return type;
+        }
+
+        public MachineAddress getAddress() {
+            return address;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * Duration of the lease of the registration (ms), 0 if it does not expire
+         *
+         * @return
+         */
+        public int getLease() {
+            return lease;
+        }
+
+        private int encodedSize() throws IOException {
+            return 3 + Long.BYTES + Integer.BYTES + address.encodedSize();
+        }
+
+        private void writeTo(ByteBuffer dst) throws IOException {
+            dst.put(kind);
+            dst.put(type == null ? 0 : type.getType());
+            dst.put((byte) weight);
+            dst.putLong(version);
+            dst.putInt(lease);
+            address.writeTo(dst);
+        }
+
+        @Override
+        public String toString() {
+            return (isRemoval() ? "-" : "+") + (isLinker() ? "linker " : "") + address + "@" + version;
+        }
+    }
+
+    /**
+     * Number of retransmissions per round of log2(n + 1)
+     */
+    private final int retransmit;
+
+    private final HybridClock clock;
+
+    /**
+     * Latest delta known for each service (tombstones included, so late deltas are recognized)
+     */
+    private final Map<MachineAddress, Delta> latest = new HashMap<>();
+
+    /**
+     * Tombstones, in the order they are forgotten
+     */
+    private final ArrayDeque<Delta> tombstones = new ArrayDeque<>();
+
+    /**
+     * Deltas still to be gossiped, oldest first
+     */
+    private final LinkedHashMap<MachineAddress, Delta> pending = new LinkedHashMap<>();
+
+    /**
+     * Size of the pending deltas that have not been sent yet
+     */
+    private int unsentBytes;
+
+    /**
+     * @param retransmit number of retransmissions per round of log2(n + 1)
+     */
+    public Gossip(int retransmit) {
+        this(retransmit, new HybridClock());
+    }
+
+    /**
+     * @param retransmit number of retransmissions per round of log2(n + 1)
+     * @param clock clock of the linker, from which the versions of its changes are taken
+     */
+    public Gossip(int retransmit, HybridClock clock) {
+        this.retransmit = Math.max(1, retransmit);
+        this.clock = clock;
+    }
+
+    /**
+     * A service registered on this linker, or renewed its lease
+     *
+     * @param type
+     * @param address
+     * @param weight
+     * @param lease duration of the lease (ms), 0 if the registration does not expire
+     * @return version of the registration
+     * @throws IOException
+     */
+    public synchronized long added(ServiceType type, MachineAddress address, int weight, int lease) throws IOException {
+        Delta last = latest.get(address);
+
+        Delta delta = new Delta(ADD, type, address, weight, clock.next(), lease);
+        delta.cancellable = last == null || last.kind == REMOVE;
+        publish(delta);
+        return delta.version;
+    }
+
+    /**
+     * A service was found down by this linker
+     *
+     * @param address
+     * @return version of the removal
+     * @throws IOException
+     */
+    public synchronized long removed(MachineAddress address) throws IOException {
+        Delta last = latest.get(address);
+        Delta delta = new Delta(REMOVE, last == null ? null : last.type, address, 0, clock.next(), 0);
+
+        Delta unsent = pending.get(address);
+        if (unsent != null && unsent.cancellable && unsent.transmissions == 0) {
+            // Registered and removed within the same batch: nobody has to know
+            pending.remove(address);
+            unsentBytes -= unsent.encodedSize();
+            remember(delta);
+            return delta.version;
+        }
+
+        publish(delta);
+        return delta.version;
+    }
+
+    /**
+     * A linker joined
+     *
+     * @param address
+     * @throws IOException
+     */
+    public synchronized void joined(MachineAddress address) throws IOException {
+        publish(new Delta(LINKER_JOIN, null, address, 0, clock.next(), 0));
+    }
+
+    /**
+     * A linker left (or was found down for too long)
+     *
+     * @param address
+     * @throws IOException
+     */
+    public synchronized void left(MachineAddress address) throws IOException {
+        publish(new Delta(LINKER_LEAVE, null, address, 0, clock.next(), 0));
+    }
+
+    /**
+     * Number of deltas still to be gossiped
+     *
+     * @return
+     */
+    public synchronized int pendingSize() {
+        return pending.size();
+    }
+
+    /**
+     * Size of the deltas published since the last round, the batch should be sent once it reaches MAX_BYTES
+     *
+     * @return
+     */
+    public synchronized int getUnsentBytes() {
+        return unsentBytes;
+    }
+
+    /**
+     * Piggyback the oldest pending deltas on a message, within MAX_BYTES and the space left in the buffer
+     *
+     * @param dst
+     * @param members number of linkers
+     * @throws IOException
+     */
+    public synchronized void writeTo(ByteBuffer dst, int members) throws IOException {
+        int countPosition = dst.position();
+        dst.putShort((short) 0);
+
+        int budget = Math.min(MAX_BYTES, dst.remaining());
+        int limit = retransmit * (32 - Integer.numberOfLeadingZeros(members));
+        int count = 0;
+
+        Iterator<Delta> iterator = pending.values().iterator();
+        while (iterator.hasNext()) {
+            Delta delta = iterator.next();
+            int size = delta.encodedSize();
+
+            if (size > budget) {
+                break;
+            }
+
+            delta.writeTo(dst);
+            budget -= size;
+            count++;
+
+            if (delta.transmissions == 0) {
+                unsentBytes -= size;
+            }
+
+            if (++delta.transmissions >= limit) {
+                iterator.remove();
+            }
+        }
+
+        dst.putShort(countPosition, (short) count);
+    }
+
+    /**
+     * Read the deltas piggybacked on a message
+     *
+     * @param src
+     * @return the deltas that were not known yet, to be applied to the registry
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public List<Delta> readFrom(ByteBuffer src) throws IOException, ClassNotFoundException {
+        List<Delta> news = new ArrayList<>();
+
+        if (src.remaining() < Short.BYTES) {
+            // No gossip section
+            return news;
+        }
+
+        int count = src.getShort() & 0xFFFF;
+        for (int i = 0; i < count; i++) {
+            byte kind = src.get();
+            byte type = src.get();
+            int weight = src.get() & 0xFF;
+            long version = src.getLong();
+            int lease = src.getInt();
+            MachineAddress address = MachineAddress.readFrom(src);
+
+            if (kind < ADD || kind > LINKER_LEAVE) {
+                throw new StreamCorruptedException("Unknown delta " + kind);
+            }
+            ServiceType serviceType = kind == ADD ? ServiceType.fromType(type) : null;
+            Delta delta = new Delta(kind, serviceType, address, weight, version, lease);
+
+            clock.observe(version);
+
+            synchronized (this) {
+                Delta known = latest.get(address);
+                if (known == null && HybridClock.timeOf(version) < clock.wallTime() - TOMBSTONE_TTL) {
+                    // Older than the removals forgotten, it may be one of the changes they overrode
+                    continue;
+                }
+                if (isNewer(delta, known)) {
+                    publish(delta);
+                    news.add(delta);
+                }
+            }
+        }
+
+        return news;
+    }
+
+    private static boolean isNewer(Delta delta, Delta known) {
+        if (known == null || delta.version > known.version) {
+            return true;
+        }
+        return delta.version == known.version && delta.isRemoval() && !known.isRemoval();
+    }
+
+    /**
+     * Number of services and linkers whose latest delta is known
+     *
+     * @return
+     */
+    public synchronized int knownSize() {
+        return latest.size();
+    }
+
+    private void publish(Delta delta) throws IOException {
+        remember(delta);
+
+        // A newer delta replaces the one still pending for the same service
+        Delta replaced = pending.remove(delta.address);
+        if (replaced != null && replaced.transmissions == 0) {
+            unsentBytes -= replaced.encodedSize();
+        }
+
+        pending.put(delta.address, delta);
+        unsentBytes += delta.encodedSize();
+    }
+
+    /**
+     * Keep the latest delta of a service, and forget the tombstones that expired
+     *
+     * @param delta
+     * @throws IOException
+     */
+    private void remember(Delta delta) throws IOException {
+        long now = clock.wallTime();
+        latest.put(delta.address, delta);
+
+        if (delta.isRemoval()) {
+            delta.forgetAt = now + TOMBSTONE_TTL;
+            tombstones.add(delta);
+        }
+
+        Delta tombstone;
+        while ((tombstone = tombstones.peek()) != null && tombstone.forgetAt <= now) {
+            tombstones.poll();
+            latest.remove(tombstone.address, tombstone);
+
+            // Not gossiped in time (no other linker to send it to): given up
+            if (pending.remove(tombstone.address, tombstone) && tombstone.transmissions == 0) {
+                unsentBytes -= tombstone.encodedSize();
+            }
+        }
+    }
+}
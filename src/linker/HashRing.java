@@ -0,0 +1,135 @@
+package linker;
+
+import util.MachineAddress;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * @author Henrik Akesson
+ * @author Fabien Salathe
+ *
+ * Consistent-hash ring of the linkers, used to partition the services registry.
+ *
+ * Each linker is placed on the ring at several points (virtual nodes), so the services are spread evenly and a
+ * linker that joins or leaves only moves about 1/n of them. A service is owned by the first `replicas` distinct
+ * linkers found clockwise from the hash of its address.
+ *
+ * Immutable: a new ring is built when the linkers change.
+ */
+public class HashRing {
+
+    private final TreeMap<Integer, MachineAddress> points = new TreeMap<>();
+
+    /**
+     * Linkers ordered by the hash of their address, walked by successor
+     */
+    private final TreeMap<Integer, MachineAddress> order = new TreeMap<>();
+
+    private final int linkers;
+
+    /**
+     * @param members all the linkers, this one included
+     * @param virtualNodes number of points of each linker on the ring
+     */
+    public HashRing(Collection<MachineAddress> members, int virtualNodes) {
+        for (MachineAddress member : members) {
+            int hash = hash(member);
+            order.put(hash, member);
+            for (int i = 0; i < Math.max(1, virtualNodes); i++) {
+                // Collisions are unlikely, the point is kept by the first linker
+                points.putIfAbsent(mix(hash + i * 0x61C88647), member);
+            }
+        }
+        this.linkers = members.size();
+    }
+
+    /**
+     * Hash of an address on the ring
+     *
+     * @param address
+     * @return
+     */
+    public static int hash(MachineAddress address) {
+        // FNV-1a of the ip and the port
+        int hash = 0x811C9DC5;
+        for (byte b : address.getAddress().getAddress()) {
+            hash = (hash ^ (b & 0xFF)) * 0x01000193;
+        }
+        hash = (hash ^ (address.getPort() & 0xFF)) * 0x01000193;
+        hash = (hash ^ (address.getPort() >>> 8)) * 0x01000193;
+        return mix(hash);
+    }
+
+    /**
+     * Linkers owning the given service, the first one being its primary
+     *
+     * @param service
+     * @param replicas
+     * @return at most replicas linkers, fewer if there are not enough linkers
+     */
+    public List<MachineAddress> owners(MachineAddress service, int replicas) {
+        int count = Math.min(replicas, linkers);
+        List<MachineAddress> owners = new ArrayList<>(count);
+
+        if (points.isEmpty()) {
+            return owners;
+        }
+
+        for (Collection<MachineAddress> half : clockwise(hash(service))) {
+            for (MachineAddress linker : half) {
+                if (owners.size() == count) {
+                    return owners;
+                }
+                if (!owners.contains(linker)) {
+                    owners.add(linker);
+                }
+            }
+        }
+        return owners;
+    }
+
+    /**
+     * Next linker after the given one, in the order of the hashes of the linkers:
+     * following the successors visits every linker once
+     *
+     * @param linker
+     * @return the next linker, or null if there is no other linker
+     */
+    public MachineAddress successor(MachineAddress linker) {
+        Map.Entry<Integer, MachineAddress> next = order.higherEntry(hash(linker));
+        if (next == null) {
+            next = order.firstEntry();
+        }
+        return next == null || next.getValue().equals(linker) ? null : next.getValue();
+    }
+
+    /**
+     * Linkers of the points of the ring from the given hash, wrapping around once (views, nothing is copied)
+     *
+     * @param hash
+     * @return
+     */
+    private List<Collection<MachineAddress>> clockwise(int hash) {
+        return Arrays.asList(points.tailMap(hash, false).values(), points.headMap(hash, true).values());
+    }
+
+    /**
+     * Finalizer of MurmurHash3, spreads the bits
+     *
+     * @param hash
+     * @return
+     */
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        hash *= 0xC2B2AE35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+}
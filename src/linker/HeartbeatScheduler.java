@@ -0,0 +1,131 @@
+package linker;
+
+import util.TimingWheel;
+
+import java.io.IOException;
+
+/**
+ * @author Henrik Akesson
+ * @author Fabien Salathe
+ *
+ * Probes the registered services on a schedule, so that dead services are evicted before clients hit them.
+ *
+ * Each service is pinged once per interval. The first probe of a service is delayed by a hash of its
+ * address, so the probes of thousands of services are spread over the interval instead of being sent
+ * in bursts. A service that missed a probe is evicted as soon as its suspicion level (phi, see
+ * PhiAccrualDetector) reaches the threshold, and in any case after the given number of consecutive missed probes.
+ *
+ * Runs on a single loop: track and tick must be called from the same thread.
+ */
+public class HeartbeatScheduler {
+
+    /**
+     * Actions taken by the scheduler
+     */
+    public interface Prober {
+        /**
+         * Send a PING to the service
+         */
+        void ping(Endpoint endpoint) throws IOException;
+
+        /**
+         * Remove the service and warn the other linkers
+         */
+        void evict(Endpoint endpoint) throws IOException;
+    }
+
+    private final ServiceRegistry services;
+
+    private final Prober prober;
+
+    private final TimingWheel<Endpoint> wheel;
+
+    /**
+     * Interval between two probes of a service (ms)
+     */
+    private final long interval;
+
+    /**
+     * Number of consecutive missed probes before eviction
+     */
+    private final int maxMisses;
+
+    /**
+     * Suspicion level from which a service that missed a probe is evicted
+     */
+    private final double phiThreshold;
+
+    /**
+     * @param services
+     * @param prober
+     * @param interval between two probes of a service (ms)
+     * @param maxMisses consecutive missed probes before eviction, whatever the suspicion level
+     * @param phiThreshold suspicion level from which a service that missed a probe is evicted
+     * @param tick precision of the schedule (ms)
+     * @param now
+     */
+    public HeartbeatScheduler(ServiceRegistry services, Prober prober, long interval, int maxMisses,
+                              double phiThreshold, long tick, long now) {
+        this.services = services;
+        this.prober = prober;
+        this.interval = interval;
+        this.maxMisses = maxMisses;
+        this.phiThreshold = phiThreshold;
+        this.wheel = new TimingWheel<>((int) Math.max(1, interval / tick), tick, now);
+    }
+
+    public long getTick() {
+        return wheel.getTick();
+    }
+
+    /**
+     * Start probing a newly registered service
+     *
+     * @param endpoint
+     */
+    public void track(Endpoint endpoint) {
+        endpoint.missedProbes = 0;
+        endpoint.lastProbe = 0;
+
+        wheel.schedule(endpoint, Math.floorMod(endpoint.getAddress().hashCode(), interval));
+    }
+
+    /**
+     * Send the probes that are due
+     *
+     * @param now
+     */
+    public void tick(long now) {
+        wheel.advance(now, endpoint -> probe(endpoint, now));
+    }
+
+    private void probe(Endpoint endpoint, long now) {
+        if (services.get(endpoint.getAddress()) != endpoint) {
+            // Removed (or registered again) in the meantime, stop probing this instance
+            return;
+        }
+
+        try {
+            if (endpoint.lastProbe > 0 && endpoint.getLastSeen() < endpoint.lastProbe) {
+                endpoint.missedProbes++;
+
+                double phi = endpoint.getPhi(now);
+                if (phi >= phiThreshold || endpoint.missedProbes >= maxMisses) {
+                    System.out.println("[i] Service " + endpoint + " missed " + endpoint.missedProbes
+                            + " probes (phi " + String.format("%.1f", phi) + ")");
+                    prober.evict(endpoint);
+                    return;
+                }
+            } else {
+                endpoint.missedProbes = 0;
+            }
+
+            endpoint.lastProbe = now;
+            prober.ping(endpoint);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        wheel.schedule(endpoint, interval);
+    }
+}
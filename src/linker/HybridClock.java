@@ -0,0 +1,79 @@
+package linker;
+
+import java.util.function.LongSupplier;
+
+/**
+ * @author Henrik Akesson
+ * @author Fabien Salathe
+ *
+ * Hybrid logical clock of a linker, from which the versions of the changes it makes are taken.
+ *
+ * Version: [wall-clock time (ms) | counter (16 bits)]
+ *
+ * A version is greater than every version issued or received before by the linker (a removal decided after a
+ * registration is newer than it), and follows the wall-clock time otherwise. A restarted linker, or a linker that
+ * missed changes, thus still issues versions newer than the changes made before, as long as the clocks of the linkers
+ * agree within the time between the two changes.
+ *
+ * Thread-safe.
+ */
+public class HybridClock {
+
+    private static final int COUNTER_BITS = 16;
+
+    private final LongSupplier wallClock;
+
+    /**
+     * Last version issued or received
+     */
+    private long last;
+
+    public HybridClock() {
+        this(System::currentTimeMillis);
+    }
+
+    /**
+     * @param wallClock time in ms, shared by the linkers
+     */
+    public HybridClock(LongSupplier wallClock) {
+        this.wallClock = wallClock;
+    }
+
+    /**
+     * Version of a change made now
+     *
+     * @return
+     */
+    public synchronized long next() {
+        last = Math.max(last + 1, wallClock.getAsLong() << COUNTER_BITS);
+        return last;
+    }
+
+    /**
+     * A version was received: the next changes are newer
+     *
+     * @param version
+     */
+    public synchronized void observe(long version) {
+        last = Math.max(last, version);
+    }
+
+    /**
+     * Wall-clock time
+     *
+     * @return (ms)
+     */
+    public long wallTime() {
+        return wallClock.getAsLong();
+    }
+
+    /**
+     * Wall-clock time of a version
+     *
+     * @param version
+     * @return (ms)
+     */
+    public static long timeOf(long version) {
+        return version >>> COUNTER_BITS;
+    }
+}
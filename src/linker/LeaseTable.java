@@ -0,0 +1,90 @@
+package linker;
+
+import util.TimingWheel;
+
+import java.io.IOException;
+
+/**
+ * @author Henrik Akesson
+ * @author Fabien Salathe
+ *
+ * Expiry index of the leases of the registrations.
+ *
+ * Each endpoint with a lease is put in a timing wheel at its deadline. Renewals only push the deadline of the
+ * endpoint back, without touching the wheel: when an endpoint comes out of the wheel before its deadline, it is
+ * put back for the time left. Expired leases are dropped in bulk, at each tick, without any PING.
+ *
+ * Runs on a single loop: track and tick must be called from the same thread.
+ */
+public class LeaseTable {
+
+    /**
+     * Removes the expired registrations
+     */
+    public interface Expirer {
+        void expire(Endpoint endpoint) throws IOException;
+    }
+
+    private final ServiceRegistry services;
+
+    private final Expirer expirer;
+
+    private final TimingWheel<Endpoint> wheel;
+
+    /**
+     * @param services
+     * @param expirer
+     * @param maxLease longest lease granted (ms), a turn of the wheel
+     * @param tick precision of the expiry (ms)
+     * @param now
+     */
+    public LeaseTable(ServiceRegistry services, Expirer expirer, long maxLease, long tick, long now) {
+        this.services = services;
+        this.expirer = expirer;
+        this.wheel = new TimingWheel<>((int) Math.max(1, maxLease / tick), tick, now);
+    }
+
+    public long getTick() {
+        return wheel.getTick();
+    }
+
+    /**
+     * Start watching the lease of a newly registered endpoint
+     *
+     * @param endpoint
+     * @param now
+     */
+    public void track(Endpoint endpoint, long now) {
+        wheel.schedule(endpoint, Math.max(0, endpoint.getLeaseDeadline() - now));
+    }
+
+    /**
+     * Drop the registrations whose lease expired
+     *
+     * @param now
+     */
+    public void tick(long now) {
+        wheel.advance(now, endpoint -> check(endpoint, now));
+    }
+
+    private void check(Endpoint endpoint, long now) {
+        if (services.get(endpoint.getAddress()) != endpoint) {
+            // Removed (or registered again) in the meantime
+            return;
+        }
+
+        long left = endpoint.getLeaseDeadline() - now;
+        if (left > 0) {
+            // Renewed in the meantime
+            wheel.schedule(endpoint, left);
+            return;
+        }
+
+        System.out.println("[i] Lease of " + endpoint + " expired");
+        try {
+            expirer.expire(endpoint);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package linker;
+
+/**
+ * @author Henrik Akesson
+ * @author Fabien Salathe
+ *
+ * Strategy used by a linker to select the endpoint given to a client, one instance per type of service.
+ *
+ * Available strategies:
+ * - "random": uniformly random endpoint (default)
+ * - "round-robin": each endpoint in turn
+ * - "weighted": random endpoint, proportionally to its weight
+ * - "p2c": power of two choices, the less loaded of two random endpoints
+ * - "least-outstanding": the endpoint with the fewest requests in flight
+ */
+public interface LoadBalancer {
+
+    /**
+     * Select an endpoint
+     *
+     * @param endpoints current endpoints of the type, never empty, must not be modified
+     * @return
+     */
+    Endpoint select(Endpoint[] endpoints);
+
+    /**
+     * Create a strategy from its name
+     *
+     * @param name
+     * @return
+     */
+    static LoadBalancer forName(String name) {
+        switch (name.toLowerCase()) {
+            case "random":
+                return new LoadBalancerRandom();
+            case "round-robin":
+                return new LoadBalancerRoundRobin();
+            case "weighted":
+                return new LoadBalancerWeighted();
+            case "p2c":
+                return new LoadBalancerPowerOfTwo();
+            case "least-outstanding":
+                return new LoadBalancerLeastOutstanding();
+            default:
+                throw new IllegalArgumentException("'" + name + "' is not a valid load balancer");
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package linker;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * @author Henrik Akesson
+ * @author Fabien Salathe
+ *
+ * The endpoint with the fewest requests in flight (relative to its weight).
+ * The scan starts at a random endpoint so that ties are spread.
+ */
+public class LoadBalancerLeastOutstanding implements LoadBalancer {
+    @Override
+    public Endpoint select(Endpoint[] endpoints) {
+        int start = ThreadLocalRandom.current().nextInt(endpoints.length);
+
+        Endpoint best = endpoints[start];
+        double bestOutstanding = best.getOutstanding() / (double) best.getWeight();
+
+        for (int i = 1; i < endpoints.length; i++) {
+            Endpoint endpoint = endpoints[(start + i) % endpoints.length];
+            double outstanding = endpoint.getOutstanding() / (double) endpoint.getWeight();
+
+            if (outstanding < bestOutstanding) {
+                best = endpoint;
+                bestOutstanding = outstanding;
+            }
+        }
+
+        return best;
+    }
+}
@@ -0,0 +1,31 @@
+package linker;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * @author Henrik Akesson
+ * @author Fabien Salathe
+ *
+ * Power of two choices: the less loaded of two random endpoints.
+ * Avoids the hot spots of the random strategy without the herd effect of always taking the least loaded.
+ */
+public class LoadBalancerPowerOfTwo implements LoadBalancer {
+    @Override
+    public Endpoint select(Endpoint[] endpoints) {
+        if (endpoints.length == 1) {
+            return endpoints[0];
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(endpoints.length);
+        int second = random.nextInt(endpoints.length - 1);
+        if (second >= first) {
+            second++;
+        }
+
+        Endpoint a = endpoints[first];
+        Endpoint b = endpoints[second];
+
+        return a.getLoad() <= b.getLoad() ? a : b;
+    }
+}
@@ -0,0 +1,16 @@
+package linker;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * @author Henrik Akesson
+ * @author Fabien Salathe
+ *
+ * Uniformly random endpoint
+ */
+public class LoadBalancerRandom implements LoadBalancer {
+    @Override
+    public Endpoint select(Endpoint[] endpoints) {
+        return endpoints[ThreadLocalRandom.current().nextInt(endpoints.length)];
+    }
+}
@@ -0,0 +1,19 @@
+package linker;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Henrik Akesson
+ * @author Fabien Salathe
+ *
+ * Each endpoint in turn
+ */
+public class LoadBalancerRoundRobin implements LoadBalancer {
+
+    private final AtomicInteger cursor = new AtomicInteger();
+
+    @Override
+    public Endpoint select(Endpoint[] endpoints) {
+        return endpoints[(cursor.getAndIncrement() & Integer.MAX_VALUE) % endpoints.length];
+    }
+}
@@ -0,0 +1,30 @@
+package linker;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * @author Henrik Akesson
+ * @author Fabien Salathe
+ *
+ * Random endpoint, proportionally to the weight given by the service at registration
+ */
+public class LoadBalancerWeighted implements LoadBalancer {
+    @Override
+    public Endpoint select(Endpoint[] endpoints) {
+        long total = 0;
+        for (Endpoint endpoint : endpoints) {
+            total += endpoint.getWeight();
+        }
+
+        long target = ThreadLocalRandom.current().nextLong(total);
+        for (Endpoint endpoint : endpoints) {
+            target -= endpoint.getWeight();
+            if (target < 0) {
+                return endpoint;
+            }
+        }
+
+        // Weights changed during the selection
+        return endpoints[endpoints.length - 1];
+    }
+}
@@ -0,0 +1,406 @@
+package linker;
+
+import services.ServiceType;
+import util.MachineAddress;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * @author Henrik Akesson
+ * @author Fabien Salathe
+ *
+ * Hash tree of a services registry, used by the linkers to find where their tables differ (anti-entropy).
+ *
+ * The services of each type are spread in BUCKETS buckets by the hash of their address. The hash of a bucket
+ * does not depend on the order of its services, the root of a type is the hash of its buckets.
+ *
+ * linker --(entropy_roots [roots])--> linker                 (the only message when the tables are the same)
+ *        <--(entropy_leaves [buckets of the types that differ])--
+ *        ---(entropy_buckets [reply | services of the buckets that differ])-->
+ *        <--(entropy_buckets [services of the same buckets])--
+ *
+ * Roots: [count | (service type | root (int32))...]
+ * Leaves: [count | (service type | bucket hash (int32) * BUCKETS)...]
+ * Buckets: [reply | count | (service type | bucket)... | entries (u16) | entry...]
+ * Entry: [removal | service type | weight | version (int64) | lease (int32) | address]
+ *
+ * The services removed recently are sent with the services of their buckets (see Tombstones), each one with the
+ * version of its last registration or removal: on each side, the newest state of a service wins. A service missing on
+ * one side is added, unless this side removed it later; a removal lost on the way removes the older registration.
+ */
+public class MerkleDigest {
+
+    /**
+     * Number of buckets per type of service
+     */
+    public static final int BUCKETS = 16;
+
+    /**
+     * Maximum size of the entries of an ENTROPY_BUCKETS message, to stay below the MTU
+     */
+    public static final int CHUNK_BYTES = 1200;
+
+    private static final ServiceType[] TYPES = ServiceType.values();
+
+    /**
+     * Bucket of a type of service
+     */
+    public static final class Bucket {
+        private final ServiceType type;
+        private final int index;
+
+        public Bucket(ServiceType type, int index) {
+            this.type = type;
+            this.index = index;
+        }
+
+        public ServiceType getType() {
+            return type;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+    }
+
+    /**
+     * Service (or removal of a service) sent to repair a bucket
+     */
+    public static final class Entry {
+        private final boolean removal;
+        private final ServiceType type;
+        private final MachineAddress address;
+        private final int weight;
+        private final long version;
+        private final int lease;
+
+        private Entry(boolean removal, ServiceType type, MachineAddress address, int weight, long version, int lease) {
+            this.removal = removal;
+            this.type = type;
+            this.address = address;
+            this.weight = weight;
+            this.version = version;
+            this.lease = lease;
+        }
+
+        private Entry(Endpoint endpoint) {
+            this(false, endpoint.getType(), endpoint.getAddress(), endpoint.getWeight(), endpoint.getVersion(),
+                    endpoint.getLeaseMillis());
+        }
+
+        private Entry(Tombstones.Tombstone tombstone) {
+            this(true, tombstone.getType(), tombstone.getAddress(), 0, tombstone.getVersion(), 0);
+        }
+
+        public boolean isRemoval() {
+            return removal;
+        }
+
+        /**
+         * Version of the registration or the removal, 0 if not known (older than any other)
+         *
+         * @return
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        private int encodedSize() throws IOException {
+            return 3 + Long.BYTES + Integer.BYTES + address.encodedSize();
+        }
+
+        public ServiceType getType() {
+            return type;
+        }
+
+        public MachineAddress getAddress() {
+            return address;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        public int getLease() {
+            return lease;
+        }
+    }
+
+    /**
+     * Content of an ENTROPY_BUCKETS message
+     */
+    public static final class Repair {
+        private final boolean reply;
+        private final List<Bucket> buckets;
+        private final List<Entry> entries;
+
+        private Repair(boolean reply, List<Bucket> buckets, List<Entry> entries) {
+            this.reply = reply;
+            this.buckets = buckets;
+            this.entries = entries;
+        }
+
+        /**
+         * Whether the sender waits for the services of the same buckets
+         *
+         * @return
+         */
+        public boolean isReply() {
+            return reply;
+        }
+
+        public List<Bucket> getBuckets() {
+            return buckets;
+        }
+
+        public List<Entry> getEntries() {
+            return entries;
+        }
+    }
+
+    private final int[][] leaves = new int[TYPES.length][BUCKETS];
+
+    private MerkleDigest() {
+    }
+
+    /**
+     * Hash tree of the services of a registry
+     *
+     * @param registry
+     * @param filter services to include (the services owned by both linkers when the table is partitioned)
+     * @return
+     */
+    public static MerkleDigest of(ServiceRegistry registry, Predicate<MachineAddress> filter) {
+        MerkleDigest digest = new MerkleDigest();
+
+        for (ServiceType type : TYPES) {
+            for (Endpoint endpoint : registry.snapshot(type)) {
+                if (filter.test(endpoint.getAddress())) {
+                    int hash = HashRing.hash(endpoint.getAddress());
+                    // Sum of the hashes: the same whatever the order of the services
+                    digest.leaves[type.ordinal()][bucket(hash)] += hash * 0x9E3779B9 + 1;
+                }
+            }
+        }
+        return digest;
+    }
+
+    private static int bucket(int hash) {
+        return hash >>> (32 - Integer.numberOfTrailingZeros(BUCKETS));
+    }
+
+    /**
+     * Root of the buckets of a type
+     *
+     * @param type
+     * @return
+     */
+    public int root(ServiceType type) {
+        int root = 1;
+        for (int leaf : leaves[type.ordinal()]) {
+            root = root * 31 + leaf;
+        }
+        return root;
+    }
+
+    /**
+     * Write the root of each type
+     *
+     * @param dst
+     */
+    public void writeRoots(ByteBuffer dst) {
+        dst.put((byte) TYPES.length);
+        for (ServiceType type : TYPES) {
+            dst.put(type.getType());
+            dst.putInt(root(type));
+        }
+    }
+
+    /**
+     * Compare the roots of another linker with this tree
+     *
+     * @param src
+     * @return the types whose services differ
+     * @throws StreamCorruptedException
+     */
+    public List<ServiceType> differingTypes(ByteBuffer src) throws StreamCorruptedException {
+        List<ServiceType> types = new ArrayList<>();
+
+        int count = src.get() & 0xFF;
+        for (int i = 0; i < count; i++) {
+            ServiceType type = readType(src);
+            if (src.getInt() != root(type)) {
+                types.add(type);
+            }
+        }
+        return types;
+    }
+
+    /**
+     * Write the buckets of the given types
+     *
+     * @param dst
+     * @param types
+     */
+    public void writeLeaves(ByteBuffer dst, List<ServiceType> types) {
+        dst.put((byte) types.size());
+        for (ServiceType type : types) {
+            dst.put(type.getType());
+            for (int leaf : leaves[type.ordinal()]) {
+                dst.putInt(leaf);
+            }
+        }
+    }
+
+    /**
+     * Compare the buckets of another linker with this tree
+     *
+     * @param src
+     * @return the buckets whose services differ
+     * @throws StreamCorruptedException
+     */
+    public List<Bucket> differingBuckets(ByteBuffer src) throws StreamCorruptedException {
+        List<Bucket> buckets = new ArrayList<>();
+
+        int count = src.get() & 0xFF;
+        for (int i = 0; i < count; i++) {
+            ServiceType type = readType(src);
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                if (src.getInt() != leaves[type.ordinal()][bucket]) {
+                    buckets.add(new Bucket(type, bucket));
+                }
+            }
+        }
+        return buckets;
+    }
+
+    /**
+     * Payloads of the ENTROPY_BUCKETS messages carrying the services of the given buckets, and their removals
+     *
+     * @param registry
+     * @param tombstones
+     * @param buckets
+     * @param filter services to include
+     * @param reply whether the other linker has to send its services of the same buckets
+     * @return at least one payload (only the first one asks for a reply)
+     * @throws IOException
+     */
+    public static List<byte[]> repair(ServiceRegistry registry, Tombstones tombstones, List<Bucket> buckets,
+                                      Predicate<MachineAddress> filter, boolean reply) throws IOException {
+        boolean[][] selected = new boolean[TYPES.length][BUCKETS];
+        for (Bucket bucket : buckets) {
+            selected[bucket.type.ordinal()][bucket.index] = true;
+        }
+
+        List<Entry> endpoints = new ArrayList<>();
+        for (ServiceType type : TYPES) {
+            for (Endpoint endpoint : registry.snapshot(type)) {
+                int hash = HashRing.hash(endpoint.getAddress());
+                if (selected[type.ordinal()][bucket(hash)] && filter.test(endpoint.getAddress())) {
+                    endpoints.add(new Entry(endpoint));
+                }
+            }
+        }
+        for (Tombstones.Tombstone tombstone : tombstones.snapshot()) {
+            int hash = HashRing.hash(tombstone.getAddress());
+            if (selected[tombstone.getType().ordinal()][bucket(hash)] && filter.test(tombstone.getAddress())
+                    && registry.get(tombstone.getAddress()) == null) {
+                endpoints.add(new Entry(tombstone));
+            }
+        }
+
+        List<byte[]> payloads = new ArrayList<>();
+        int next = 0;
+        do {
+            ByteBuffer chunk = ByteBuffer.allocate(CHUNK_BYTES + 3 + 2 * buckets.size() + 64);
+            boolean first = payloads.isEmpty();
+
+            chunk.put((byte) (reply && first ? 1 : 0));
+            chunk.put((byte) (first ? buckets.size() : 0));
+            if (first) {
+                for (Bucket bucket : buckets) {
+                    chunk.put(bucket.type.getType());
+                    chunk.put((byte) bucket.index);
+                }
+            }
+
+            int countPosition = chunk.position();
+            chunk.putShort((short) 0);
+
+            int count = 0;
+            int size = 0;
+            while (next < endpoints.size()) {
+                Entry entry = endpoints.get(next);
+                int entrySize = entry.encodedSize();
+                if (size + entrySize > CHUNK_BYTES && count > 0) {
+                    break;
+                }
+
+                chunk.put((byte) (entry.removal ? 1 : 0));
+                chunk.put(entry.type.getType());
+                chunk.put((byte) entry.weight);
+                chunk.putLong(entry.version);
+                chunk.putInt(entry.lease);
+                entry.address.writeTo(chunk);
+                size += entrySize;
+                count++;
+                next++;
+            }
+            chunk.putShort(countPosition, (short) count);
+
+            payloads.add(Arrays.copyOf(chunk.array(), chunk.position()));
+        } while (next < endpoints.size());
+
+        return payloads;
+    }
+
+    /**
+     * Read an ENTROPY_BUCKETS message
+     *
+     * @param src
+     * @return
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public static Repair readRepair(ByteBuffer src) throws IOException, ClassNotFoundException {
+        boolean reply = src.get() != 0;
+
+        int count = src.get() & 0xFF;
+        List<Bucket> buckets = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ServiceType type = readType(src);
+            int index = src.get() & 0xFF;
+            if (index >= BUCKETS) {
+                throw new StreamCorruptedException("Invalid bucket " + index);
+            }
+            buckets.add(new Bucket(type, index));
+        }
+
+        int entries = src.getShort() & 0xFFFF;
+        List<Entry> services = new ArrayList<>(entries);
+        for (int i = 0; i < entries; i++) {
+            boolean removal = src.get() != 0;
+            ServiceType type = readType(src);
+            int weight = src.get() & 0xFF;
+            long version = src.getLong();
+            int lease = src.getInt();
+            services.add(new Entry(removal, type, MachineAddress.readFrom(src), weight, version, lease));
+        }
+
+        return new Repair(reply, buckets, services);
+    }
+
+    private static ServiceType readType(ByteBuffer src) throws StreamCorruptedException {
+        byte type = src.get();
+        if (type < 0 || type >= TYPES.length) {
+            throw new StreamCorruptedException("Unknown service type " + type);
+        }
+        return ServiceType.fromType(type);
+    }
+}
@@ -0,0 +1,160 @@
+package linker;
+
+import util.EventLoop;
+import util.MachineAddress;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @author Henrik Akesson
+ * @author Fabien Salathe
+ *
+ * In-flight probes (PING) of the services suspected to be down.
+ *
+ * A probe holds its sequence id and its deadline. Several SERVICE_DOWN reports for the same service
+ * are merged into the probe already in flight, and a PONG is matched with its probe by sequence id
+ * (or by address, for services that answer with an empty PONG).
+ *
+ * Every PING has its own sequence id, and the time it was sent is kept with it in a ring of the last PINGs: the PONG
+ * that echoes the sequence id gives the round-trip time.
+ *
+ * The table is shared by the workers of the linker: a PONG can be received by another worker than the PING.
+ */
+public class ProbeTable {
+
+    /**
+     * Probe of one service
+     */
+    public static final class Probe {
+        private final MachineAddress service;
+        private final int sequence;
+        private final long deadline;
+        private final AtomicInteger reports = new AtomicInteger(1);
+
+        private Probe(MachineAddress service, int sequence, long deadline) {
+            this.service = service;
+            this.sequence = sequence;
+            this.deadline = deadline;
+        }
+
+        public MachineAddress getService() {
+            return service;
+        }
+
+        public int getSequence() {
+            return sequence;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+
+        /**
+         * Number of SERVICE_DOWN reports merged into this probe
+         *
+         * @return
+         */
+        public int getReports() {
+            return reports.get();
+        }
+    }
+
+    /**
+     * Number of PINGs whose send time is kept, a PONG that comes after as many other PINGs gives no round-trip time
+     */
+    private static final int SENT = 1 << 14;
+
+    private final Map<MachineAddress, Probe> probes = new ConcurrentHashMap<>();
+
+    private final AtomicInteger nextSequence = new AtomicInteger();
+
+    /**
+     * Send time of the last PINGs, by sequence id: [sequence id (32 bits) | send time (ms, low 32 bits)]
+     */
+    private final AtomicLongArray sent = new AtomicLongArray(SENT);
+
+    /**
+     * Sequence id for a PING that is not tracked by the table (proactive probes, PINGs of the linkers), the PING
+     * being sent now
+     *
+     * @return
+     */
+    public int nextSequence() {
+        int sequence = nextSequence.getAndIncrement() & Integer.MAX_VALUE;
+        sent.set(sequence & (SENT - 1), ((long) sequence << 32) | (EventLoop.now() & 0xFFFFFFFFL));
+        return sequence;
+    }
+
+    /**
+     * Round-trip time of a PING, from the sequence id echoed in its PONG. A PING gives a single round-trip time,
+     * a duplicated PONG gives none.
+     *
+     * @param sequence
+     * @param now
+     * @return (ms), or -1 if the send time of the PING is not known anymore
+     */
+    public long roundTrip(int sequence, long now) {
+        int slot = sequence & (SENT - 1);
+        long entry = sent.get(slot);
+
+        if (entry == 0 || (int) (entry >>> 32) != sequence || !sent.compareAndSet(slot, entry, 0)) {
+            return -1;
+        }
+
+        return ((int) now - (int) entry) & Integer.MAX_VALUE;
+    }
+
+    /**
+     * Start a probe of the service, or merge the report into the probe already in flight
+     *
+     * @param service
+     * @param deadline
+     * @return the new probe, or null if a probe was already in flight
+     */
+    public Probe start(MachineAddress service, long deadline) {
+        Probe probe = new Probe(service, nextSequence(), deadline);
+        Probe inFlight = probes.putIfAbsent(service, probe);
+
+        if (inFlight != null) {
+            inFlight.reports.incrementAndGet();
+            return null;
+        }
+
+        return probe;
+    }
+
+    /**
+     * Match a PONG with its probe
+     *
+     * @param service sender of the PONG
+     * @param sequence sequence id echoed by the service, or -1 if the PONG was empty
+     * @return the probe answered, or null if none matches
+     */
+    public Probe answer(MachineAddress service, int sequence) {
+        Probe probe = probes.get(service);
+
+        if (probe == null || (sequence >= 0 && probe.sequence != sequence)) {
+            return null;
+        }
+
+        return probes.remove(service, probe) ? probe : null;
+    }
+
+    /**
+     * Remove the probe if it was not answered before its deadline
+     *
+     * @param probe
+     * @param now
+     * @return true if the probe expired
+     */
+    public boolean expire(Probe probe, long now) {
+        return now >= probe.deadline && probes.remove(probe.service, probe);
+    }
+
+    public int size() {
+        return probes.size();
+    }
+}
@@ -0,0 +1,388 @@
+package linker;
+
+import services.ServiceType;
+import util.MachineAddress;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * @author Henrik Akesson
+ * @author Fabien Salathe
+ *
+ * Persistence of a services registry, so that a restarted linker does not start empty.
+ *
+ * The changes of the registry (see ChangeLog) are appended to a log file by batches. Once the log is large
+ * enough, it is compacted: the whole registry is written to a snapshot file (through a MappedByteBuffer),
+ * atomically renamed, and the log is truncated. At startup, the snapshot and the log are mapped and replayed.
+ *
+ * Record: [length (u16) | crc32 (int32) | sequence (int64) | flags | service type | weight | lease (int32, if flagged)
+ *          | version (int64, if flagged) | service address]
+ * Flags: removal (0x01), lease (0x02), version (0x04). A registration recovered with a lease gets a whole lease from
+ * the restart, so that a service that stopped in the meantime still expires. The version of the registration or
+ * removal (see HybridClock) is recovered with it, so the removals made before the restart are remembered (see
+ * Tombstones) and the clock goes on after them.
+ * Snapshot: [magic (int32) | last sequence of the log included (int64) | count (int32) | record...], the
+ * registrations then the removals remembered.
+ *
+ * The sequence numbers go on across restarts: records of the log already included in the snapshot (crash between
+ * the rename and the truncation) are skipped. A record torn by a crash fails its checksum, the log is truncated
+ * before it.
+ *
+ * Not thread-safe: flush and compact are called by a single thread (the first worker of the linker).
+ */
+public class RegistryStore {
+
+    /**
+     * When the log is forced to the disk
+     */
+    public enum Fsync {
+        /**
+         * After each batch of changes
+         */
+        ALWAYS,
+        /**
+         * At most once per second
+         */
+        PERIODIC,
+        /**
+         * Left to the operating system
+         */
+        NEVER;
+
+        public static Fsync forName(String name) {
+            return valueOf(name.trim().toUpperCase());
+        }
+    }
+
+    /**
+     * Replays the records into the registry
+     */
+    public interface Replay {
+        void apply(ChangeLog.Change change);
+    }
+
+    private static final int SNAPSHOT_MAGIC = 0x52454731; // REG1
+
+    private static final byte REMOVAL = 0x01;
+
+    private static final byte LEASE = 0x02;
+
+    private static final byte VERSION = 0x04;
+
+    private static final int SNAPSHOT_HEADER = Integer.BYTES + Long.BYTES + Integer.BYTES;
+
+    /**
+     * Size of the header of a record (length and checksum)
+     */
+    private static final int RECORD_HEADER = Short.BYTES + Integer.BYTES;
+
+    /**
+     * Size of the log from which it is compacted into a snapshot
+     */
+    private static final long COMPACT_BYTES = 1 << 20;
+
+    private static final long PERIODIC_FSYNC = 1000;
+
+    private final ServiceRegistry registry;
+
+    /**
+     * Removals of the registry, to persist their version (null if not kept)
+     */
+    private final Tombstones tombstones;
+
+    private final Path snapshotFile;
+
+    private final Path logFile;
+
+    private final Fsync fsync;
+
+    private FileChannel log;
+
+    /**
+     * Sequence of the next record
+     */
+    private long nextSequence = 1;
+
+    /**
+     * Last version of the ChangeLog written to the log
+     */
+    private long persistedVersion;
+
+    private long lastForce;
+
+    private final CRC32 crc = new CRC32();
+
+    public RegistryStore(Path directory, ServiceRegistry registry, Fsync fsync) throws IOException {
+        this(directory, registry, null, fsync);
+    }
+
+    public RegistryStore(Path directory, ServiceRegistry registry, Tombstones tombstones, Fsync fsync)
+            throws IOException {
+        Files.createDirectories(directory);
+
+        this.registry = registry;
+        this.tombstones = tombstones;
+        this.snapshotFile = directory.resolve("registry.snapshot");
+        this.logFile = directory.resolve("registry.log");
+        this.fsync = fsync;
+    }
+
+    /**
+     * Replay the snapshot then the log, and open the log for the next changes.
+     * A torn record at the end of the log is truncated.
+     *
+     * @param replay
+     * @return the number of records replayed
+     * @throws IOException
+     */
+    public int recover(Replay replay) throws IOException {
+        int replayed = 0;
+        long snapshotSequence = 0;
+
+        if (Files.exists(snapshotFile)) {
+            try (FileChannel channel = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+                MappedByteBuffer snapshot = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+                if (snapshot.remaining() < SNAPSHOT_HEADER || snapshot.getInt() != SNAPSHOT_MAGIC) {
+                    throw new IOException("Invalid snapshot " + snapshotFile);
+                }
+
+                snapshotSequence = snapshot.getLong();
+                int count = snapshot.getInt();
+                for (int i = 0; i < count; i++) {
+                    ChangeLog.Change change = readRecord(snapshot);
+                    if (change == null) {
+                        throw new IOException("Corrupted snapshot " + snapshotFile + " (record " + i + ")");
+                    }
+                    replay.apply(change);
+                    replayed++;
+                }
+            }
+            nextSequence = snapshotSequence + 1;
+        }
+
+        log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer records = log.map(FileChannel.MapMode.READ_ONLY, 0, log.size());
+
+        int valid = 0;
+        ChangeLog.Change change;
+        while ((change = readRecord(records)) != null) {
+            valid = records.position();
+
+            // Sequence stored as the version of the change
+            if (change.getVersion() > snapshotSequence) {
+                replay.apply(change);
+                replayed++;
+            }
+            nextSequence = Math.max(nextSequence, change.getVersion() + 1);
+        }
+
+        if (valid < log.size()) {
+            System.out.println("[i] Torn record at " + valid + " in " + logFile + ", log truncated");
+            log.truncate(valid);
+            log.force(true);
+        }
+        log.position(valid);
+
+        // The changes replayed are already persisted
+        persistedVersion = registry.getLog().getVersion();
+
+        return replayed;
+    }
+
+    /**
+     * Append the changes made since the last flush to the log, and compact it once it is large enough
+     *
+     * @param now
+     * @throws IOException
+     */
+    public void flush(long now) throws IOException {
+        ChangeLog changeLog = registry.getLog();
+        List<ChangeLog.Change> changes = changeLog.since(persistedVersion);
+
+        if (changes == null) {
+            // Too many changes since the last flush, they are not all known anymore
+            compact();
+            return;
+        }
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        List<ChangeLog.Change> records = new ArrayList<>(changes.size());
+        int size = 0;
+        for (ChangeLog.Change change : changes) {
+            ChangeLog.Change record = change.current(registry, tombstones);
+            records.add(record);
+            size += recordSize(record);
+        }
+
+        ByteBuffer batch = ByteBuffer.allocate(size);
+        for (ChangeLog.Change record : records) {
+            writeRecord(batch, nextSequence++, record);
+        }
+        batch.flip();
+
+        while (batch.hasRemaining()) {
+            log.write(batch);
+        }
+        persistedVersion = changes.get(changes.size() - 1).getVersion();
+
+        if (fsync == Fsync.ALWAYS || (fsync == Fsync.PERIODIC && now - lastForce >= PERIODIC_FSYNC)) {
+            log.force(false);
+            lastForce = now;
+        }
+
+        if (log.size() >= COMPACT_BYTES) {
+            compact();
+        }
+    }
+
+    /**
+     * Write the whole registry to a new snapshot and truncate the log
+     *
+     * @throws IOException
+     */
+    public void compact() throws IOException {
+        // Changes made while the registry is read are written to the log again after the snapshot (idempotent)
+        long version = registry.getLog().getVersion();
+        long sequence = nextSequence - 1;
+
+        List<ChangeLog.Change> entries = new ArrayList<>();
+        registry.forEach((type, endpoints) -> {
+            for (Endpoint endpoint : endpoints) {
+                entries.add(new ChangeLog.Change(sequence, false, type, endpoint.getAddress(), endpoint.getWeight(),
+                        endpoint.getLeaseMillis(), endpoint.getVersion()));
+            }
+        });
+        if (tombstones != null) {
+            for (Tombstones.Tombstone tombstone : tombstones.snapshot()) {
+                entries.add(new ChangeLog.Change(sequence, true, tombstone.getType(), tombstone.getAddress(), 0, 0,
+                        tombstone.getVersion()));
+            }
+        }
+
+        long size = SNAPSHOT_HEADER;
+        for (ChangeLog.Change entry : entries) {
+            size += recordSize(entry);
+        }
+
+        Path temporary = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer snapshot = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            snapshot.putInt(SNAPSHOT_MAGIC);
+            snapshot.putLong(sequence);
+            snapshot.putInt(entries.size());
+            for (ChangeLog.Change entry : entries) {
+                writeRecord(snapshot, sequence, entry);
+            }
+            snapshot.force();
+        }
+        Files.move(temporary, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        log.truncate(0);
+        log.position(0);
+        log.force(true);
+        persistedVersion = version;
+
+        System.out.println("[i] Registry compacted (" + entries.size() + " services)");
+    }
+
+    public void close() throws IOException {
+        if (log != null) {
+            log.force(true);
+            log.close();
+        }
+    }
+
+    private static int recordSize(ChangeLog.Change change) throws IOException {
+        return RECORD_HEADER + Long.BYTES + 3 + (change.getLease() > 0 ? Integer.BYTES : 0)
+                + (change.getServiceVersion() > 0 ? Long.BYTES : 0) + change.getAddress().encodedSize();
+    }
+
+    private void writeRecord(ByteBuffer dst, long sequence, ChangeLog.Change change) throws IOException {
+        int start = dst.position();
+        dst.position(start + RECORD_HEADER);
+
+        dst.putLong(sequence);
+        dst.put((byte) ((change.isRemoval() ? REMOVAL : 0) | (change.getLease() > 0 ? LEASE : 0)
+                | (change.getServiceVersion() > 0 ? VERSION : 0)));
+        dst.put(change.getType().getType());
+        dst.put((byte) change.getWeight());
+        if (change.getLease() > 0) {
+            dst.putInt(change.getLease());
+        }
+        if (change.getServiceVersion() > 0) {
+            dst.putLong(change.getServiceVersion());
+        }
+        change.getAddress().writeTo(dst);
+
+        int end = dst.position();
+        int length = end - start - RECORD_HEADER;
+
+        crc.reset();
+        for (int i = start + RECORD_HEADER; i < end; i++) {
+            crc.update(dst.get(i));
+        }
+
+        dst.putShort(start, (short) length);
+        dst.putInt(start + Short.BYTES, (int) crc.getValue());
+    }
+
+    /**
+     * Read a record, the sequence is given as the version of the change
+     *
+     * @param src
+     * @return the change, or null if the record is torn or corrupted (the position is then left unchanged)
+     */
+    private ChangeLog.Change readRecord(ByteBuffer src) {
+        int start = src.position();
+
+        if (src.remaining() < RECORD_HEADER) {
+            return null;
+        }
+
+        int length = src.getShort(start) & 0xFFFF;
+        int checksum = src.getInt(start + Short.BYTES);
+
+        if (length < Long.BYTES + 3 || src.remaining() < RECORD_HEADER + length) {
+            return null;
+        }
+
+        crc.reset();
+        for (int i = start + RECORD_HEADER; i < start + RECORD_HEADER + length; i++) {
+            crc.update(src.get(i));
+        }
+        if ((int) crc.getValue() != checksum) {
+            return null;
+        }
+
+        try {
+            src.position(start + RECORD_HEADER);
+            long sequence = src.getLong();
+            byte flags = src.get();
+            ServiceType type = ServiceType.fromType(src.get());
+            int weight = src.get() & 0xFF;
+            int lease = (flags & LEASE) != 0 ? src.getInt() : 0;
+            long version = (flags & VERSION) != 0 ? src.getLong() : 0;
+            MachineAddress address = MachineAddress.readFrom(src);
+
+            src.position(start + RECORD_HEADER + length);
+            return new ChangeLog.Change(sequence, (flags & REMOVAL) != 0, type, address, weight, lease, version);
+        } catch (IOException | ClassNotFoundException | RuntimeException e) {
+            src.position(start);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,485 @@
+package linker;
+
+import messages.Message;
+import messages.MessageType;
+import util.EventLoop;
+import util.MachineAddress;
+import util.RttEstimator;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * @author Henrik Akesson
+ * @author Fabien Salathe
+ *
+ * Reliable, ordered delivery of the control messages between linkers, on top of the UDP socket.
+ *
+ * Each message sent to a linker is numbered (one sequence per linker) and kept until it is acknowledged.
+ * The receiver delivers the messages in order, keeps the ones received ahead of a gap, and acknowledges
+ * what it has: all the messages up to a sequence (cumulative) and the ones received after it (selective,
+ * a bitmap of the next 32 sequences). A message that is not acknowledged within the retransmission timeout
+ * (see RttEstimator, measured per linker) is sent again. At most `window` messages are in flight per linker,
+ * the next ones wait in a bounded backlog.
+ *
+ * A message is given up after a number of transmissions (the linker is probably down, the anti-entropy repairs
+ * what was lost): each transmission carries the oldest sequence not given up, written again when the message is
+ * sent again, so the receiver does not wait for the messages given up. After a message is given up, a probe
+ * carrying only that sequence is sent until it is acknowledged (or the linker leaves): the messages received
+ * ahead of the gap are delivered even when no other message is sent.
+ *
+ * The session identifies the sequences of a linker: a restarted linker starts a new session, and the
+ * receiver starts again from its first message.
+ *
+ * Reliable: [session (int32) | sequence (int32) | oldest sequence not given up (int32) | message type | payload]
+ * Probe: [session (int32) | 0 | oldest sequence not given up (int32)]
+ * Ack: [session (int32) | cumulative sequence (int32) | selective bitmap (int32)]
+ *
+ * Thread-safe: messages can be sent and received by any worker, retransmissions are done by tick.
+ *
+ * Only the registrations and removals a linker sends to given linkers go through the channel, i.e. to the other
+ * owners of a service when the table is partitioned (partition.replicas > 0). The changes gossiped by default are
+ * not delivered in order nor retransmitted: the versions and the anti-entropy make up for them.
+ */
+public class ReliableChannel {
+
+    /**
+     * Sends a frame on the socket
+     */
+    public interface Transport {
+        void send(byte[] frame, MachineAddress to) throws IOException;
+    }
+
+    /**
+     * Handles a message delivered in order
+     */
+    public interface Receiver {
+        void deliver(Message message, InetSocketAddress sender) throws IOException;
+    }
+
+    /**
+     * Number of messages waiting for the window, per linker, beyond which the oldest ones are dropped
+     */
+    public static final int MAX_BACKLOG = 1024;
+
+    private static final MessageType[] TYPES = MessageType.values();
+
+    /**
+     * Message sent and not acknowledged yet
+     */
+    private static final class Pending {
+        private final int sequence;
+        private byte[] frame;
+        private final MessageType type;
+        private final byte[] payload;
+        private long sentAt;
+        private long deadline;
+        private int transmissions;
+
+        private Pending(int sequence, MessageType type, byte[] payload) {
+            this.sequence = sequence;
+            this.type = type;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * Sending side of the link with a linker
+     */
+    private static final class Outbound {
+        private final RttEstimator rtt;
+        private int nextSequence = 1;
+        private final TreeMap<Integer, Pending> inFlight = new TreeMap<>();
+        private final ArrayDeque<Pending> backlog = new ArrayDeque<>();
+
+        /**
+         * Last sequence given up, until the receiver acknowledges the sequences before it (0 if none)
+         */
+        private int givenUp;
+        private long probeDeadline;
+
+        private Outbound(RttEstimator rtt) {
+            this.rtt = rtt;
+        }
+    }
+
+    /**
+     * Receiving side of the link with a linker
+     */
+    private static final class Inbound {
+        private int session;
+        private int expected = 1;
+        private final TreeMap<Integer, Message> ahead = new TreeMap<>();
+    }
+
+    private final Transport transport;
+
+    private final int session;
+
+    private final int window;
+
+    private final int maxTransmissions;
+
+    private final long initialTimeout;
+    private final long minTimeout;
+    private final long maxTimeout;
+
+    private final Map<MachineAddress, Outbound> outbound = new ConcurrentHashMap<>();
+
+    private final Map<MachineAddress, Inbound> inbound = new ConcurrentHashMap<>();
+
+    /**
+     * @param transport
+     * @param window maximum number of messages in flight per linker
+     * @param maxTransmissions number of transmissions of a message before it is given up
+     * @param minTimeout floor of the retransmission timeout (ms)
+     * @param maxTimeout ceiling of the retransmission timeout (ms)
+     */
+    public ReliableChannel(Transport transport, int window, int maxTransmissions, long minTimeout, long maxTimeout) {
+        this.transport = transport;
+        this.window = Math.max(1, window);
+        this.maxTransmissions = Math.max(1, maxTransmissions);
+        this.minTimeout = minTimeout;
+        this.maxTimeout = maxTimeout;
+        this.initialTimeout = Math.max(minTimeout, Math.min(maxTimeout, 200));
+
+        int random;
+        do {
+            random = ThreadLocalRandom.current().nextInt();
+        } while (random == 0);
+        this.session = random;
+    }
+
+    /**
+     * Send a message reliably to a linker
+     *
+     * @param linker
+     * @param type
+     * @param payload
+     * @throws IOException
+     */
+    public void send(MachineAddress linker, MessageType type, byte[] payload) throws IOException {
+        Outbound link = outbound.computeIfAbsent(linker,
+                l -> new Outbound(new RttEstimator(initialTimeout, minTimeout, maxTimeout)));
+
+        Pending pending;
+        synchronized (link) {
+            pending = new Pending(link.nextSequence++, type, payload);
+
+            if (link.inFlight.size() >= window) {
+                if (link.backlog.size() >= MAX_BACKLOG) {
+                    link.backlog.poll();
+                    System.out.println("[i] Backlog to linker " + linker + " full, oldest control message dropped");
+                }
+                link.backlog.add(pending);
+                return;
+            }
+
+            transmit(link, pending, EventLoop.now());
+        }
+        transport.send(pending.frame, linker);
+    }
+
+    /**
+     * Handle a RELIABLE message: acknowledge it, and deliver the messages now in order
+     *
+     * @param payload
+     * @param sender
+     * @param receiver
+     * @throws IOException
+     */
+    public void receive(byte[] payload, InetSocketAddress sender, Receiver receiver) throws IOException {
+        ByteBuffer src = ByteBuffer.wrap(payload);
+        int senderSession = src.getInt();
+        int sequence = src.getInt();
+        int oldest = src.getInt();
+        Message message = null;
+        if (sequence != 0) {
+            int type = src.get() & 0xFF;
+            if (type >= TYPES.length) {
+                throw new StreamCorruptedException("Unknown message type " + type);
+            }
+            message = new Message(TYPES[type], Arrays.copyOfRange(payload, src.position(), payload.length));
+        }
+
+        MachineAddress linker = new MachineAddress(sender);
+        Inbound link = inbound.computeIfAbsent(linker, l -> new Inbound());
+
+        List<Message> deliverable = new ArrayList<>();
+        byte[] ack;
+        synchronized (link) {
+            if (link.session != senderSession) {
+                // First message, or the linker restarted
+                link.session = senderSession;
+                link.expected = 1;
+                link.ahead.clear();
+            }
+
+            if (oldest > link.expected) {
+                // The messages before the oldest one in flight were given up by the sender: stop waiting for them
+                while (!link.ahead.isEmpty() && link.ahead.firstKey() < oldest) {
+                    deliverable.add(link.ahead.pollFirstEntry().getValue());
+                }
+                link.expected = oldest;
+                Message next;
+                while (sequence != link.expected && (next = link.ahead.remove(link.expected)) != null) {
+                    deliverable.add(next);
+                    link.expected++;
+                }
+            }
+
+            if (message == null) {
+                // Probe: only moves the oldest sequence
+            } else if (sequence == link.expected) {
+                deliverable.add(message);
+                link.expected++;
+                Message next;
+                while ((next = link.ahead.remove(link.expected)) != null) {
+                    deliverable.add(next);
+                    link.expected++;
+                }
+            } else if (sequence > link.expected && sequence - link.expected < 2 * window) {
+                link.ahead.putIfAbsent(sequence, message);
+            }
+            // Older sequences are duplicates, acknowledged again
+
+            int cumulative = link.expected - 1;
+            int bitmap = 0;
+            for (int seq : link.ahead.keySet()) {
+                int bit = seq - cumulative - 1;
+                if (bit >= 0 && bit < Integer.SIZE) {
+                    bitmap |= 1 << bit;
+                }
+            }
+
+            ByteBuffer out = ByteBuffer.allocate(3 * Integer.BYTES);
+            out.putInt(senderSession);
+            out.putInt(cumulative);
+            out.putInt(bitmap);
+            ack = new Message(MessageType.RELIABLE_ACK, out.array()).toByteArray();
+        }
+        transport.send(ack, linker);
+
+        for (Message delivered : deliverable) {
+            receiver.deliver(delivered, sender);
+        }
+    }
+
+    /**
+     * Handle a RELIABLE_ACK: forget the messages acknowledged, and send the ones waiting for the window
+     *
+     * @param payload
+     * @param sender
+     * @throws IOException
+     */
+    public void acknowledged(byte[] payload, InetSocketAddress sender) throws IOException {
+        ByteBuffer src = ByteBuffer.wrap(payload);
+        if (src.getInt() != session) {
+            // Acknowledges the messages of a previous run
+            return;
+        }
+        int cumulative = src.getInt();
+        int bitmap = src.getInt();
+
+        MachineAddress linker = new MachineAddress(sender);
+        Outbound link = outbound.get(linker);
+        if (link == null) {
+            return;
+        }
+
+        List<byte[]> frames = new ArrayList<>();
+        synchronized (link) {
+            long now = EventLoop.now();
+
+            Iterator<Pending> iterator = link.inFlight.values().iterator();
+            while (iterator.hasNext()) {
+                Pending pending = iterator.next();
+                int bit = pending.sequence - cumulative - 1;
+                boolean acked = pending.sequence <= cumulative || (bit < Integer.SIZE && (bitmap & (1 << bit)) != 0);
+
+                if (acked) {
+                    if (pending.transmissions == 1) {
+                        // Karn: only messages sent once give a meaningful round-trip time
+                        link.rtt.sample(now - pending.sentAt);
+                    }
+                    iterator.remove();
+                }
+            }
+
+            if (link.givenUp > 0 && cumulative >= link.givenUp) {
+                // The receiver does not wait for the messages given up anymore
+                link.givenUp = 0;
+            }
+
+            while (link.inFlight.size() < window && !link.backlog.isEmpty()) {
+                Pending pending = link.backlog.poll();
+                transmit(link, pending, now);
+                frames.add(pending.frame);
+            }
+        }
+
+        for (byte[] frame : frames) {
+            transport.send(frame, linker);
+        }
+    }
+
+    /**
+     * Send again the messages whose retransmission timeout expired
+     *
+     * @param now
+     * @throws IOException
+     */
+    public void tick(long now) throws IOException {
+        for (Map.Entry<MachineAddress, Outbound> entry : outbound.entrySet()) {
+            Outbound link = entry.getValue();
+
+            List<byte[]> frames = new ArrayList<>();
+            synchronized (link) {
+                boolean timedOut = false;
+
+                Iterator<Pending> iterator = link.inFlight.values().iterator();
+                while (iterator.hasNext()) {
+                    Pending pending = iterator.next();
+                    if (pending.deadline > now) {
+                        continue;
+                    }
+
+                    if (pending.transmissions >= maxTransmissions) {
+                        System.out.println("[i] Control message " + pending.sequence + " to linker " + entry.getKey()
+                                + " given up after " + pending.transmissions + " transmissions");
+                        iterator.remove();
+                        link.givenUp = Math.max(link.givenUp, pending.sequence);
+                        link.probeDeadline = now;
+                        continue;
+                    }
+
+                    if (!timedOut) {
+                        link.rtt.backoff();
+                        timedOut = true;
+                    }
+                    pending.transmissions++;
+                    pending.deadline = now + link.rtt.getTimeout();
+                    // The messages before it may have been given up since its last transmission
+                    pending.frame = frame(link, pending);
+                    frames.add(pending.frame);
+                }
+
+                while (link.inFlight.size() < window && !link.backlog.isEmpty()) {
+                    Pending pending = link.backlog.poll();
+                    transmit(link, pending, now);
+                    frames.add(pending.frame);
+                }
+
+                if (link.givenUp > 0 && link.probeDeadline <= now) {
+                    // Until the linker answers, or leaves: backed off like the retransmissions
+                    if (!timedOut) {
+                        link.rtt.backoff();
+                    }
+                    link.probeDeadline = now + link.rtt.getTimeout();
+                    frames.add(probe(link));
+                }
+            }
+
+            for (byte[] frame : frames) {
+                transport.send(frame, entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Forget a linker that left
+     *
+     * @param linker
+     */
+    public void forget(MachineAddress linker) {
+        outbound.remove(linker);
+        inbound.remove(linker);
+    }
+
+    /**
+     * Number of messages not acknowledged yet by a linker (in flight and waiting for the window)
+     *
+     * @param linker
+     * @return
+     */
+    public int unacknowledged(MachineAddress linker) {
+        Outbound link = outbound.get(linker);
+        if (link == null) {
+            return 0;
+        }
+        synchronized (link) {
+            return link.inFlight.size() + link.backlog.size();
+        }
+    }
+
+    private void transmit(Outbound link, Pending pending, long now) throws IOException {
+        link.inFlight.put(pending.sequence, pending);
+        pending.frame = frame(link, pending);
+
+        pending.sentAt = now;
+        pending.deadline = now + link.rtt.getTimeout();
+        pending.transmissions = 1;
+    }
+
+    /**
+     * Encode a message with the oldest sequence not given up at the time it is (re)transmitted
+     *
+     * @param link
+     * @param pending
+     * @return
+     * @throws IOException
+     */
+    private byte[] frame(Outbound link, Pending pending) throws IOException {
+        int length = pending.payload == null ? 0 : pending.payload.length;
+        ByteBuffer reliable = ByteBuffer.allocate(3 * Integer.BYTES + 1 + length);
+        reliable.putInt(session);
+        reliable.putInt(pending.sequence);
+        reliable.putInt(oldest(link));
+        reliable.put((byte) pending.type.ordinal());
+        if (pending.payload != null) {
+            reliable.put(pending.payload);
+        }
+        return new Message(MessageType.RELIABLE, reliable.array()).toByteArray();
+    }
+
+    /**
+     * Encode a probe, telling the receiver the oldest sequence not given up
+     *
+     * @param link
+     * @return
+     * @throws IOException
+     */
+    private byte[] probe(Outbound link) throws IOException {
+        ByteBuffer reliable = ByteBuffer.allocate(3 * Integer.BYTES);
+        reliable.putInt(session);
+        reliable.putInt(0);
+        reliable.putInt(oldest(link));
+        return new Message(MessageType.RELIABLE, reliable.array()).toByteArray();
+    }
+
+    /**
+     * Oldest sequence the receiver must still wait for: the first one in flight, or else the first one waiting for
+     * the window, or else the next one
+     *
+     * @param link
+     * @return
+     */
+    private static int oldest(Outbound link) {
+        if (!link.inFlight.isEmpty()) {
+            return link.inFlight.firstKey();
+        }
+        Pending waiting = link.backlog.peek();
+        return waiting != null ? waiting.sequence : link.nextSequence;
+    }
+}
@@ -0,0 +1,252 @@
+package linker;
+
+import services.ServiceType;
+import util.MachineAddress;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * @author Henrik Akesson
+ * @author Fabien Salathe
+ *
+ * Registry of the services known by a linker.
+ *
+ * For each type of service, the endpoints are kept in an array published copy-on-write:
+ * lookups read the current array without any lock and the load balancer of the type selects an endpoint.
+ * Writers lock only the type they modify.
+ *
+ * A reverse index (address -> endpoint) lets a removal go straight to the right array.
+ * The index entry of an endpoint is only changed under the lock of its type, so both stay consistent.
+ *
+ * Every change is numbered and kept in a ChangeLog, so other linkers can catch up with the changes only.
+ */
+public class ServiceRegistry {
+
+    private static final Endpoint[] EMPTY = new Endpoint[0];
+
+    /**
+     * Endpoints of one type of service
+     */
+    private static final class Endpoints {
+        private volatile Endpoint[] snapshot = EMPTY;
+        private volatile LoadBalancer balancer = new LoadBalancerRandom();
+    }
+
+    /**
+     * Fully populated at construction and never modified after, so it can be read by any thread
+     */
+    private final EnumMap<ServiceType, Endpoints> types = new EnumMap<>(ServiceType.class);
+
+    private final Map<MachineAddress, Endpoint> index = new ConcurrentHashMap<>();
+
+    private final ChangeLog log = new ChangeLog();
+
+    public ServiceRegistry() {
+        for (ServiceType type : ServiceType.values()) {
+            types.put(type, new Endpoints());
+        }
+    }
+
+    /**
+     * Change the strategy used to select the endpoints of a type
+     *
+     * @param type
+     * @param balancer
+     */
+    public void setBalancer(ServiceType type, LoadBalancer balancer) {
+        types.get(type).balancer = balancer;
+    }
+
+    public LoadBalancer getBalancer(ServiceType type) {
+        return types.get(type).balancer;
+    }
+
+    /**
+     * Versioned log of the changes of the registry
+     *
+     * @return
+     */
+    public ChangeLog getLog() {
+        return log;
+    }
+
+    /**
+     * Register an endpoint with the default weight
+     *
+     * @param type
+     * @param service
+     * @return true if the registry changed
+     */
+    public boolean add(ServiceType type, MachineAddress service) {
+        return add(type, service, 1);
+    }
+
+    /**
+     * Register an endpoint, an endpoint has a single type.
+     * If the endpoint is already registered with this type, only its weight is updated.
+     *
+     * @param type
+     * @param service
+     * @param weight
+     * @return true if the registry changed
+     */
+    public boolean add(ServiceType type, MachineAddress service, int weight) {
+        Endpoint previous;
+
+        Endpoints endpoints = types.get(type);
+        synchronized (endpoints) {
+            previous = index.get(service);
+            if (previous != null && previous.getType() == type) {
+                if (previous.getWeight() != Math.max(1, weight)) {
+                    previous.setWeight(weight);
+                    log.append(false, type, service, weight);
+                }
+                return false;
+            }
+
+            Endpoint endpoint = new Endpoint(type, service, weight);
+            index.put(service, endpoint);
+            log.append(false, type, service, weight);
+
+            Endpoint[] current = endpoints.snapshot;
+            Endpoint[] next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = endpoint;
+            endpoints.snapshot = next;
+        }
+
+        // The endpoint changed of type
+        if (previous != null) {
+            removeFrom(previous);
+        }
+
+        return true;
+    }
+
+    /**
+     * Remove an endpoint, whatever its type
+     *
+     * @param service
+     * @return the type of the endpoint removed, or null if it was not registered
+     */
+    public ServiceType remove(MachineAddress service) {
+        Endpoint endpoint = index.get(service);
+
+        if (endpoint == null) {
+            return null;
+        }
+
+        synchronized (types.get(endpoint.getType())) {
+            if (!index.remove(service, endpoint)) {
+                // Removed or moved by another thread in the meantime
+                return null;
+            }
+
+            removeFrom(endpoint);
+            log.append(true, endpoint.getType(), service, 0);
+        }
+
+        return endpoint.getType();
+    }
+
+    /**
+     * Remove an endpoint from the array of its type
+     *
+     * @param endpoint
+     */
+    private void removeFrom(Endpoint endpoint) {
+        Endpoints endpoints = types.get(endpoint.getType());
+
+        synchronized (endpoints) {
+            Endpoint[] current = endpoints.snapshot;
+            int i = Arrays.asList(current).indexOf(endpoint);
+            if (i < 0) {
+                return;
+            }
+
+            Endpoint[] next = new Endpoint[current.length - 1];
+            System.arraycopy(current, 0, next, 0, i);
+            System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+            endpoints.snapshot = next;
+        }
+    }
+
+    /**
+     * Select an endpoint of the given type with the load balancer of the type, and count it as assigned
+     *
+     * @param type
+     * @return an endpoint, or null if there is none
+     */
+    public Endpoint select(ServiceType type) {
+        Endpoints endpoints = types.get(type);
+        Endpoint[] snapshot = endpoints.snapshot;
+
+        if (snapshot.length == 0) {
+            return null;
+        }
+
+        Endpoint endpoint = endpoints.balancer.select(snapshot);
+        endpoint.assigned();
+        return endpoint;
+    }
+
+    /**
+     * Current endpoints of the given type, the array must not be modified
+     *
+     * @param type
+     * @return
+     */
+    public Endpoint[] snapshot(ServiceType type) {
+        return types.get(type).snapshot;
+    }
+
+    /**
+     * Registered endpoint of an address
+     *
+     * @param service
+     * @return the endpoint, or null if the address is not registered
+     */
+    public Endpoint get(MachineAddress service) {
+        return index.get(service);
+    }
+
+    public int size(ServiceType type) {
+        return types.get(type).snapshot.length;
+    }
+
+    public boolean isEmpty() {
+        return index.isEmpty();
+    }
+
+    public void forEach(BiConsumer<ServiceType, Endpoint[]> action) {
+        types.forEach((type, endpoints) -> action.accept(type, endpoints.snapshot));
+    }
+
+    /**
+     * Copy of the registry with plain collections (format of the LINKERS_TABLE message)
+     *
+     * @return
+     */
+    public Map<ServiceType, Set<MachineAddress>> toMap() {
+        Map<ServiceType, Set<MachineAddress>> map = new HashMap<>();
+
+        types.forEach((type, endpoints) -> {
+            Endpoint[] snapshot = endpoints.snapshot;
+            if (snapshot.length > 0) {
+                Set<MachineAddress> set = new HashSet<>();
+                for (Endpoint endpoint : snapshot) {
+                    set.add(endpoint.getAddress());
+                }
+                map.put(type, set);
+            }
+        });
+
+        return map;
+    }
+}
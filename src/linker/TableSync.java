@@ -0,0 +1,344 @@
+package linker;
+
+import services.ServiceType;
+import util.MachineAddress;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Henrik Akesson
+ * @author Fabien Salathe
+ *
+ * Transfer of the services table between linkers, in several TABLE_CHUNK datagrams.
+ *
+ * A linker asks for the changes made since the last version it has seen (REQUEST_LINKERS_TABLE [epoch | version]).
+ * It gets the changes from the ChangeLog of the other linker, or the whole table (snapshot) if they were
+ * compacted away, if the epoch changed or if it never synchronized with this linker (epoch 0).
+ *
+ * Chunk: [epoch (int64) | version (int64) | time (int64) | transfer id (int32) | index (u16) | count (u16) | kind
+ *         | entries (u16) | entry...]
+ * Entry: [flags | service type | weight | lease (int32, if flagged) | version (int64, if flagged) | service address]
+ * Flags: removal (0x01), lease (0x02), version (0x04). The lease of the registration is sent along, so that a service
+ * synchronized this way still expires if it stops renewing it. The version of each registration and removal (see
+ * HybridClock) is sent along too, so that the newest change of a service wins, as with the gossip. The time is the
+ * hybrid clock of the sender when it read its table: a service missing from a snapshot and registered before that
+ * time is not known by the sender anymore.
+ *
+ * The chunks of a transfer are reassembled in any order, the transfer is only applied once complete. A transfer that
+ * gets no chunk for a timeout (the request or a chunk was lost) is dropped, see stalled: the table is asked again.
+ * Shared by the workers of the linker: chunks of a transfer can be received by several workers.
+ */
+public class TableSync {
+
+    public static final byte SNAPSHOT = 0;
+    public static final byte DELTAS = 1;
+
+    private static final byte REMOVAL = 0x01;
+    private static final byte LEASE = 0x02;
+    private static final byte VERSION = 0x04;
+
+    /**
+     * Maximum size of the entries of a chunk, to stay below the MTU
+     */
+    public static final int CHUNK_BYTES = 1200;
+
+    /**
+     * Size of the fixed part of a chunk
+     */
+    private static final int CHUNK_HEADER = 3 * Long.BYTES + Integer.BYTES + 3 * Short.BYTES + 1;
+
+    private static final AtomicInteger TRANSFER_IDS = new AtomicInteger();
+
+    /**
+     * Complete transfer
+     */
+    public static final class Table {
+        private final long epoch;
+        private final long version;
+        private final long time;
+        private final byte kind;
+        private final List<ChangeLog.Change> changes;
+
+        private Table(long epoch, long version, long time, byte kind, List<ChangeLog.Change> changes) {
+            this.epoch = epoch;
+            this.version = version;
+            this.time = time;
+            this.kind = kind;
+            this.changes = changes;
+        }
+
+        public long getEpoch() {
+            return epoch;
+        }
+
+        /**
+         * Version of the table of the sender once the transfer is applied
+         *
+         * @return
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * Hybrid clock of the sender when it read its table (see HybridClock)
+         *
+         * @return
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public boolean isSnapshot() {
+            return kind == SNAPSHOT;
+        }
+
+        /**
+         * Changes to apply in order (only registrations for a snapshot)
+         *
+         * @return
+         */
+        public List<ChangeLog.Change> getChanges() {
+            return changes;
+        }
+    }
+
+    /**
+     * Chunks received of a transfer
+     */
+    private static final class Transfer {
+        private final int id;
+        private final List<List<ChangeLog.Change>> chunks;
+        private int received;
+
+        /**
+         * Time the table was asked for or the last chunk was received (ms)
+         */
+        private long progress;
+
+        private Transfer(int id, int count, long now) {
+            this.id = id;
+            this.chunks = new ArrayList<>(Collections.nCopies(count, null));
+            this.progress = now;
+        }
+    }
+
+    /**
+     * Transfer in progress from each linker
+     */
+    private final Map<InetSocketAddress, Transfer> transfers = new HashMap<>();
+
+    /**
+     * Payloads of the chunks of the changes made since the given version,
+     * or of the whole registry if these changes are not known
+     *
+     * @param registry
+     * @param tombstones removals of the registry, to send their version
+     * @param time hybrid clock of this linker, read before the registry
+     * @param epoch epoch of the version, 0 if unknown
+     * @param since last version seen
+     * @return
+     * @throws IOException
+     */
+    public static List<byte[]> chunks(ServiceRegistry registry, Tombstones tombstones, long time, long epoch,
+                                      long since) throws IOException {
+        ChangeLog log = registry.getLog();
+
+        List<ChangeLog.Change> changes = epoch == log.getEpoch() ? log.since(since) : null;
+        if (changes != null) {
+            long version = changes.isEmpty() ? since : changes.get(changes.size() - 1).getVersion();
+            List<ChangeLog.Change> current = new ArrayList<>(changes.size());
+            for (ChangeLog.Change change : changes) {
+                current.add(change.current(registry, tombstones));
+            }
+            return chunks(log.getEpoch(), version, time, DELTAS, current);
+        }
+
+        // Version read before the table: changes made while it is read are sent again next time (idempotent)
+        long version = log.getVersion();
+        List<ChangeLog.Change> snapshot = new ArrayList<>();
+        registry.forEach((type, endpoints) -> {
+            for (Endpoint endpoint : endpoints) {
+                snapshot.add(new ChangeLog.Change(version, false, type, endpoint.getAddress(), endpoint.getWeight(),
+                        endpoint.getLeaseMillis(), endpoint.getVersion()));
+            }
+        });
+
+        return chunks(log.getEpoch(), version, time, SNAPSHOT, snapshot);
+    }
+
+    private static List<byte[]> chunks(long epoch, long version, long time, byte kind, List<ChangeLog.Change> changes)
+            throws IOException {
+        // Group the entries by chunk
+        List<List<ChangeLog.Change>> groups = new ArrayList<>();
+        List<ChangeLog.Change> group = new ArrayList<>();
+        int size = 0;
+
+        for (ChangeLog.Change change : changes) {
+            int entrySize = 3 + (change.getLease() > 0 ? Integer.BYTES : 0)
+                    + (change.getServiceVersion() > 0 ? Long.BYTES : 0) + change.getAddress().encodedSize();
+            if (size + entrySize > CHUNK_BYTES && !group.isEmpty()) {
+                groups.add(group);
+                group = new ArrayList<>();
+                size = 0;
+            }
+            group.add(change);
+            size += entrySize;
+        }
+        groups.add(group);
+
+        if (groups.size() > 0xFFFF) {
+            throw new IOException("Table too large (" + changes.size() + " entries)");
+        }
+
+        int transferId = TRANSFER_IDS.incrementAndGet();
+        List<byte[]> payloads = new ArrayList<>(groups.size());
+
+        for (int i = 0; i < groups.size(); i++) {
+            ByteBuffer chunk = ByteBuffer.allocate(CHUNK_HEADER + CHUNK_BYTES + 32);
+            chunk.putLong(epoch);
+            chunk.putLong(version);
+            chunk.putLong(time);
+            chunk.putInt(transferId);
+            chunk.putShort((short) i);
+            chunk.putShort((short) groups.size());
+            chunk.put(kind);
+            chunk.putShort((short) groups.get(i).size());
+
+            for (ChangeLog.Change change : groups.get(i)) {
+                chunk.put((byte) ((change.isRemoval() ? REMOVAL : 0) | (change.getLease() > 0 ? LEASE : 0)
+                        | (change.getServiceVersion() > 0 ? VERSION : 0)));
+                chunk.put(change.getType().getType());
+                chunk.put((byte) change.getWeight());
+                if (change.getLease() > 0) {
+                    chunk.putInt(change.getLease());
+                }
+                if (change.getServiceVersion() > 0) {
+                    chunk.putLong(change.getServiceVersion());
+                }
+                change.getAddress().writeTo(chunk);
+            }
+
+            payloads.add(Arrays.copyOf(chunk.array(), chunk.position()));
+        }
+
+        return payloads;
+    }
+
+    /**
+     * The table of a linker was asked for: the transfer is in progress until its last chunk is received
+     *
+     * @param linker
+     * @param now (ms)
+     */
+    public synchronized void requested(InetSocketAddress linker, long now) {
+        Transfer transfer = transfers.get(linker);
+        if (transfer == null) {
+            transfers.put(linker, new Transfer(0, 0, now));
+        } else {
+            transfer.progress = now;
+        }
+    }
+
+    /**
+     * Drop the transfer from a linker if it got no chunk for the given time
+     *
+     * @param linker
+     * @param now (ms)
+     * @param timeout (ms)
+     * @return true if the transfer was dropped and must be asked again, false if it is complete or still progressing
+     */
+    public synchronized boolean stalled(InetSocketAddress linker, long now, long timeout) {
+        Transfer transfer = transfers.get(linker);
+        if (transfer == null || now - transfer.progress < timeout) {
+            return false;
+        }
+        transfers.remove(linker);
+        return true;
+    }
+
+    /**
+     * Whether the table of a linker was asked for and has not been received in full yet
+     *
+     * @param linker
+     * @return
+     */
+    public synchronized boolean inProgress(InetSocketAddress linker) {
+        return transfers.containsKey(linker);
+    }
+
+    /**
+     * Add a chunk to its transfer
+     *
+     * @param sender
+     * @param payload
+     * @param now (ms)
+     * @return the whole table once the last chunk is received, null otherwise
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public Table accept(InetSocketAddress sender, ByteBuffer payload, long now)
+            throws IOException, ClassNotFoundException {
+        long epoch = payload.getLong();
+        long version = payload.getLong();
+        long time = payload.getLong();
+        int transferId = payload.getInt();
+        int index = payload.getShort() & 0xFFFF;
+        int count = payload.getShort() & 0xFFFF;
+        byte kind = payload.get();
+        int entries = payload.getShort() & 0xFFFF;
+
+        if (index >= count || (kind != SNAPSHOT && kind != DELTAS)) {
+            throw new StreamCorruptedException("Invalid chunk " + index + "/" + count);
+        }
+
+        List<ChangeLog.Change> changes = new ArrayList<>(entries);
+        for (int i = 0; i < entries; i++) {
+            byte flags = payload.get();
+            ServiceType type = ServiceType.fromType(payload.get());
+            int weight = payload.get() & 0xFF;
+            int lease = (flags & LEASE) != 0 ? payload.getInt() : 0;
+            long serviceVersion = (flags & VERSION) != 0 ? payload.getLong() : 0;
+            changes.add(new ChangeLog.Change(version, (flags & REMOVAL) != 0, type, MachineAddress.readFrom(payload),
+                    weight, lease, serviceVersion));
+        }
+
+        synchronized (this) {
+            Transfer transfer = transfers.get(sender);
+
+            if (transfer == null || transfer.id != transferId || transfer.chunks.size() != count) {
+                // A new transfer from this linker replaces the unfinished one
+                transfer = new Transfer(transferId, count, now);
+                transfers.put(sender, transfer);
+            }
+            transfer.progress = now;
+
+            if (transfer.chunks.get(index) == null) {
+                transfer.chunks.set(index, changes);
+                transfer.received++;
+            }
+
+            if (transfer.received < count) {
+                return null;
+            }
+
+            transfers.remove(sender);
+
+            List<ChangeLog.Change> all = new ArrayList<>();
+            for (List<ChangeLog.Change> chunk : transfer.chunks) {
+                all.addAll(chunk);
+            }
+            return new Table(epoch, version, time, kind, all);
+        }
+    }
+}
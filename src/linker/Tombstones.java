@@ -0,0 +1,144 @@
+package linker;
+
+import services.ServiceType;
+import util.MachineAddress;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author Henrik Akesson
+ * @author Fabien Salathe
+ *
+ * Services removed recently, with the version of their removal (see HybridClock).
+ *
+ * A removal is exchanged by the anti-entropy like a registration: the newest of the two wins on both linkers, so a
+ * removal lost on the way is repaired instead of the service being added back. Removals are forgotten `ttl` ms after
+ * they were made (a registration older than that is not accepted by the gossip anymore either).
+ *
+ * Shared by the workers of the linker.
+ */
+public class Tombstones {
+
+    /**
+     * Removal of a service
+     */
+    public static final class Tombstone {
+        private final ServiceType type;
+        private final MachineAddress address;
+        private final long version;
+        private final long forgetAt;
+
+        private Tombstone(ServiceType type, MachineAddress address, long version, long forgetAt) {
+            this.type = type;
+            this.address = address;
+            this.version = version;
+            this.forgetAt = forgetAt;
+        }
+
+        public ServiceType getType() {
+            return type;
+        }
+
+        public MachineAddress getAddress() {
+            return address;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+    }
+
+    private final HybridClock clock;
+
+    private final long ttl;
+
+    private final Map<MachineAddress, Tombstone> removed = new HashMap<>();
+
+    /**
+     * Tombstones in the order they are forgotten
+     */
+    private final ArrayDeque<Tombstone> order = new ArrayDeque<>();
+
+    /**
+     * @param clock
+     * @param ttl time a removal is kept (ms)
+     */
+    public Tombstones(HybridClock clock, long ttl) {
+        this.clock = clock;
+        this.ttl = ttl;
+    }
+
+    /**
+     * A service was removed, the newest removal is kept
+     *
+     * @param type
+     * @param address
+     * @param version
+     */
+    public synchronized void add(ServiceType type, MachineAddress address, long version) {
+        collect();
+
+        Tombstone known = removed.get(address);
+        if (type == null || version <= 0 || (known != null && known.version >= version)) {
+            return;
+        }
+
+        Tombstone tombstone = new Tombstone(type, address, version, clock.wallTime() + ttl);
+        removed.put(address, tombstone);
+        order.add(tombstone);
+    }
+
+    /**
+     * A service was registered again with a newer version: its removal is obsolete
+     *
+     * @param address
+     * @param version
+     */
+    public synchronized void registered(MachineAddress address, long version) {
+        Tombstone known = removed.get(address);
+        if (known != null && version > known.version) {
+            removed.remove(address);
+        }
+    }
+
+    /**
+     * Version of the removal of a service
+     *
+     * @param address
+     * @return the version, 0 if the service was not removed recently
+     */
+    public synchronized long version(MachineAddress address) {
+        collect();
+
+        Tombstone known = removed.get(address);
+        return known == null ? 0 : known.version;
+    }
+
+    /**
+     * Removals still remembered
+     *
+     * @return
+     */
+    public synchronized List<Tombstone> snapshot() {
+        collect();
+        return new ArrayList<>(removed.values());
+    }
+
+    public synchronized int size() {
+        return removed.size();
+    }
+
+    private void collect() {
+        long now = clock.wallTime();
+
+        Tombstone tombstone;
+        while ((tombstone = order.peek()) != null && tombstone.forgetAt <= now) {
+            order.poll();
+            removed.remove(tombstone.address, tombstone);
+        }
+    }
+}
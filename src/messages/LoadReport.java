@@ -0,0 +1,86 @@
+package messages;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author Henrik Akesson
+ * @author Fabien Salathe
+ *
+ * Load of a service, sent in its PONGs and HEARTBEATs
+ *
+ * Binary format: [queue depth (u16) | in flight (u16) | average latency in microseconds (int32)]
+ */
+public class LoadReport {
+
+    public static final int SIZE = 8;
+
+    /**
+     * Requests waiting to be processed
+     */
+    private final int queueDepth;
+
+    /**
+     * Requests received and not answered yet (waiting or being processed)
+     */
+    private final int inFlight;
+
+    /**
+     * Moving average of the time spent to compute a response
+     */
+    private final int latencyMicros;
+
+    public LoadReport(int queueDepth, int inFlight, int latencyMicros) {
+        this.queueDepth = queueDepth;
+        this.inFlight = inFlight;
+        this.latencyMicros = latencyMicros;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    public int getLatencyMicros() {
+        return latencyMicros;
+    }
+
+    /**
+     * Write a report without creating it
+     *
+     * @param dst
+     * @param queueDepth
+     * @param inFlight
+     * @param latencyMicros
+     */
+    public static void write(ByteBuffer dst, int queueDepth, int inFlight, int latencyMicros) {
+        dst.putShort((short) Math.min(queueDepth, 0xFFFF));
+        dst.putShort((short) Math.min(inFlight, 0xFFFF));
+        dst.putInt(latencyMicros);
+    }
+
+    /**
+     * Read a report from the buffer
+     *
+     * @param src
+     * @return the report, or null if there is not enough data (services of previous versions)
+     */
+    public static LoadReport readFrom(ByteBuffer src) {
+        if (src.remaining() < SIZE) {
+            return null;
+        }
+
+        return new LoadReport(src.getShort() & 0xFFFF, src.getShort() & 0xFFFF, src.getInt());
+    }
+
+    @Override
+    public String toString() {
+        return "LoadReport{" +
+                "queueDepth=" + queueDepth +
+                ", inFlight=" + inFlight +
+                ", latencyMicros=" + latencyMicros +
+                '}';
+    }
+}
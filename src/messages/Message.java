@@ -3,11 +3,13 @@ package messages;
 import util.ByteArrayable;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
  * Message used to communicate between instances on the network.
- * Messages are serializable in order to be able to get a binary buffer to send to the network
+ * Messages are encoded with MessageCodec in order to be able to get a binary buffer to send to the network.
+ * They stay serializable for the legacy protocol.
  */
 public class Message implements Serializable, ByteArrayable {
 
@@ -23,11 +25,27 @@ public class Message implements Serializable, ByteArrayable {
      */
     private byte[] payload;
 
+    /**
+     * Correlation id of a request, echoed in its response (0 when the message is not correlated)
+     */
+    private int requestId;
+
     public Message(MessageType messageType, byte[] message) {
         this.messageType = messageType;
         this.payload = message;
     }
 
+    public Message(MessageType messageType, byte[] message, int requestId) {
+        this(messageType, message);
+        this.requestId = requestId;
+    }
+
+    /**
+     * Payload of the message, not copied. The messages of the receive loops are decoded with
+     * MessageCodec.decodeReusing: their payload is overwritten by the next datagram, and must be copied to be kept.
+     *
+     * @return
+     */
     public byte[] getPayload() {
         return payload;
     }
@@ -36,14 +54,46 @@ public class Message implements Serializable, ByteArrayable {
         return messageType;
     }
 
+    public int getRequestId() {
+        return requestId;
+    }
+
+    /**
+     * Encode the message with the current protocol version (see MessageCodec)
+     *
+     * @return
+     * @throws IOException
+     */
+    @Override
+    public byte[] toByteArray() throws IOException {
+        if (MessageCodec.getProtocolVersion() == MessageCodec.PROTOCOL_LEGACY) {
+            return toLegacyByteArray();
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(MessageCodec.encodedSize(this));
+        MessageCodec.encode(this, buffer, MessageCodec.PROTOCOL_BINARY);
+        return buffer.array();
+    }
+
+    /**
+     * Encode the message with Java object serialization
+     *
+     * @return
+     * @throws IOException
+     */
+    byte[] toLegacyByteArray() throws IOException {
+        return ByteArrayable.super.toByteArray();
+    }
+
     public static Message fromByteArray(final byte[] bytes) throws IOException, ClassNotFoundException {
-        return (Message) ByteArrayable.fromByteArray(bytes);
+        return MessageCodec.decode(ByteBuffer.wrap(bytes));
     }
 
     @Override
     public String toString() {
         return "Message{" +
                 "messageType=" + messageType +
+                (requestId != 0 ? ", requestId=" + requestId : "") +
                 ", payload=" + Arrays.toString(payload) +
                 '}';
     }
@@ -51,4 +101,17 @@ public class Message implements Serializable, ByteArrayable {
     public void setPayload(byte[] payload) {
         this.payload = payload;
     }
+
+    /**
+     * Reuse this instance for another message (see MessageCodec.decodeReusing)
+     *
+     * @param messageType
+     * @param payload
+     * @param requestId
+     */
+    void reset(MessageType messageType, byte[] payload, int requestId) {
+        this.messageType = messageType;
+        this.payload = payload;
+        this.requestId = requestId;
+    }
 }
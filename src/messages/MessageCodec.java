@@ -0,0 +1,274 @@
+package messages;
+
+import util.ByteArrayable;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * @author Henrik Akesson
+ * @author Fabien Salathe
+ *
+ * Hand-written binary codec for messages, without any reflection.
+ *
+ * Frame (big endian):
+ * +---------+------+-------------+--------------------+-----------------+---------+
+ * | version | type | flags (u16) | request id (int32) | length (int32)  | payload |
+ * +---------+------+-------------+--------------------+-----------------+---------+
+ *
+ * A length of -1 means a null payload. The request id correlates a RESPONSE with its REQUEST (0 when unused),
+ * so a client can have many requests in flight on one socket.
+ *
+ * The version byte allows a mixed fleet to be rolled over: PROTOCOL_LEGACY frames are plain Java
+ * serialization streams, which always start with 0xACED and are recognized as such when decoding.
+ */
+public final class MessageCodec {
+
+    /**
+     * Java object serialization (the original protocol)
+     */
+    public static final byte PROTOCOL_LEGACY = 0;
+
+    /**
+     * Fixed header binary protocol
+     */
+    public static final byte PROTOCOL_BINARY = 1;
+
+    /**
+     * Size of the fixed header of a binary frame
+     */
+    public static final int HEADER_SIZE = 12;
+
+    /**
+     * First byte of a Java serialization stream (STREAM_MAGIC = 0xACED)
+     */
+    private static final byte STREAM_MAGIC_HIGH = (byte) 0xAC;
+
+    private static final MessageType[] TYPES = MessageType.values();
+
+    /**
+     * Protocol used when encoding, can be changed with -Dprotocol=0 to talk to a legacy fleet
+     */
+    private static volatile byte protocolVersion = Byte.parseByte(
+            System.getProperty("protocol", Byte.toString(PROTOCOL_BINARY))
+    );
+
+    private MessageCodec() {
+    }
+
+    public static byte getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    public static void setProtocolVersion(byte version) {
+        if (version != PROTOCOL_LEGACY && version != PROTOCOL_BINARY) {
+            throw new IllegalArgumentException("Unknown protocol version " + version);
+        }
+        protocolVersion = version;
+    }
+
+    /**
+     * Size of the encoded message with the binary protocol
+     *
+     * @param message
+     * @return
+     */
+    public static int encodedSize(Message message) {
+        return HEADER_SIZE + (message.getPayload() == null ? 0 : message.getPayload().length);
+    }
+
+    /**
+     * Encode a message into the given buffer with the current protocol version
+     *
+     * @param message
+     * @param dst
+     * @throws IOException
+     */
+    public static void encode(Message message, ByteBuffer dst) throws IOException {
+        encode(message, dst, protocolVersion);
+    }
+
+    /**
+     * Encode a message into the given buffer, starting at its current position
+     *
+     * @param message
+     * @param dst
+     * @param version
+     * @throws IOException
+     */
+    public static void encode(Message message, ByteBuffer dst, byte version) throws IOException {
+        if (version == PROTOCOL_LEGACY) {
+            dst.put(message.toLegacyByteArray());
+            return;
+        }
+
+        byte[] payload = message.getPayload();
+
+        dst.put(PROTOCOL_BINARY);
+        dst.put((byte) message.getMessageType().ordinal());
+        dst.putShort((short) 0);
+        dst.putInt(message.getRequestId());
+
+        if (payload == null) {
+            dst.putInt(-1);
+        } else {
+            dst.putInt(payload.length);
+            dst.put(payload);
+        }
+    }
+
+    /**
+     * Start a binary frame in the given buffer, the payload can then be written directly after it.
+     * The frame must be completed with endFrame.
+     *
+     * @param dst
+     * @param type
+     * @return the position of the frame in the buffer
+     */
+    public static int beginFrame(ByteBuffer dst, MessageType type) {
+        return beginFrame(dst, type, 0);
+    }
+
+    /**
+     * Start a binary frame correlated with a request (see beginFrame)
+     *
+     * @param dst
+     * @param type
+     * @param requestId
+     * @return the position of the frame in the buffer
+     */
+    public static int beginFrame(ByteBuffer dst, MessageType type, int requestId) {
+        int start = dst.position();
+
+        dst.put(PROTOCOL_BINARY);
+        dst.put((byte) type.ordinal());
+        dst.putShort((short) 0);
+        dst.putInt(requestId);
+        dst.putInt(0); // length, patched by endFrame
+
+        return start;
+    }
+
+    /**
+     * Complete a frame started with beginFrame, once its payload has been written
+     *
+     * @param dst
+     * @param start
+     * @throws IOException
+     */
+    public static void endFrame(ByteBuffer dst, int start) throws IOException {
+        int length = dst.position() - start - HEADER_SIZE;
+
+        if (protocolVersion == PROTOCOL_LEGACY) {
+            // Legacy peers only understand serialized objects, the frame is rewritten
+            byte[] payload = new byte[length];
+            for (int i = 0; i < length; i++) {
+                payload[i] = dst.get(start + HEADER_SIZE + i);
+            }
+            dst.position(start);
+            dst.put(new Message(TYPES[dst.get(start + 1)], payload, dst.getInt(start + 4)).toLegacyByteArray());
+            return;
+        }
+
+        dst.putInt(start + 8, length);
+    }
+
+    /**
+     * Write a whole frame with a null payload (ACK, PING...)
+     *
+     * @param dst
+     * @param type
+     * @throws IOException
+     */
+    public static void encodeEmpty(ByteBuffer dst, MessageType type) throws IOException {
+        if (protocolVersion == PROTOCOL_LEGACY) {
+            dst.put(new Message(type, null).toLegacyByteArray());
+            return;
+        }
+
+        dst.put(PROTOCOL_BINARY);
+        dst.put((byte) type.ordinal());
+        dst.putShort((short) 0);
+        dst.putInt(0);
+        dst.putInt(-1);
+    }
+
+    /**
+     * Decode a message from the given buffer, starting at its current position.
+     * Both binary and legacy frames are accepted.
+     *
+     * @param src
+     * @return
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public static Message decode(ByteBuffer src) throws IOException, ClassNotFoundException {
+        Message message = new Message(null, null);
+        decodeReusing(src, message);
+        return message;
+    }
+
+    /**
+     * Decode a message into an existing instance, to avoid allocations in receive loops.
+     * The payload array of the instance is reused (and overwritten) when it has the right length: the payload of the
+     * previous message decoded into the instance is only valid until this call. A handler that keeps a payload beyond
+     * the message it handles must copy it.
+     *
+     * @param src
+     * @param into
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public static void decodeReusing(ByteBuffer src, Message into) throws IOException, ClassNotFoundException {
+        if (!src.hasRemaining()) {
+            throw new EOFException("Empty frame");
+        }
+
+        byte version = src.get(src.position());
+
+        if (version == STREAM_MAGIC_HIGH) {
+            byte[] bytes = new byte[src.remaining()];
+            src.get(bytes);
+            Message legacy = (Message) ByteArrayable.fromByteArray(bytes);
+            into.reset(legacy.getMessageType(), legacy.getPayload(), legacy.getRequestId());
+            return;
+        }
+
+        if (version != PROTOCOL_BINARY) {
+            throw new StreamCorruptedException("Unknown protocol version " + version);
+        }
+
+        try {
+            src.get(); // version
+            int type = src.get() & 0xFF;
+            src.getShort(); // flags, unused for now
+            int requestId = src.getInt();
+            int length = src.getInt();
+
+            if (type >= TYPES.length) {
+                throw new StreamCorruptedException("Unknown message type " + type);
+            }
+
+            byte[] payload = null;
+            if (length >= 0) {
+                if (length > src.remaining()) {
+                    throw new EOFException("Truncated payload (" + length + " > " + src.remaining() + ")");
+                }
+                payload = into.getPayload();
+                if (payload == null || payload.length != length) {
+                    payload = new byte[length];
+                }
+                src.get(payload);
+            } else if (length != -1) {
+                throw new StreamCorruptedException("Invalid payload length " + length);
+            }
+
+            into.reset(TYPES[type], payload, requestId);
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("Truncated header");
+        }
+    }
+}
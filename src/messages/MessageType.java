@@ -2,6 +2,7 @@ package messages;
 
 /**
  * Type of possible messages
+ * New types must be added at the end: the binary protocol sends the ordinal
  */
 public enum MessageType {
     PING,
@@ -15,5 +16,17 @@ public enum MessageType {
     REMOVE_SERVICE,
     REGISTER_SERVICE_FROM_LINKER,
     REQUEST_LINKERS_TABLE,
-    LINKERS_TABLE
+    LINKERS_TABLE,
+    HEARTBEAT,
+    TABLE_CHUNK,
+    LINKER_JOIN,
+    LINKER_MEMBERS,
+    LINKER_LEAVE,
+    ROUTE,
+    ENTROPY_ROOTS,
+    ENTROPY_LEAVES,
+    ENTROPY_BUCKETS,
+    RELIABLE,
+    RELIABLE_ACK,
+    SERVICE_ENDPOINTS
 }
@@ -1,18 +1,33 @@
 package services;
 
 import messages.Message;
+import messages.MessageCodec;
 import messages.MessageType;
+import util.BufferPool;
 import util.ConfigReader;
+import util.EventLoop;
 import util.MachineAddress;
+import util.MemberList;
+import util.Options;
+import util.RetryScheduler;
+import util.RttTable;
 
-import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Henrik Akesson
@@ -25,14 +40,30 @@ import java.util.List;
  * Automatically restart on error.
  *
  * Handshake:
- * Service --(register)--> Linker
- *         <----(ack)-----
+ * Service --(register [type | weight | lease])--> Linker
+ *         <----(ack [lease granted | linkers])--
+ * The ACK is waited for the timeout of the linker, derived from the round-trip times measured (see RttTable).
+ * Without ACK, the next linker is asked after a random backoff (see RetryScheduler).
+ *
+ * The registration is a lease: it is renewed by the heartbeats, sent at least three times per lease.
+ * A service that stops renewing its lease is dropped by the linkers.
+ *
+ * Service --(heartbeat [type | load])--> Linker
+ *         <----(ack)--
+ * When HEARTBEAT_MISSES heartbeats in a row are not acknowledged, the linker may be down: the service registers with
+ * the next linker instead, until one of them acknowledges it, with the backoff and the budget of its retries.
  *
  * Service <--(request)--- Client
  *         ---(response)->
  *
+ * Requests are queued by the receiving thread and processed by a worker, so that PINGs are always
+ * answered at once. PONGs and periodic HEARTBEATs (to the linker of the handshake) carry the load
+ * of the service: queue depth, requests in flight and average latency of getResponse.
+ *
  * Launching Services:
- *    `java Service <type> <port>`
+ *    `java Service <type> <port> [weight=<relative capacity>] [heartbeat=<interval in ms, 0 to disable>]
+ *                 [lease=<ms, 0 for a registration that does not expire>] [timeout.min=<ms>] [timeout.max=<ms>]
+ *                 [retry.attempts=<number of attempts of the registration, default 20, 0 for no limit>]`
  *    type: Type of service
  *        - "reply"
  *        - "time"
@@ -41,44 +72,190 @@ import java.util.List;
 
 public abstract class Service {
 
+    /**
+     * Print every message received (-Dverbose=true), off by default to keep the hot path allocation free
+     */
+    private static final boolean VERBOSE = Boolean.getBoolean("verbose");
+
+    /**
+     * Maximum number of requests waiting to be processed, the next ones are dropped
+     */
+    private static final int QUEUE_SIZE = 64;
+
+    /**
+     * Buffer and packet of a received datagram, reused
+     */
+    private static final class Slot {
+        private final ByteBuffer buffer = ByteBuffer.allocate(BufferPool.BUFFER_SIZE);
+        private final DatagramPacket packet = new DatagramPacket(buffer.array(), buffer.capacity());
+    }
+
     /**
      * UDP socket that will be used to send and receive messages
      */
     private final DatagramSocket socket;
 
     /**
-     * List of all linkers
+     * List of all linkers, updated with the linkers sent in the ACK (linkers can join and leave)
+     */
+    private volatile List<MachineAddress> linkers;
+
+    /**
+     * Round-trip times of the linkers, from which the time to wait for an ACK is derived
+     */
+    private RttTable rtt = new RttTable(500, 20, 5000);
+
+    /**
+     * Whether a registration timed out since the last ACK: the round-trip time of an ACK is then not measured,
+     * it may answer an earlier registration (Karn)
+     */
+    private boolean retried;
+
+    /**
+     * Retries of the registration, with backoff and jitter
+     */
+    private RetryScheduler retry = new RetryScheduler(RetryScheduler.DEFAULT_ATTEMPTS);
+
+    /**
+     * Relative capacity of the service, given to the linker at registration (1 to 255)
+     */
+    private int weight = 1;
+
+    /**
+     * Linker the service registered to, receives the heartbeats
+     */
+    private volatile MachineAddress linker;
+
+    /**
+     * Heartbeats in a row not acknowledged before the service registers with another linker
+     */
+    private static final int HEARTBEAT_MISSES = 2;
+
+    /**
+     * Heartbeats sent since the last ACK
+     */
+    private final AtomicInteger unacknowledged = new AtomicInteger();
+
+    /**
+     * Index of the next linker to register with when the linker does not acknowledge the heartbeats
+     * (heartbeat thread only)
+     */
+    private int nextLinker;
+
+    /**
+     * Registrations sent since the heartbeats are not acknowledged, and time of the next one (heartbeat thread only)
+     */
+    private int registrations;
+
+    private long nextRegistration;
+
+    /**
+     * Interval between two heartbeats (ms), 0 to disable them
+     */
+    private int heartbeatInterval = 1000;
+
+    /**
+     * Duration of the lease of the registration (ms), 0 for a registration that does not expire.
+     * Asked at registration, then set to the lease granted by the linker.
+     */
+    private volatile int lease = 10000;
+
+    private final ServiceLoad load = new ServiceLoad();
+
+    /**
+     * Slots available to receive a datagram
      */
-    private List<MachineAddress> linkers;
+    private final BlockingQueue<Slot> freeSlots = new ArrayBlockingQueue<>(QUEUE_SIZE);
 
-    private int timeout = 500;
+    /**
+     * Requests waiting for the worker
+     */
+    private final BlockingQueue<Slot> requests = new ArrayBlockingQueue<>(QUEUE_SIZE);
 
     public Service(List<MachineAddress> linkers, final int port) throws SocketException {
         this.linkers = linkers;
         this.socket = new DatagramSocket(port);
+
+        for (int i = 0; i < QUEUE_SIZE; i++) {
+            freeSlots.add(new Slot());
+        }
+    }
+
+    public void setHeartbeatInterval(int heartbeatInterval) {
+        this.heartbeatInterval = heartbeatInterval;
+    }
+
+    public void setLease(int lease) {
+        this.lease = Math.max(0, lease);
     }
 
     /**
-     * At initialization, service need to register itself to one of the linkers
+     * Bounds of the time to wait for an ACK (ms)
+     *
+     * @param floor
+     * @param ceiling
+     */
+    public void setTimeouts(long floor, long ceiling) {
+        this.rtt = new RttTable(500, floor, ceiling);
+    }
+
+    /**
+     * Attempts of the registration before giving up
+     *
+     * @param attempts 0 for no limit
+     */
+    public void setRetryAttempts(int attempts) {
+        this.retry = new RetryScheduler(attempts);
+    }
+
+    public void setWeight(int weight) {
+        this.weight = Math.max(1, Math.min(255, weight));
+    }
+
+    /**
+     * At initialization, service need to register itself to one of the linkers.
+     * The linkers are asked in turn until one of them answers (see RetryScheduler).
+     *
+     * @return false if no linker accepted the registration
+     * @throws IOException
      */
     boolean handshake() throws IOException {
-        // Use a random linker in the list
-        MachineAddress linker = linkers.get((int) (Math.random() * linkers.size()));
+        Boolean registered;
+        try {
+            registered = retry.run(() -> linkers, this::register);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        if (registered == null) {
+            System.out.println("[i] No linker answered, give up");
+            return false;
+        }
+        return registered;
+    }
+
+    /**
+     * Send the registration to a linker and wait for its ACK
+     *
+     * @param linker
+     * @return true if registered, false if the linker refused, null if it did not answer in time
+     * @throws IOException
+     */
+    private Boolean register(MachineAddress linker) throws IOException {
         System.out.println("[i] Selected linker: " + linker);
 
-        // Sends a REGISTER_SERVICE with the service type
         byte[] buff = new byte[512];
         DatagramPacket packet = new DatagramPacket(buff, buff.length, linker.getAddress(), linker.getPort());
-        packet.setData(new Message(
-                MessageType.REGISTER_SERVICE,
-                new byte[]{ this.getServiceType().getType() }
-        ).toByteArray());
+        packet.setData(registration());
 
+        long timeout = rtt.timeout(linker);
+        long sentAt = EventLoop.now();
         socket.send(packet);
 
         // Step 2 - Needs the ACK packet from a Linker //
 
-        socket.setSoTimeout(timeout);
+        socket.setSoTimeout((int) timeout);
         Message message;
 
         packet = new DatagramPacket(buff, buff.length);
@@ -86,28 +263,99 @@ public abstract class Service {
         try {
             socket.receive(packet);
 
-            // Continue, even if the packet is corrupted and cannot be unserialized
-            try {
-                message = Message.fromByteArray(buff);
-            } catch (EOFException e) {
-                System.out.println(e.getStackTrace());
-                return handshake();
-            }
+            // A corrupted packet is retried, like a timeout
+            message = Message.fromByteArray(buff);
 
             if (message.getMessageType() == MessageType.ACK) {
-                System.out.println("[i] Handshake ok");
+                readAck(ByteBuffer.wrap(message.getPayload() == null ? new byte[0] : message.getPayload()));
+
+                if (!retried) {
+                    rtt.sample(linker, EventLoop.now() - sentAt);
+                }
+                retried = false;
+
+                // The ACK comes from the linker that owns the registration, which may not be the one asked
+                this.linker = new MachineAddress((InetSocketAddress) packet.getSocketAddress());
+                System.out.println("[i] Handshake ok with " + this.linker + (lease > 0 ? " (lease of " + lease + " ms)" : ""));
                 return true;
             }
-        } catch (SocketTimeoutException | ClassNotFoundException e) {
+        } catch (SocketTimeoutException e) {
             System.out.println("[i] Timeout (" + timeout + "ms)");
-            // Increment the timeout in order to not saturate the network
-            timeout = Math.min((int) (timeout * 1.1), timeout * 10);
-            return handshake();
+            // Double the timeout of this linker until it answers, in order to not saturate the network
+            rtt.backoff(linker);
+            retried = true;
+            return null;
+        } catch (IOException | ClassNotFoundException e) {
+            System.out.println("[i] The ACK is corrupt");
+            retried = true;
+            return null;
         }
 
         return false;
     }
 
+    /**
+     * REGISTER_SERVICE datagram, with the service type, its weight and the lease asked
+     *
+     * @return
+     * @throws IOException
+     */
+    private byte[] registration() throws IOException {
+        ByteBuffer register = ByteBuffer.allocate(2 + Integer.BYTES);
+        register.put(this.getServiceType().getType());
+        register.put((byte) weight);
+        if (lease > 0) {
+            register.putInt(lease);
+        }
+        return new Message(
+                MessageType.REGISTER_SERVICE,
+                Arrays.copyOf(register.array(), register.position())
+        ).toByteArray();
+    }
+
+    /**
+     * Read the ACK of a registration: [lease granted | linkers], empty if the linker does not grant leases
+     *
+     * @param payload
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    private void readAck(ByteBuffer payload) throws IOException, ClassNotFoundException {
+        lease = payload.remaining() >= Integer.BYTES ? payload.getInt() : 0;
+        if (payload.remaining() >= Short.BYTES) {
+            List<MachineAddress> members = MemberList.read(payload);
+            if (!members.isEmpty()) {
+                linkers = members;
+            }
+        }
+    }
+
+    /**
+     * Handle an ACK received while listening: of a heartbeat (empty), or of a registration with another linker.
+     * The linker that sent it receives the next heartbeats.
+     *
+     * @param message
+     * @param packet
+     */
+    private void handleAck(Message message, DatagramPacket packet) {
+        MachineAddress sender = new MachineAddress((InetSocketAddress) packet.getSocketAddress());
+
+        if (message.getPayload() != null && message.getPayload().length > 0) {
+            try {
+                readAck(ByteBuffer.wrap(message.getPayload()));
+            } catch (IOException | ClassNotFoundException e) {
+                System.out.println("[i] The ACK is corrupt");
+                return;
+            }
+        }
+
+        unacknowledged.set(0);
+        if (!sender.equals(linker)) {
+            linker = sender;
+            System.out.println("[i] Registered again with " + sender + (lease > 0 ? " (lease of " + lease + " ms)" : ""));
+        }
+    }
+
     /**
      * Handle request message
      * Uses the response of the concrete service and sends it to the client
@@ -117,16 +365,23 @@ public abstract class Service {
      * @throws IOException
      */
     private void handleRequest(Message message, DatagramPacket packet) throws IOException {
-        byte[] buffRes = getResponse(message, packet); // polymorphism
+        ByteBuffer out = BufferPool.SEND.acquire();
 
-        message = new Message(
-                MessageType.RESPONSE,
-                buffRes
-        );
+        // The request id is echoed, the client may have several requests in flight
+        int start = MessageCodec.beginFrame(out, MessageType.RESPONSE, message.getRequestId());
+        long begin = System.nanoTime();
+        try {
+            writeResponse(message, packet, out); // polymorphism
+        } finally {
+            load.answered(System.nanoTime() - begin);
+        }
+        MessageCodec.endFrame(out, start);
 
-        System.out.println(message);
+        if (VERBOSE) {
+            System.out.println("[i] Response of " + (out.position() - start - MessageCodec.HEADER_SIZE) + " bytes");
+        }
 
-        packet.setData(message.toByteArray());
+        packet.setData(out.array(), 0, out.position());
 
         socket.send(packet);
     }
@@ -134,66 +389,224 @@ public abstract class Service {
     /**
      * Handle ping message
      * Useful to see if the service is still alive
+     * The payload of the PING (sequence id of the probe) is echoed in the PONG, followed by the load
      *
      * @param message
      * @param packet
      * @throws IOException
      */
     private void handlePing(Message message, DatagramPacket packet) throws IOException {
-        message = new Message(
-                MessageType.PONG,
-                null
-        );
+        ByteBuffer out = BufferPool.SEND.acquire();
+
+        if (message.getPayload() == null) {
+            MessageCodec.encodeEmpty(out, MessageType.PONG);
+        } else {
+            int start = MessageCodec.beginFrame(out, MessageType.PONG);
+            out.put(message.getPayload());
+            load.write(out, requests.size());
+            MessageCodec.endFrame(out, start);
+        }
 
-        packet.setData(message.toByteArray());
+        packet.setData(out.array(), 0, out.position());
         socket.send(packet);
     }
 
+    /**
+     * Send the load of the service to its linker
+     */
+    private void sendHeartbeat() {
+        MachineAddress target = linker;
+        if (target == null) {
+            return;
+        }
+
+        if (unacknowledged.getAndIncrement() < HEARTBEAT_MISSES) {
+            registrations = 0;
+            nextRegistration = 0;
+        } else {
+            long now = EventLoop.now();
+            if (now >= nextRegistration) {
+                registerAgain(target);
+                // Backoff with jitter, paid from the retry budget: the services left without linker do not all
+                // register at once when the linkers come back
+                nextRegistration = now + Math.max(retry.delay(++registrations), retry.budgetWait());
+            }
+            return;
+        }
+
+        try {
+            // [service type | load]
+            ByteBuffer out = BufferPool.SEND.acquire();
+            int start = MessageCodec.beginFrame(out, MessageType.HEARTBEAT);
+            out.put(getServiceType().getType());
+            load.write(out, requests.size());
+            MessageCodec.endFrame(out, start);
+
+            socket.send(new DatagramPacket(out.array(), out.position(), target));
+        } catch (IOException e) {
+            System.out.println("[i] Heartbeat could not be sent");
+        }
+    }
+
+    /**
+     * The linker did not acknowledge the last heartbeats, it may be down: register with the next linker instead.
+     * Its ACK, received by the listening loop, makes it the linker of the service.
+     *
+     * @param current
+     */
+    private void registerAgain(MachineAddress current) {
+        List<MachineAddress> candidates = linkers;
+        MachineAddress next = current;
+        for (int i = 0; i < candidates.size(); i++) {
+            next = candidates.get(Math.floorMod(nextLinker++, candidates.size()));
+            if (!next.equals(current)) {
+                break;
+            }
+        }
+
+        System.out.println("[i] Heartbeats not acknowledged by " + current + ", register with " + next);
+        try {
+            byte[] data = registration();
+            socket.send(new DatagramPacket(data, data.length, next));
+        } catch (IOException e) {
+            System.out.println("[i] Registration could not be sent");
+        }
+    }
+
+    /**
+     * Process the queued requests, run by the worker thread
+     */
+    private void processRequests() {
+        // The message is reused for every request
+        Message message = new Message(null, null);
+
+        while (true) {
+            Slot slot;
+            try {
+                slot = requests.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                MessageCodec.decodeReusing(slot.buffer, message);
+                handleRequest(message, slot.packet);
+            } catch (IOException | ClassNotFoundException e) {
+                e.printStackTrace();
+            } finally {
+                freeSlots.add(slot);
+            }
+        }
+    }
+
     /**
      * Listens for incoming messages and dispatches them
+     * PINGs are answered directly, requests are queued for the worker
      *
      * @throws IOException
      * @throws ClassNotFoundException
      */
     void listen() throws IOException, ClassNotFoundException {
         socket.setSoTimeout(0);
-        byte[] buff = new byte[512];
+
+        Thread worker = new Thread(this::processRequests, "service-worker");
+        worker.setDaemon(true);
+        worker.start();
+
+        // The heartbeats renew the lease, at least three times per lease
+        int interval = heartbeatInterval;
+        if (lease > 0) {
+            interval = interval > 0 ? Math.min(interval, lease / 3) : lease / 3;
+        }
+
+        if (interval > 0) {
+            ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "service-heartbeat");
+                thread.setDaemon(true);
+                return thread;
+            });
+            heartbeats.scheduleAtFixedRate(this::sendHeartbeat, interval, interval, TimeUnit.MILLISECONDS);
+        }
 
         System.out.println("[i] Listen for new messages...");
 
-        DatagramPacket packet;
-        Message message;
+        // Used when all the slots are taken: the request received is dropped
+        Slot spare = new Slot();
+        Message message = new Message(null, null);
 
         // Listen for new messages
         while (true) {
-            // Reset the packet
-            packet = new DatagramPacket(buff, buff.length);
-            socket.receive(packet);
+            Slot slot = freeSlots.poll();
+            if (slot == null) {
+                slot = spare;
+            }
 
-            message = Message.fromByteArray(buff);
+            // Reset the packet (handlers reply with the same packet)
+            slot.packet.setData(slot.buffer.array());
+            socket.receive(slot.packet);
+
+            slot.buffer.clear();
+            slot.buffer.limit(slot.packet.getLength());
+
+            try {
+                MessageCodec.decodeReusing(slot.buffer, message);
+            } catch (IOException e) {
+                System.out.println("[i] Message could not be decoded !");
+                release(slot, spare);
+                continue;
+            }
 
             // DEBUG
-            System.out.println("New message [" + packet.getAddress().getHostName() + ":" + packet.getPort() + "]");
-            System.out.println(message);
+            if (VERBOSE) {
+                System.out.println("New message [" + slot.packet.getAddress().getHostAddress() + ":" + slot.packet.getPort() + "]");
+                System.out.println(message);
+            }
 
             switch (message.getMessageType()) {
                 case REQUEST:
-                    System.out.println("> Ask for the service function");
-
-                    handleRequest(message, packet);
-                    break;
+                    if (VERBOSE) {
+                        System.out.println("> Ask for the service function");
+                    }
+
+                    if (slot == spare) {
+                        System.out.println("[i] Too many requests, request dropped");
+                        break;
+                    }
+
+                    // The worker decodes the request again from the start of the buffer
+                    slot.buffer.rewind();
+                    load.received();
+                    requests.add(slot);
+                    continue;
                 case PING:
-                    handlePing(message, packet);
+                    handlePing(message, slot.packet);
+                    break;
+                case ACK:
+                    handleAck(message, slot.packet);
                     break;
                 default:
                     System.out.println("> Unknown message");
             }
+
+            release(slot, spare);
         }
 
         // The socket should be closed at the end
 //        socket.close();
     }
 
+    /**
+     * Give back a slot once its datagram is handled
+     *
+     * @param slot
+     * @param spare
+     */
+    private void release(Slot slot, Slot spare) {
+        if (slot != spare) {
+            freeSlots.add(slot);
+        }
+    }
+
     /**
      * Each service has its own response to send and must implement the getResponse method
      *
@@ -203,6 +616,23 @@ public abstract class Service {
      */
     abstract byte[] getResponse(Message message, DatagramPacket packet);
 
+    /**
+     * Write the response directly into the frame being sent.
+     * By default the result of getResponse is copied, services can override it to avoid allocations.
+     *
+     * @param message
+     * @param packet
+     * @param out
+     * @throws IOException
+     */
+    void writeResponse(Message message, DatagramPacket packet, ByteBuffer out) throws IOException {
+        byte[] response = getResponse(message, packet);
+
+        if (response != null) {
+            out.put(response);
+        }
+    }
+
     /**
      * To know the type of the concrete service
      *
@@ -214,13 +644,15 @@ public abstract class Service {
         System.out.println("- Service -");
 
         if (args.length < 2) {
-            System.out.println("Usage: java service <type> <port>");
+            System.out.println("Usage: java service <type> <port> [weight=<relative capacity>] [heartbeat=<ms>] [lease=<ms>]"
+                    + " [timeout.min=<ms>] [timeout.max=<ms>] [retry.attempts=<n>]");
             System.out.println("<type> can be 'sum', 'reply' or 'time'");
             return;
         }
 
         final String type = args[0].toLowerCase();
         final int port = Integer.parseInt(args[1]);
+        final Options options = Options.parse(args, 2);
 
         Service service;
         try {
@@ -238,6 +670,12 @@ public abstract class Service {
                 return;
             }
 
+            service.setWeight(options.getInt("weight", 1));
+            service.setHeartbeatInterval(options.getInt("heartbeat", 1000));
+            service.setLease(options.getInt("lease", 10000));
+            service.setTimeouts(options.getLong("timeout.min", 20), options.getLong("timeout.max", 5000));
+            service.setRetryAttempts(options.getInt("retry.attempts", RetryScheduler.DEFAULT_ATTEMPTS));
+
             if (service.handshake()) {
                 service.listen();
             }
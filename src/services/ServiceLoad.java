@@ -0,0 +1,62 @@
+package services;
+
+import messages.LoadReport;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Henrik Akesson
+ * @author Fabien Salathe
+ *
+ * Load of a service: requests in flight and moving average of the time spent in getResponse.
+ * Reported to the linkers in PONGs and HEARTBEATs (see LoadReport).
+ */
+class ServiceLoad {
+
+    /**
+     * Weight of the last measure in the moving average
+     */
+    private static final double ALPHA = 0.2;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * Only written by the worker of the service
+     */
+    private volatile double latencyMicros;
+
+    /**
+     * A request has been accepted
+     */
+    void received() {
+        inFlight.incrementAndGet();
+    }
+
+    /**
+     * A request has been answered (or failed)
+     *
+     * @param nanos time spent to compute the response
+     */
+    void answered(long nanos) {
+        inFlight.decrementAndGet();
+
+        double micros = nanos / 1000.0;
+        double average = latencyMicros;
+        latencyMicros = average == 0 ? micros : ALPHA * micros + (1 - ALPHA) * average;
+    }
+
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Write the report of the current load
+     *
+     * @param dst
+     * @param queueDepth
+     */
+    void write(ByteBuffer dst, int queueDepth) {
+        LoadReport.write(dst, queueDepth, inFlight.get(), (int) Math.ceil(latencyMicros));
+    }
+}
@@ -3,8 +3,10 @@ package services;
 import messages.Message;
 import util.MachineAddress;
 
+import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 /**
@@ -33,6 +35,44 @@ public class ServiceReply extends Service {
                 .getBytes();
     }
 
+    /**
+     * Reply in L33T 5P34K byte per byte, without allocating strings.
+     * Non ASCII payloads still go through getResponse.
+     */
+    @Override
+    void writeResponse(Message message, DatagramPacket packet, ByteBuffer out) throws IOException {
+        byte[] payload = message.getPayload();
+        if (payload == null) {
+            return;
+        }
+
+        for (byte b : payload) {
+            if (b < 0) {
+                super.writeResponse(message, packet, out);
+                return;
+            }
+        }
+
+        for (byte b : payload) {
+            out.put(toLeet(b));
+        }
+    }
+
+    private static byte toLeet(byte b) {
+        if (b >= 'a' && b <= 'z') {
+            b -= 'a' - 'A';
+        }
+
+        switch (b) {
+            case 'O': return '0';
+            case 'A': return '4';
+            case 'I': return '1';
+            case 'S': return '5';
+            case 'E': return '3';
+            default: return b;
+        }
+    }
+
     @Override
     ServiceType getServiceType() {
         return ServiceType.SERVICE_REPLY;
@@ -5,6 +5,7 @@ import util.MachineAddress;
 
 import java.net.DatagramPacket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 /**
@@ -30,6 +31,19 @@ public class ServiceSum extends Service {
         return new byte[] { 0 };
     }
 
+    /**
+     * Write the sum without allocating a response array
+     */
+    @Override
+    void writeResponse(Message message, DatagramPacket packet, ByteBuffer out) {
+        byte[] payload = message.getPayload();
+        if (payload != null && payload.length >= 2) {
+            out.put((byte) (payload[0] + payload[1]));
+        } else {
+            out.put((byte) 0);
+        }
+    }
+
     @Override
     ServiceType getServiceType() {
         return ServiceType.SERVICE_SUM;
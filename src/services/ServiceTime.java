@@ -39,6 +39,14 @@ public class ServiceTime extends Service {
         return buffer.array();
     }
 
+    /**
+     * Write the system time without allocating a response array
+     */
+    @Override
+    void writeResponse(Message message, DatagramPacket packet, ByteBuffer out) {
+        out.putLong(System.currentTimeMillis());
+    }
+
     /**
      * Get response from an array of bytes
      * @param response
@@ -10,7 +10,19 @@ public enum ServiceType {
     SERVICE_SUM,
     SERVICE_REPLY;
 
+    private static final ServiceType[] TYPES = values();
+
     public final byte getType() {
         return (byte) this.ordinal();
     }
+
+    /**
+     * Get a type from its byte, without copying the values array
+     *
+     * @param type
+     * @return
+     */
+    public static ServiceType fromType(byte type) {
+        return TYPES[type];
+    }
 }
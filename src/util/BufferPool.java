@@ -0,0 +1,47 @@
+package util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author Henrik Akesson
+ * @author Fabien Salathe
+ *
+ * Buffers reused per thread, to avoid allocating a new buffer for each packet received or sent.
+ * A buffer acquired from a pool is only valid until the next acquire on the same thread.
+ */
+public final class BufferPool {
+
+    /**
+     * Size of pooled buffers, big enough for any datagram exchanged by the nodes
+     */
+    public static final int BUFFER_SIZE = 2048;
+
+    /**
+     * Buffers used to receive packets
+     */
+    public static final BufferPool RECEIVE = new BufferPool(BUFFER_SIZE, false);
+
+    /**
+     * Buffers used to build packets to send
+     */
+    public static final BufferPool SEND = new BufferPool(BUFFER_SIZE, false);
+
+    private final ThreadLocal<ByteBuffer> buffers;
+
+    public BufferPool(final int size, final boolean direct) {
+        this.buffers = ThreadLocal.withInitial(
+                () -> direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size)
+        );
+    }
+
+    /**
+     * Get the buffer of the current thread, cleared
+     *
+     * @return
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.get();
+        buffer.clear();
+        return buffer;
+    }
+}
@@ -0,0 +1,297 @@
+package util;
+
+import messages.Message;
+import messages.MessageCodec;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Henrik Akesson
+ * @author Fabien Salathe
+ *
+ * Non-blocking event loop over a datagram channel.
+ *
+ * Messages are read straight into a direct buffer, decoded into a reused message and given to the handler.
+ * Timers (timeouts, retransmissions...) are run by the loop itself, between two selections,
+ * so handlers never have to block on the socket.
+ *
+ * Handlers and timers are run on the loop thread only, they must not block.
+ * Other threads can hand tasks to the loop with execute.
+ */
+public class EventLoop {
+
+    /**
+     * Maximum payload of an UDP datagram
+     */
+    public static final int MAX_DATAGRAM_SIZE = 65507;
+
+    /**
+     * Maximum number of datagrams read before timers get a chance to run
+     */
+    private static final int MAX_READS_PER_SELECT = 64;
+
+    /**
+     * Receives the messages read by the loop. The message and its payload are reused for the next datagram (see
+     * MessageCodec.decodeReusing): a handler that keeps the payload, e.g. for a later task, must copy it.
+     */
+    public interface Handler {
+        void onMessage(Message message, InetSocketAddress sender) throws IOException;
+    }
+
+    /**
+     * Task run by a timer
+     */
+    public interface Task {
+        void run() throws IOException;
+    }
+
+    /**
+     * Timer scheduled on the loop, can be cancelled until it fires
+     */
+    public static final class Timer implements Comparable<Timer> {
+        private final long deadline;
+        private final Task task;
+        private volatile boolean cancelled;
+
+        private Timer(long deadline, Task task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public int compareTo(Timer o) {
+            return Long.compare(deadline, o.deadline);
+        }
+    }
+
+    private final DatagramChannel channel;
+
+    private final Selector selector;
+
+    private final Handler handler;
+
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+
+    private final Message message = new Message(null, null);
+
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+
+    /**
+     * Tasks handed to the loop by other threads
+     */
+    private final Queue<Task> tasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Loop run by the current thread
+     */
+    private static final ThreadLocal<EventLoop> CURRENT = new ThreadLocal<>();
+
+    public EventLoop(DatagramChannel channel, Handler handler) throws IOException {
+        this.channel = channel;
+        this.handler = handler;
+        this.selector = Selector.open();
+
+        channel.configureBlocking(false);
+        // The only key of the selector: it is never removed from the selected keys (see run), which only works
+        // because read() drains this channel whether it was selected or not. A loop with several keys must go
+        // through the selected keys and clear them: a channel left ready makes select() return at once, and the
+        // loop spins.
+        channel.register(selector, SelectionKey.OP_READ);
+    }
+
+    /**
+     * Current time of the loop, in milliseconds (monotonic)
+     *
+     * @return
+     */
+    public static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * Loop run by the current thread, null if the thread does not run a loop
+     *
+     * @return
+     */
+    public static EventLoop current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Run a task on the loop thread, can be called from any thread
+     *
+     * @param task
+     */
+    public void execute(Task task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Run a task after the given delay, must be called from the loop thread
+     *
+     * @param delay in milliseconds
+     * @param task
+     * @return
+     */
+    public Timer schedule(long delay, Task task) {
+        Timer timer = new Timer(now() + delay, task);
+        timers.add(timer);
+        return timer;
+    }
+
+    /**
+     * Send a frame, written from 0 to the position of the buffer.
+     * The buffer is left as it was, so the same frame can be sent to several machines.
+     *
+     * @param out
+     * @param to
+     * @throws IOException
+     */
+    public void send(ByteBuffer out, SocketAddress to) throws IOException {
+        int end = out.position();
+
+        out.flip();
+        if (channel.send(out, to) == 0) {
+            System.out.println("[i] Send buffer full, datagram to " + to + " dropped");
+        }
+
+        out.limit(out.capacity());
+        out.position(end);
+    }
+
+    /**
+     * Send a whole encoded frame
+     *
+     * @param frame
+     * @param to
+     * @throws IOException
+     */
+    public void send(byte[] frame, SocketAddress to) throws IOException {
+        channel.send(ByteBuffer.wrap(frame), to);
+    }
+
+    public SocketAddress getLocalAddress() throws IOException {
+        return channel.getLocalAddress();
+    }
+
+    /**
+     * Run the loop for ever
+     *
+     * @throws IOException
+     */
+    public void run() throws IOException {
+        CURRENT.set(this);
+        assert selector.keys().size() == 1 : "The selected keys are never cleared, the loop takes a single key";
+
+        while (true) {
+            runTasks();
+            runTimers();
+
+            Timer next = timers.peek();
+            if (next == null) {
+                selector.select();
+            } else {
+                long wait = next.deadline - now();
+                if (wait > 0) {
+                    selector.select(wait);
+                } else {
+                    selector.selectNow();
+                }
+            }
+
+            // The only key is left in the selected set: clearing it would allocate a node at each selection,
+            // and the channel is read whether it was selected or not
+            read();
+        }
+    }
+
+    /**
+     * Read and dispatch the pending datagrams
+     *
+     * @throws IOException
+     */
+    private void read() throws IOException {
+        for (int i = 0; i < MAX_READS_PER_SELECT; i++) {
+            receiveBuffer.clear();
+            SocketAddress sender = channel.receive(receiveBuffer);
+
+            if (sender == null) {
+                return;
+            }
+
+            receiveBuffer.flip();
+
+            // Continue, even if the packet is corrupted and cannot be decoded
+            try {
+                MessageCodec.decodeReusing(receiveBuffer, message);
+            } catch (IOException | ClassNotFoundException e) {
+                System.out.println("[i] Message could not be decoded !");
+                continue;
+            }
+
+            try {
+                handler.onMessage(message, (InetSocketAddress) sender);
+            } catch (IOException | RuntimeException e) {
+                // A malformed message must not stop the loop
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Run the tasks handed by other threads
+     */
+    private void runTasks() {
+        Task task;
+
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (IOException | RuntimeException e) {
+                // A failing task must not stop the loop
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Run the timers that have expired
+     */
+    private void runTimers() {
+        long now = now();
+
+        while (!timers.isEmpty() && timers.peek().deadline <= now) {
+            Timer timer = timers.poll();
+
+            if (timer.cancelled) {
+                continue;
+            }
+
+            try {
+                timer.task.run();
+            } catch (IOException | RuntimeException e) {
+                // A failing timer must not stop the loop, nor the timers after it
+                e.printStackTrace();
+            }
+        }
+    }
+}
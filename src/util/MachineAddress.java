@@ -1,18 +1,36 @@
 package util;
 
+import messages.MessageCodec;
+
 import java.io.*;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
 /**
  * @author Henrik Akesson
  * @author Fabien Salathe
  *
  * Wrapper for machine addresses
+ *
+ * Binary format: [address length (4 or 16) | address | port (u16)]
+ * The legacy format (Java serialization) is still accepted when decoding.
  */
 public class MachineAddress extends InetSocketAddress implements Serializable, ByteArrayable {
 
     private static final long serialVersionUID = -2525112949161709437L;
 
+    /**
+     * First byte of a Java serialization stream
+     */
+    private static final byte STREAM_MAGIC_HIGH = (byte) 0xAC;
+
+    /**
+     * Binary form of the address, computed once as addresses are sent over and over
+     */
+    private transient volatile byte[] encoded;
+
     public MachineAddress(String hostname, int port) {
         super(hostname, port);
     }
@@ -21,12 +39,99 @@ public class MachineAddress extends InetSocketAddress implements Serializable, B
         super(isa.getAddress(), isa.getPort());
     }
 
+    public MachineAddress(InetAddress address, int port) {
+        super(address, port);
+    }
+
     @Override
     public String toString() {
         return super.toString();
     }
 
+    /**
+     * Size of the binary form of the address
+     *
+     * @return
+     * @throws IOException
+     */
+    public int encodedSize() throws IOException {
+        return encoded().length;
+    }
+
+    /**
+     * Write the binary form of the address into the buffer
+     *
+     * @param dst
+     * @throws IOException
+     */
+    public void writeTo(ByteBuffer dst) throws IOException {
+        dst.put(encoded());
+    }
+
+    @Override
+    public byte[] toByteArray() throws IOException {
+        if (MessageCodec.getProtocolVersion() == MessageCodec.PROTOCOL_LEGACY) {
+            return ByteArrayable.super.toByteArray();
+        }
+
+        return encoded().clone();
+    }
+
+    private byte[] encoded() throws IOException {
+        byte[] bytes = encoded;
+
+        if (bytes == null) {
+            if (getAddress() == null) {
+                throw new IOException("Unresolved address " + this);
+            }
+
+            byte[] ip = getAddress().getAddress();
+            bytes = ByteBuffer.allocate(1 + ip.length + 2)
+                    .put((byte) ip.length)
+                    .put(ip)
+                    .putShort((short) getPort())
+                    .array();
+            encoded = bytes;
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Read an address from the buffer, starting at its current position.
+     * A legacy (serialized) address consumes the rest of the buffer.
+     *
+     * @param src
+     * @return
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public static MachineAddress readFrom(ByteBuffer src) throws IOException, ClassNotFoundException {
+        try {
+            byte length = src.get(src.position());
+
+            if (length == STREAM_MAGIC_HIGH) {
+                byte[] bytes = new byte[src.remaining()];
+                src.get(bytes);
+                return (MachineAddress) ByteArrayable.fromByteArray(bytes);
+            }
+
+            if (length != 4 && length != 16) {
+                throw new StreamCorruptedException("Invalid address length " + length);
+            }
+
+            src.get();
+            byte[] ip = new byte[length];
+            src.get(ip);
+            int port = src.getShort() & 0xFFFF;
+
+            return new MachineAddress(InetAddress.getByAddress(ip), port);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new EOFException("Truncated address");
+        }
+    }
+
     public static MachineAddress fromByteArray(final byte[] bytes) throws IOException, ClassNotFoundException {
-        return (MachineAddress) ByteArrayable.fromByteArray(bytes);
+        return readFrom(ByteBuffer.wrap(bytes));
     }
 }
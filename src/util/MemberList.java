@@ -0,0 +1,104 @@
+package util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * @author Henrik Akesson
+ * @author Fabien Salathe
+ *
+ * List of the linkers, as sent by the linkers to the clients and services (and to the linkers that join).
+ *
+ * Format: [count (u16) | address...]
+ *
+ * A list is written as far as it fits in the buffer (about 290 IPv4 linkers in a datagram): the receivers of a part
+ * of the linkers still have linkers to talk to, and the linkers that join get the list in several datagrams.
+ *
+ * The digest of a list does not depend on the order of its addresses: a client sends the digest of the list it knows,
+ * and only gets the list of the linker when they differ.
+ */
+public final class MemberList {
+
+    private MemberList() {
+    }
+
+    /**
+     * Digest of a list of linkers, whatever its order
+     *
+     * @param members
+     * @return
+     */
+    public static int digest(Collection<MachineAddress> members) {
+        int digest = members.size();
+        for (MachineAddress member : members) {
+            // Spread the bits of each hash before summing them
+            int hash = member.hashCode() * 0x9E3779B9;
+            digest += hash ^ (hash >>> 16);
+        }
+        return digest;
+    }
+
+    /**
+     * Write a list of linkers, as far as it fits in the buffer
+     *
+     * @param dst
+     * @param members
+     * @return number of linkers written
+     * @throws IOException
+     */
+    public static int write(ByteBuffer dst, List<MachineAddress> members) throws IOException {
+        return write(dst, members, 0);
+    }
+
+    /**
+     * Write the linkers of a list from the given one, as far as they fit in the buffer
+     *
+     * @param dst
+     * @param members
+     * @param from index of the first linker written
+     * @return number of linkers written, nothing is written (not even the count) if the buffer is full
+     * @throws IOException
+     */
+    public static int write(ByteBuffer dst, List<MachineAddress> members, int from) throws IOException {
+        if (dst.remaining() < Short.BYTES) {
+            return 0;
+        }
+
+        int start = dst.position();
+        dst.putShort((short) 0);
+
+        int count = 0;
+        for (int i = from; i < members.size() && count < 0xFFFF; i++) {
+            MachineAddress member = members.get(i);
+            if (dst.remaining() < member.encodedSize()) {
+                break;
+            }
+            member.writeTo(dst);
+            count++;
+        }
+
+        dst.putShort(start, (short) count);
+        return count;
+    }
+
+    /**
+     * Read a list of linkers
+     *
+     * @param src
+     * @return
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public static List<MachineAddress> read(ByteBuffer src) throws IOException, ClassNotFoundException {
+        int count = src.getShort() & 0xFFFF;
+
+        List<MachineAddress> members = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            members.add(MachineAddress.readFrom(src));
+        }
+        return members;
+    }
+}
@@ -0,0 +1,81 @@
+package util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author Henrik Akesson
+ * @author Fabien Salathe
+ *
+ * Optional settings given on the command line, after the positional arguments, as `key=value`
+ *
+ * Example: `java Linker 0 workers=4`
+ */
+public class Options {
+
+    private final Map<String, String> values = new HashMap<>();
+
+    /**
+     * Parse the `key=value` arguments, starting at the given index
+     *
+     * @param args
+     * @param from
+     * @return
+     */
+    public static Options parse(String[] args, int from) {
+        Options options = new Options();
+
+        for (int i = from; i < args.length; i++) {
+            String[] token = args[i].split("=", 2);
+            if (token.length == 2) {
+                options.values.put(token[0], token[1]);
+            } else {
+                System.out.println("[i] Ignored option '" + args[i] + "' (expected key=value)");
+            }
+        }
+
+        return options;
+    }
+
+    public String getString(String key, String defaultValue) {
+        return values.getOrDefault(key, defaultValue);
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = values.get(key);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = values.get(key);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    public double getDouble(String key, double defaultValue) {
+        String value = values.get(key);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = values.get(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    /**
+     * All the options starting with the given prefix, without the prefix
+     *
+     * @param prefix
+     * @return
+     */
+    public Map<String, String> getAll(String prefix) {
+        Map<String, String> result = new HashMap<>();
+
+        values.forEach((key, value) -> {
+            if (key.startsWith(prefix)) {
+                result.put(key.substring(prefix.length()), value);
+            }
+        });
+
+        return result;
+    }
+}
@@ -0,0 +1,160 @@
+package util;
+
+/**
+ * @author Henrik Akesson
+ * @author Fabien Salathe
+ *
+ * Phi accrual failure detector (Hayashibara et al.).
+ *
+ * Instead of a yes/no answer after a fixed timeout, the detector keeps the statistics of the last
+ * inter-arrival times of the heartbeats of a machine and gives a suspicion level:
+ * phi = -log10(probability that the next heartbeat is still to come after the time elapsed).
+ * A phi of 1 means a 10% chance of being wrong when suspecting the machine, 2 means 1%, 3 means 0.1%...
+ *
+ * The inter-arrival times are assumed to be normally distributed (logistic approximation of the CDF).
+ * Until enough heartbeats are received, the distribution is bootstrapped with the expected interval.
+ *
+ * Thread-safe: heartbeats can be recorded by any worker.
+ */
+public class PhiAccrualDetector {
+
+    /**
+     * Number of inter-arrival times kept by default
+     */
+    public static final int DEFAULT_WINDOW = 100;
+
+    /**
+     * Minimum standard deviation (ms), so that very regular heartbeats do not make phi explode
+     */
+    public static final long DEFAULT_MIN_STD_DEVIATION = 100;
+
+    private final long[] intervals;
+
+    private final long minStdDeviation;
+
+    private final long firstHeartbeatEstimate;
+
+    /**
+     * Number of intervals in the window, and index of the oldest one once the window is full
+     */
+    private int count;
+    private int oldest;
+
+    private double sum;
+    private double squaredSum;
+
+    /**
+     * Time of the last heartbeat, -1 before the first one
+     */
+    private long lastHeartbeat = -1;
+
+    /**
+     * @param firstHeartbeatEstimate expected interval between two heartbeats (ms), used until real ones are received
+     */
+    public PhiAccrualDetector(long firstHeartbeatEstimate) {
+        this(DEFAULT_WINDOW, DEFAULT_MIN_STD_DEVIATION, firstHeartbeatEstimate);
+    }
+
+    /**
+     * @param window number of inter-arrival times kept
+     * @param minStdDeviation minimum standard deviation of the inter-arrival times (ms)
+     * @param firstHeartbeatEstimate expected interval between two heartbeats (ms)
+     */
+    public PhiAccrualDetector(int window, long minStdDeviation, long firstHeartbeatEstimate) {
+        if (window < 2) {
+            throw new IllegalArgumentException("The window must keep at least 2 intervals");
+        }
+        this.intervals = new long[window];
+        this.minStdDeviation = Math.max(1, minStdDeviation);
+        this.firstHeartbeatEstimate = Math.max(1, firstHeartbeatEstimate);
+    }
+
+    /**
+     * Record a heartbeat (or any other sign of life) of the machine
+     *
+     * @param now
+     */
+    public synchronized void heartbeat(long now) {
+        if (lastHeartbeat < 0) {
+            // Bootstrap the distribution: mean = estimate, standard deviation = estimate / 4
+            long deviation = firstHeartbeatEstimate / 4;
+            add(firstHeartbeatEstimate - deviation);
+            add(firstHeartbeatEstimate + deviation);
+        } else if (now > lastHeartbeat) {
+            add(now - lastHeartbeat);
+        }
+
+        lastHeartbeat = Math.max(lastHeartbeat, now);
+    }
+
+    /**
+     * Suspicion level of the machine, 0 if it never sent any heartbeat
+     *
+     * @param now
+     * @return
+     */
+    public synchronized double phi(long now) {
+        if (lastHeartbeat < 0) {
+            return 0;
+        }
+
+        double mean = sum / count;
+        double variance = squaredSum / count - mean * mean;
+        double deviation = Math.max(Math.sqrt(Math.max(variance, 0)), minStdDeviation);
+
+        return phi(now - lastHeartbeat, mean, deviation);
+    }
+
+    /**
+     * Whether the machine is suspected to be down
+     *
+     * @param now
+     * @param threshold
+     * @return
+     */
+    public boolean isSuspected(long now, double threshold) {
+        return phi(now) >= threshold;
+    }
+
+    public synchronized long getLastHeartbeat() {
+        return lastHeartbeat;
+    }
+
+    /**
+     * Mean interval between two heartbeats (ms), the estimate until heartbeats are received
+     *
+     * @return
+     */
+    public synchronized double getMeanInterval() {
+        return count == 0 ? firstHeartbeatEstimate : sum / count;
+    }
+
+    /**
+     * -log10(1 - CDF(elapsed)), with the logistic approximation of the normal CDF
+     */
+    static double phi(long elapsed, double mean, double deviation) {
+        double y = (elapsed - mean) / deviation;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+
+        if (elapsed > mean) {
+            return -Math.log10(e / (1.0 + e));
+        }
+        return -Math.log10(1.0 - 1.0 / (1.0 + e));
+    }
+
+    private void add(long interval) {
+        if (count == intervals.length) {
+            long removed = intervals[oldest];
+            sum -= removed;
+            squaredSum -= (double) removed * removed;
+
+            intervals[oldest] = interval;
+            oldest = (oldest + 1) % intervals.length;
+        } else {
+            intervals[count++] = interval;
+        }
+
+        sum += interval;
+        squaredSum += (double) interval * interval;
+    }
+}
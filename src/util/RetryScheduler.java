@@ -0,0 +1,158 @@
+package util;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+/**
+ * @author Henrik Akesson
+ * @author Fabien Salathe
+ *
+ * Retries a request to the linkers in a loop, until one of them answers.
+ *
+ * Each attempt goes to the next linker, starting from a random one. Between two attempts, the scheduler waits a random
+ * time between 0 and min(cap, base * 2^(retry - 1)) (capped exponential backoff with full jitter): when the linkers come
+ * back after an outage, the nodes that were waiting for them do not retry all at once.
+ *
+ * Retries are paid from a budget: it earns `ratio` retries per request answered, and at least `perSecond` retries per
+ * second, up to `burst`. When the budget is spent, the next retry waits for it, so a node never retries faster than
+ * the budget whatever its backoff.
+ *
+ * Thread-safe.
+ */
+public class RetryScheduler {
+
+    /**
+     * One attempt of a request
+     */
+    public interface Attempt<T> {
+        /**
+         * @param linker
+         * @return the result, or null if the linker did not answer (the request is retried)
+         * @throws IOException
+         */
+        T run(MachineAddress linker) throws IOException;
+    }
+
+    /**
+     * Attempts of the nodes that do not configure them: about a minute of retries with the default delays
+     */
+    public static final int DEFAULT_ATTEMPTS = 20;
+
+    private final long base;
+
+    private final long cap;
+
+    private final int maxAttempts;
+
+    private final double ratio;
+
+    private final double perSecond;
+
+    private final double burst;
+
+    private double tokens;
+
+    private long lastRefill = EventLoop.now();
+
+    /**
+     * @param base delay before the first retry, at most (ms)
+     * @param cap maximum delay between two attempts (ms)
+     * @param maxAttempts attempts before giving up, 0 for no limit
+     * @param ratio retries earned per request answered
+     * @param perSecond retries earned per second
+     * @param burst maximum number of retries saved
+     */
+    public RetryScheduler(long base, long cap, int maxAttempts, double ratio, double perSecond, double burst) {
+        this.base = Math.max(1, base);
+        this.cap = Math.max(this.base, cap);
+        this.maxAttempts = Math.max(0, maxAttempts);
+        this.ratio = Math.max(0, ratio);
+        this.perSecond = Math.max(0.01, perSecond);
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+    }
+
+    /**
+     * Default policy: retries within 100 ms to 10 s, 10 % of the requests plus one per second, 10 in a row at most
+     *
+     * @param maxAttempts attempts before giving up, 0 for no limit
+     */
+    public RetryScheduler(int maxAttempts) {
+        this(100, 10000, maxAttempts, 0.1, 1, 10);
+    }
+
+    /**
+     * Run a request until a linker answers
+     *
+     * @param linkers read again before each attempt, the linkers may change in the meantime
+     * @param attempt
+     * @return the result of the attempt that succeeded, or null if all the attempts failed
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public <T> T run(Supplier<List<MachineAddress>> linkers, Attempt<T> attempt) throws IOException, InterruptedException {
+        int first = ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE);
+
+        for (int n = 0; maxAttempts == 0 || n < maxAttempts; n++) {
+            if (n > 0) {
+                // Both start now: the budget is earned during the backoff
+                Thread.sleep(Math.max(delay(n), budgetWait()));
+            }
+
+            List<MachineAddress> current = linkers.get();
+            if (current.isEmpty()) {
+                continue;
+            }
+
+            T result = attempt.run(current.get((first + n) % current.size()));
+            if (result != null) {
+                answered();
+                return result;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Time to wait before a retry, for the loops that schedule their retries themselves
+     *
+     * @param retry number of the retry, from 1
+     * @return a random delay between 0 and min(cap, base * 2^(retry - 1)) (ms)
+     */
+    public long delay(int retry) {
+        long ceiling = base << Math.min(Math.max(0, retry - 1), 30);
+        return ThreadLocalRandom.current().nextLong(Math.min(cap, ceiling) + 1);
+    }
+
+    /**
+     * A request was answered: earn its share of retries
+     */
+    public synchronized void answered() {
+        refill();
+        tokens = Math.min(burst, tokens + ratio);
+    }
+
+    /**
+     * Take a retry from the budget
+     *
+     * @return time to wait for the budget before retrying (ms), 0 if a retry is available
+     */
+    public synchronized long budgetWait() {
+        refill();
+        tokens--;
+        if (tokens >= 0) {
+            return 0;
+        }
+        // The retry is paid in advance, by the time the budget earns it
+        return (long) Math.ceil(-tokens / perSecond * 1000);
+    }
+
+    private void refill() {
+        long now = EventLoop.now();
+        tokens = Math.min(burst, tokens + (now - lastRefill) * perSecond / 1000);
+        lastRefill = now;
+    }
+}
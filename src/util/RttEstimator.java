@@ -0,0 +1,92 @@
+package util;
+
+/**
+ * @author Henrik Akesson
+ * @author Fabien Salathe
+ *
+ * Retransmission timeout computed from the measured round-trip times (Jacobson/Karels, as in TCP):
+ * srtt += (rtt - srtt) / 8, rttvar += (|rtt - srtt| - rttvar) / 4, rto = srtt + 4 * rttvar.
+ *
+ * The timeout is kept within a floor and a ceiling. After a timeout, it is doubled until the next sample (backoff),
+ * and the round-trip time of a retransmitted message must not be sampled (Karn's algorithm): the answer may be
+ * the one of the first transmission.
+ *
+ * Thread-safe.
+ */
+public class RttEstimator {
+
+    private final long floor;
+
+    private final long ceiling;
+
+    /**
+     * Smoothed round-trip time and its mean deviation (ms), 0 before the first sample
+     */
+    private double srtt;
+    private double rttvar;
+
+    private boolean measured;
+
+    private long rto;
+
+    /**
+     * @param initial timeout used until a round-trip time is measured (ms)
+     * @param floor minimum timeout (ms)
+     * @param ceiling maximum timeout (ms)
+     */
+    public RttEstimator(long initial, long floor, long ceiling) {
+        this.floor = Math.max(1, floor);
+        this.ceiling = Math.max(this.floor, ceiling);
+        this.rto = clamp(initial);
+    }
+
+    /**
+     * Measured round-trip time of a message that was not retransmitted
+     *
+     * @param rtt in milliseconds
+     */
+    public synchronized void sample(long rtt) {
+        if (rtt < 0) {
+            return;
+        }
+
+        if (!measured) {
+            srtt = rtt;
+            rttvar = rtt / 2.0;
+            measured = true;
+        } else {
+            rttvar += (Math.abs(rtt - srtt) - rttvar) / 4;
+            srtt += (rtt - srtt) / 8;
+        }
+        rto = clamp((long) Math.ceil(srtt + 4 * rttvar));
+    }
+
+    /**
+     * A message timed out: double the timeout until the next sample
+     */
+    public synchronized void backoff() {
+        rto = clamp(rto * 2);
+    }
+
+    /**
+     * Current retransmission timeout (ms)
+     *
+     * @return
+     */
+    public synchronized long getTimeout() {
+        return rto;
+    }
+
+    /**
+     * Smoothed round-trip time (ms), 0 before the first sample
+     *
+     * @return
+     */
+    public synchronized double getSmoothedRtt() {
+        return srtt;
+    }
+
+    private long clamp(long timeout) {
+        return Math.min(ceiling, Math.max(floor, timeout));
+    }
+}
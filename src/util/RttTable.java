@@ -0,0 +1,91 @@
+package util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author Henrik Akesson
+ * @author Fabien Salathe
+ *
+ * Round-trip time of each remote node (see RttEstimator), from which the timeouts of the requests sent to it are
+ * derived. Until a node answers, its timeout is the initial one; it then follows the round-trip times measured,
+ * within the floor and the ceiling: on a LAN a lost datagram is detected in milliseconds instead of a fixed second.
+ *
+ * Thread-safe.
+ */
+public class RttTable {
+
+    /**
+     * Number of nodes beyond which the table is cleared, the nodes left long ago are forgotten this way
+     */
+    private static final int MAX_NODES = 1 << 16;
+
+    private final Map<MachineAddress, RttEstimator> nodes = new ConcurrentHashMap<>();
+
+    private final long initial;
+
+    private final long floor;
+
+    private final long ceiling;
+
+    /**
+     * @param initial timeout of a node that never answered (ms)
+     * @param floor minimum timeout (ms)
+     * @param ceiling maximum timeout (ms)
+     */
+    public RttTable(long initial, long floor, long ceiling) {
+        this.initial = initial;
+        this.floor = floor;
+        this.ceiling = ceiling;
+    }
+
+    /**
+     * Time to wait for an answer of the node
+     *
+     * @param node
+     * @return (ms)
+     */
+    public long timeout(MachineAddress node) {
+        RttEstimator rtt = nodes.get(node);
+        return rtt == null ? Math.min(ceiling, Math.max(floor, initial)) : rtt.getTimeout();
+    }
+
+    /**
+     * Measured round-trip time of a request that was sent once (Karn: not a retransmitted one)
+     *
+     * @param node
+     * @param rtt (ms)
+     */
+    public void sample(MachineAddress node, long rtt) {
+        estimator(node).sample(rtt);
+    }
+
+    /**
+     * The node did not answer in time: double its timeout until the next sample
+     *
+     * @param node
+     */
+    public void backoff(MachineAddress node) {
+        estimator(node).backoff();
+    }
+
+    /**
+     * Forget a node that left
+     *
+     * @param node
+     */
+    public void forget(MachineAddress node) {
+        nodes.remove(node);
+    }
+
+    private RttEstimator estimator(MachineAddress node) {
+        RttEstimator rtt = nodes.get(node);
+        if (rtt == null) {
+            if (nodes.size() >= MAX_NODES) {
+                nodes.clear();
+            }
+            rtt = nodes.computeIfAbsent(node, n -> new RttEstimator(initial, floor, ceiling));
+        }
+        return rtt;
+    }
+}
@@ -0,0 +1,143 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * @author Henrik Akesson
+ * @author Fabien Salathe
+ *
+ * Hashed timing wheel: timeouts are put in the slot of their deadline, and each tick only visits one slot.
+ * Scheduling and cancelling are O(1), whatever the number of timeouts, with a precision of one tick.
+ * Deadlines further than one turn of the wheel wait for the required number of rounds.
+ *
+ * Not thread-safe: a wheel is owned by a single thread (typically advanced by an EventLoop timer).
+ */
+public class TimingWheel<T> {
+
+    /**
+     * Item scheduled in the wheel, can be cancelled until it expires
+     */
+    public static final class Timeout<T> {
+        private final T item;
+        private long rounds;
+        private boolean cancelled;
+
+        private Timeout(T item, long rounds) {
+            this.item = item;
+            this.rounds = rounds;
+        }
+
+        public T getItem() {
+            return item;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private final List<List<Timeout<T>>> slots;
+
+    private final long tick;
+
+    /**
+     * Slot visited by the next tick
+     */
+    private int cursor;
+
+    /**
+     * Time of the next tick
+     */
+    private long nextTick;
+
+    private int size;
+
+    /**
+     * @param slots number of slots, one turn of the wheel lasts slots * tick
+     * @param tick duration of a tick (ms)
+     * @param now current time (ms)
+     */
+    public TimingWheel(int slots, long tick, long now) {
+        this.slots = new ArrayList<>(slots);
+        for (int i = 0; i < slots; i++) {
+            this.slots.add(new ArrayList<>());
+        }
+
+        this.tick = tick;
+        this.nextTick = now + tick;
+    }
+
+    public long getTick() {
+        return tick;
+    }
+
+    /**
+     * Number of timeouts in the wheel (cancelled ones included until their slot is visited)
+     *
+     * @return
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Schedule an item to expire after the given delay
+     *
+     * @param item
+     * @param delay (ms), rounded up to the next tick
+     * @return
+     */
+    public Timeout<T> schedule(T item, long delay) {
+        long ticks = Math.max(0, (delay + tick - 1) / tick - 1);
+
+        Timeout<T> timeout = new Timeout<>(item, ticks / slots.size());
+        slots.get((int) ((cursor + ticks) % slots.size())).add(timeout);
+        size++;
+
+        return timeout;
+    }
+
+    /**
+     * Visit the slots whose tick has come, expired items are given to the consumer
+     *
+     * @param now current time (ms)
+     * @param expired
+     */
+    public void advance(long now, Consumer<T> expired) {
+        while (nextTick <= now) {
+            List<Timeout<T>> slot = slots.get(cursor);
+            cursor = (cursor + 1) % slots.size();
+            nextTick += tick;
+
+            // The consumer may schedule again in the visited slot: only visit the timeouts already there
+            int i = 0;
+            int end = slot.size();
+            while (i < end) {
+                Timeout<T> timeout = slot.get(i);
+
+                if (!timeout.cancelled && timeout.rounds > 0) {
+                    timeout.rounds--;
+                    i++;
+                    continue;
+                }
+
+                // Swap remove
+                end--;
+                slot.set(i, slot.get(end));
+                slot.set(end, slot.get(slot.size() - 1));
+                slot.remove(slot.size() - 1);
+                size--;
+
+                if (!timeout.cancelled) {
+                    expired.accept(timeout.item);
+                }
+            }
+        }
+    }
+}
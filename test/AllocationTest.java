@@ -0,0 +1,166 @@
+import messages.Message;
+import messages.MessageType;
+import services.ServiceSum;
+import services.ServiceType;
+import util.MemberList;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * @author Henrik Akesson
+ * @author Fabien Salathe
+ *
+ * Counts the bytes allocated by the receive loops of a linker and of a service in steady state, with the allocation
+ * counters of the JVM (com.sun.management.ThreadMXBean): a REQUEST_SERVICE answered by the linker, and a REQUEST
+ * answered by the service, must not allocate. The REQUEST_SERVICE carries the digest of the linkers and the endpoints
+ * wanted, as the clients send it.
+ *
+ * Launching:
+ *    `java -cp <classes of src and test> AllocationTest [exchanges=<number, default 20000>]`
+ *
+ * Fails (exit code 1) when an exchange allocates more than MAX_BYTES on average (MAX_WORKER_BYTES for the worker of
+ * the service, which sends the response with a DatagramSocket).
+ */
+public class AllocationTest {
+
+    /**
+     * Bytes allowed per exchange on average: the timers of the loops and the JIT may allocate a few objects now and then
+     */
+    private static final double MAX_BYTES = 1;
+
+    /**
+     * Bytes allowed per exchange to the worker of the service, allocated by the JDK: DatagramSocket.send copies the
+     * address of the packet (InetSocketAddress), and the worker waiting for the next request enqueues a node on the
+     * condition of the queue. The second one disappears under load, when the worker does not wait.
+     */
+    private static final double MAX_WORKER_BYTES = 96;
+
+    private static final int LINKER_PORT = 9290;
+
+    private static final int SERVICE_PORT = 9291;
+
+    public static void main(String... args) throws Exception {
+        int exchanges = args.length > 0 ? Integer.parseInt(args[0].replace("exchanges=", "")) : 20000;
+
+        Linker linker = new Linker(LINKER_PORT, new ArrayList<>());
+        Thread linkerThread = start("linker", () -> {
+            linker.listen();
+            return null;
+        });
+
+        ServiceSum service = new ServiceSum(new ArrayList<>(), SERVICE_PORT);
+        Method listen = services.Service.class.getDeclaredMethod("listen");
+        listen.setAccessible(true);
+        Thread serviceThread = start("service", () -> listen.invoke(service));
+
+        try (DatagramSocket client = new DatagramSocket()) {
+            client.setSoTimeout(2000);
+            InetAddress loopback = InetAddress.getLoopbackAddress();
+
+            // A service that is never probed: the linker is not configured with probes nor leases
+            byte[] register = new Message(MessageType.REGISTER_SERVICE, new byte[]{ServiceType.SERVICE_SUM.getType()})
+                    .toByteArray();
+            client.send(new DatagramPacket(register, register.length, loopback, LINKER_PORT));
+            receive(client);
+
+            // A lookup as sent by the clients: [service type | digest of the linkers known | endpoints wanted]
+            byte[] lookupPayload = ByteBuffer.allocate(2 + Integer.BYTES)
+                    .put(ServiceType.SERVICE_SUM.getType())
+                    .putInt(MemberList.digest(new ArrayList<>()))
+                    .put((byte) 1)
+                    .array();
+            byte[] lookup = new Message(MessageType.REQUEST_SERVICE, lookupPayload).toByteArray();
+            double linkerBytes = measure(client, linkerThread, lookup, LINKER_PORT, exchanges);
+
+            byte[] request = new Message(MessageType.REQUEST, new byte[]{3, 4}).toByteArray();
+            Thread worker = find("service-worker");
+            double serviceBytes = measure(client, serviceThread, request, SERVICE_PORT, exchanges);
+            double workerBytes = measure(client, worker, request, SERVICE_PORT, exchanges);
+
+            System.out.println("Linker, REQUEST_SERVICE: " + String.format("%.2f", linkerBytes) + " bytes per exchange");
+            System.out.println("Service, REQUEST received: " + String.format("%.2f", serviceBytes)
+                    + " bytes per exchange");
+            System.out.println("Service, RESPONSE sent by the worker: " + String.format("%.2f", workerBytes)
+                    + " bytes per exchange");
+
+            if (linkerBytes > MAX_BYTES || serviceBytes > MAX_BYTES || workerBytes > MAX_WORKER_BYTES) {
+                System.out.println("FAILED: more than " + MAX_BYTES + " bytes (" + MAX_WORKER_BYTES
+                        + " for the worker) allocated per exchange");
+                System.exit(1);
+            }
+            System.out.println("OK");
+            System.exit(0);
+        }
+    }
+
+    /**
+     * Bytes allocated by a thread per exchange, after the same number of exchanges to warm up
+     *
+     * @param client
+     * @param thread
+     * @param request
+     * @param port
+     * @param exchanges
+     * @return
+     * @throws Exception
+     */
+    private static double measure(DatagramSocket client, Thread thread, byte[] request, int port, int exchanges)
+            throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        DatagramPacket out = new DatagramPacket(request, request.length, InetAddress.getLoopbackAddress(), port);
+
+        exchange(client, out, exchanges);
+        long before = threads.getThreadAllocatedBytes(thread.getId());
+        exchange(client, out, exchanges);
+        long after = threads.getThreadAllocatedBytes(thread.getId());
+
+        return (after - before) / (double) exchanges;
+    }
+
+    private static void exchange(DatagramSocket client, DatagramPacket out, int exchanges) throws Exception {
+        for (int i = 0; i < exchanges; i++) {
+            client.send(out);
+            receive(client);
+        }
+    }
+
+    private static void receive(DatagramSocket client) throws Exception {
+        byte[] buffer = new byte[2048];
+        client.receive(new DatagramPacket(buffer, buffer.length));
+    }
+
+    private interface Body {
+        Object run() throws Exception;
+    }
+
+    private static Thread start(String name, Body body) throws InterruptedException {
+        Thread thread = new Thread(() -> {
+            try {
+                body.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+
+        // Leaves the time to bind and enter the loop
+        Thread.sleep(300);
+        return thread;
+    }
+
+    private static Thread find(String name) {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals(name)) {
+                return thread;
+            }
+        }
+        throw new IllegalStateException("No thread " + name);
+    }
+}
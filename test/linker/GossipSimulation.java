@@ -0,0 +1,210 @@
+package linker;
+
+import services.ServiceType;
+import util.MachineAddress;
+import util.Options;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * @author Henrik Akesson
+ * @author Fabien Salathe
+ *
+ * Measures the dissemination of a registration by the gossip of the linkers, at 10, 50 and 200 linkers.
+ *
+ * The linkers are simulated in rounds, with the Gossip of the linker: in each round (peer.interval, 200 ms by default),
+ * every linker sends a PING with its pending deltas to `fanout` random linkers, which apply them and answer with a
+ * PONG carrying their own. One linker registers a service before the first round. Each datagram is lost with the
+ * probability `loss`.
+ *
+ * Printed per number of linkers, over `trials` registrations: the rounds until every linker knows the service (mean
+ * and worst), the rounds until no linker has the delta pending anymore, the datagrams exchanged meanwhile (PINGs and
+ * PONGs, sent anyway to detect the failures) and the copies of the delta they carried, against the n - 1 datagrams
+ * sent by a broadcast for each change.
+ *
+ * Launching:
+ *    `java -cp <classes of src and test> linker.GossipSimulation [trials=<number, default 50>] [fanout=<number>]
+ *                 [retransmit=<number>] [loss=<probability, default 0>] [seed=<number>]`
+ *
+ * Fails (exit code 1) when a registration does not reach every linker without any loss.
+ */
+public class GossipSimulation {
+
+    private static final int[] SIZES = {10, 50, 200};
+
+    /**
+     * Rounds after which a registration that did not reach every linker is given up
+     */
+    private static final int MAX_ROUNDS = 100;
+
+    private static final long ROUND_MILLIS = 200;
+
+    public static void main(String... args) throws Exception {
+        Options options = Options.parse(args, 0);
+        int trials = options.getInt("trials", 50);
+        int fanout = options.getInt("fanout", 3);
+        int retransmit = options.getInt("retransmit", 3);
+        double loss = options.getDouble("loss", 0);
+        Random random = new Random(options.getLong("seed", 42));
+
+        System.out.println(String.format("fanout %d, retransmit %d, loss %.0f %%, %d registrations per size",
+                fanout, retransmit, loss * 100, trials));
+        System.out.println(String.format("%8s %12s %12s %12s %12s %12s %12s", "linkers", "rounds", "worst",
+                "quiet after", "datagrams", "copies", "broadcast"));
+
+        boolean failed = false;
+        for (int n : SIZES) {
+            long rounds = 0;
+            int worst = 0;
+            long quiet = 0;
+            long datagrams = 0;
+            long carrying = 0;
+            int lost = 0;
+
+            for (int t = 0; t < trials; t++) {
+                Result result = disseminate(n, fanout, retransmit, loss, random);
+                if (result.rounds < 0) {
+                    lost++;
+                    continue;
+                }
+                rounds += result.rounds;
+                worst = Math.max(worst, result.rounds);
+                quiet += result.quiet;
+                datagrams += result.datagrams;
+                carrying += result.carrying;
+            }
+
+            int reached = Math.max(1, trials - lost);
+            System.out.println(String.format("%8d %12.1f %12d %12.1f %12.0f %12.0f %12d", n,
+                    rounds / (double) reached, worst, quiet / (double) reached, datagrams / (double) reached,
+                    carrying / (double) reached, n - 1)
+                    + (lost > 0 ? "  (" + lost + " registrations did not reach every linker)" : ""));
+
+            failed |= lost > 0 && loss == 0;
+        }
+        System.out.println("1 round = " + ROUND_MILLIS + " ms with the default peer.interval");
+
+        if (failed) {
+            System.out.println("FAILED: a registration did not reach every linker");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Rounds, and datagrams sent, to disseminate one registration
+     */
+    private static final class Result {
+        /**
+         * Rounds until every linker knew the registration, -1 if it never reached some of them
+         */
+        private int rounds = -1;
+
+        /**
+         * Rounds until no linker had anything left to gossip
+         */
+        private int quiet;
+
+        private long datagrams;
+
+        private long carrying;
+    }
+
+    private static Result disseminate(int n, int fanout, int retransmit, double loss, Random random)
+            throws Exception {
+        long[] time = {1_700_000_000_000L};
+        Gossip[] linkers = new Gossip[n];
+        for (int i = 0; i < n; i++) {
+            linkers[i] = new Gossip(retransmit, new HybridClock(() -> time[0]));
+        }
+
+        MachineAddress service = new MachineAddress("127.0.0.1", 7000);
+        boolean[] known = new boolean[n];
+        int knowing = 1;
+        known[0] = true;
+        linkers[0].added(ServiceType.SERVICE_SUM, service, 1, 10000);
+
+        Result result = new Result();
+        int pings = Math.min(fanout, n - 1);
+        ByteBuffer[] sent = new ByteBuffer[n * pings];
+        int[] targets = new int[n * pings];
+        for (int i = 0; i < sent.length; i++) {
+            sent[i] = ByteBuffer.allocate(2048);
+        }
+        ByteBuffer pong = ByteBuffer.allocate(2048);
+
+        for (int round = 1; round <= MAX_ROUNDS; round++) {
+            time[0] += ROUND_MILLIS;
+
+            // The PINGs of a round are sent at once: a delta learned during the round waits for the next one
+            for (int from = 0; from < n; from++) {
+                for (int k = 0; k < pings; k++) {
+                    int to = random.nextInt(n - 1);
+                    targets[from * pings + k] = to >= from ? to + 1 : to;
+
+                    ByteBuffer ping = sent[from * pings + k];
+                    ping.clear();
+                    linkers[from].writeTo(ping, n);
+                    ping.flip();
+                }
+            }
+
+            // Each PING is answered by a PONG with the pending deltas of the linker pinged
+            for (int i = 0; i < sent.length; i++) {
+                int from = i / pings;
+                int to = targets[i];
+
+                if (deliver(sent[i], linkers[to], loss, random, result) && !known[to]) {
+                    known[to] = true;
+                    knowing++;
+                }
+
+                pong.clear();
+                linkers[to].writeTo(pong, n);
+                pong.flip();
+                if (deliver(pong, linkers[from], loss, random, result) && !known[from]) {
+                    known[from] = true;
+                    knowing++;
+                }
+            }
+
+            if (knowing == n && result.rounds < 0) {
+                result.rounds = round;
+            }
+
+            boolean pending = false;
+            for (Gossip linker : linkers) {
+                pending |= linker.pendingSize() > 0;
+            }
+            if (!pending) {
+                result.quiet = round;
+                break;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Count a datagram, and apply its deltas unless it is lost
+     *
+     * @param datagram
+     * @param receiver
+     * @param loss
+     * @param random
+     * @param result
+     * @return whether the receiver learned a delta
+     * @throws Exception
+     */
+    private static boolean deliver(ByteBuffer datagram, Gossip receiver, double loss, Random random, Result result)
+            throws Exception {
+        result.datagrams++;
+        if (datagram.getShort(0) > 0) {
+            result.carrying++;
+        }
+        if (random.nextDouble() < loss) {
+            return false;
+        }
+        return !receiver.readFrom(datagram).isEmpty();
+    }
+}
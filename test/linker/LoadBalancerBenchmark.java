@@ -0,0 +1,165 @@
+package linker;
+
+import messages.LoadReport;
+import services.ServiceType;
+import util.MachineAddress;
+import util.Options;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * @author Henrik Akesson
+ * @author Fabien Salathe
+ *
+ * Compares the tail latency of the load balancers when the services do not run at the same speed.
+ *
+ * Simulated in virtual time, with the registry and the strategies of the linker: requests arrive as a Poisson process,
+ * each one goes to the endpoint selected by ServiceRegistry.select, and each service answers its requests in order
+ * (one at a time, exponential service times). The services report their load (queue depth, requests in flight,
+ * average latency) every `report` ms, like their heartbeats; between two reports the linker only counts the requests
+ * it assigned.
+ *
+ * Services: 2 fast (1 ms, weight 16), 5 medium (4 ms, weight 4), 3 slow (16 ms, weight 1).
+ *
+ * Launching:
+ *    `java -cp <classes of src and test> linker.LoadBalancerBenchmark [requests=<number, default 200000>]
+ *                 [load=<fraction of the total capacity, default 0.7>] [report=<ms, default 1000>] [seed=<number>]`
+ */
+public class LoadBalancerBenchmark {
+
+    private static final String[] STRATEGIES = {"random", "round-robin", "weighted", "p2c", "least-outstanding"};
+
+    /**
+     * Mean service time of each service (ms)
+     */
+    private static final double[] SPEEDS = {1, 1, 4, 4, 4, 4, 4, 16, 16, 16};
+
+    private static final int[] WEIGHTS = {16, 16, 4, 4, 4, 4, 4, 1, 1, 1};
+
+    public static void main(String... args) {
+        Options options = Options.parse(args, 0);
+        int requests = options.getInt("requests", 200000);
+        double load = options.getDouble("load", 0.7);
+        double report = options.getDouble("report", 1000);
+        long seed = options.getLong("seed", 42);
+
+        double capacity = 0;
+        for (double speed : SPEEDS) {
+            capacity += 1 / speed;
+        }
+        double rate = load * capacity;
+
+        System.out.println(String.format("%d services, %d requests at %.0f %% of the capacity (%.0f requests/s), "
+                + "load reported every %.0f ms", SPEEDS.length, requests, load * 100, rate * 1000, report));
+        System.out.println(String.format("%-18s %10s %10s %10s %10s", "strategy", "p50 (ms)", "p99", "p99.9", "max"));
+
+        for (String strategy : STRATEGIES) {
+            double[] latencies = run(LoadBalancer.forName(strategy), requests, rate, report, new Random(seed));
+            Arrays.sort(latencies);
+            System.out.println(String.format("%-18s %10.1f %10.1f %10.1f %10.1f", strategy,
+                    percentile(latencies, 0.5), percentile(latencies, 0.99), percentile(latencies, 0.999),
+                    latencies[latencies.length - 1]));
+        }
+    }
+
+    /**
+     * Simulate the requests with one strategy
+     *
+     * @param balancer
+     * @param requests
+     * @param rate requests per ms
+     * @param report interval between two load reports of a service (ms)
+     * @param random
+     * @return time to answer each request (ms)
+     */
+    private static double[] run(LoadBalancer balancer, int requests, double rate, double report, Random random) {
+        ServiceRegistry registry = new ServiceRegistry();
+        registry.setBalancer(ServiceType.SERVICE_SUM, balancer);
+
+        int count = SPEEDS.length;
+        Endpoint[] endpoints = new Endpoint[count];
+        SimulatedService[] services = new SimulatedService[count];
+        for (int i = 0; i < count; i++) {
+            MachineAddress address = new MachineAddress("127.0.0.1", 7000 + i);
+            registry.add(ServiceType.SERVICE_SUM, address, WEIGHTS[i]);
+            endpoints[i] = registry.get(address);
+            services[i] = new SimulatedService(SPEEDS[i]);
+        }
+
+        // The reports of the services are spread over the interval
+        double[] nextReport = new double[count];
+        for (int i = 0; i < count; i++) {
+            nextReport[i] = report * i / count;
+        }
+
+        double[] latencies = new double[requests];
+        double now = 0;
+        for (int n = 0; n < requests; n++) {
+            now += -Math.log(1 - random.nextDouble()) / rate;
+
+            for (int i = 0; i < count; i++) {
+                while (nextReport[i] <= now) {
+                    services[i].report(endpoints[i], nextReport[i]);
+                    nextReport[i] += report;
+                }
+            }
+
+            Endpoint selected = registry.select(ServiceType.SERVICE_SUM);
+            int index = selected.getAddress().getPort() - 7000;
+            latencies[n] = services[index].submit(now, random) - now;
+        }
+        return latencies;
+    }
+
+    private static double percentile(double[] sorted, double fraction) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))];
+    }
+
+    /**
+     * Service answering its requests in order, one at a time
+     */
+    private static final class SimulatedService {
+        private final double speed;
+
+        /**
+         * Time each request in flight is answered, in order
+         */
+        private final ArrayDeque<Double> answers = new ArrayDeque<>();
+
+        private double lastAnswer;
+
+        /**
+         * Moving average of the service times (ms), as reported by ServiceLoad
+         */
+        private double latency;
+
+        private SimulatedService(double speed) {
+            this.speed = speed;
+            this.latency = speed;
+        }
+
+        /**
+         * @param now
+         * @param random
+         * @return time the request is answered
+         */
+        private double submit(double now, Random random) {
+            double duration = -Math.log(1 - random.nextDouble()) * speed;
+            latency = 0.9 * latency + 0.1 * duration;
+
+            lastAnswer = Math.max(now, lastAnswer) + duration;
+            answers.add(lastAnswer);
+            return lastAnswer;
+        }
+
+        private void report(Endpoint endpoint, double now) {
+            while (!answers.isEmpty() && answers.peek() <= now) {
+                answers.poll();
+            }
+            int inFlight = answers.size();
+            endpoint.report(new LoadReport(Math.max(0, inFlight - 1), inFlight, (int) (latency * 1000)), (long) now);
+        }
+    }
+}
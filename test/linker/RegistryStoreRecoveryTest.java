@@ -0,0 +1,316 @@
+package linker;
+
+import services.ServiceType;
+import util.MachineAddress;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * @author Henrik Akesson
+ * @author Fabien Salathe
+ *
+ * Crash recovery of the RegistryStore: the log is cut at every byte of its last record, as a crash in the middle of a
+ * write would leave it, and recovered each time.
+ *
+ * Checked:
+ * - a torn record is dropped and the log truncated before it, the records before it are all recovered (with their
+ *   lease), and the log takes new records after the truncation;
+ * - a record whose bytes were corrupted is dropped the same way;
+ * - a crash between the rename of a snapshot and the truncation of the log does not replay the log twice;
+ * - the versions of the registrations and removals are recovered, from the log and from a snapshot;
+ * - the time to recover a registry of `services` services.
+ *
+ * Launching:
+ *    `java -cp <classes of src and test> linker.RegistryStoreRecoveryTest [services=<number, default 10000>]`
+ *
+ * Fails (exit code 1) at the first check that does not hold.
+ */
+public class RegistryStoreRecoveryTest {
+
+    private static final int LEASE = 10000;
+
+    public static void main(String... args) throws Exception {
+        int services = args.length > 0 ? Integer.parseInt(args[0].replace("services=", "")) : 10000;
+        Path directory = Files.createTempDirectory("registry-store");
+
+        try {
+            tornRecords(directory.resolve("torn"));
+            corruptedRecord(directory.resolve("corrupted"));
+            snapshotThenCrash(directory.resolve("snapshot"));
+            versions(directory.resolve("versions"));
+            recoveryTime(directory.resolve("time"), services);
+            System.out.println("OK");
+        } catch (AssertionError e) {
+            System.out.println("FAILED: " + e.getMessage());
+            System.exit(1);
+        } finally {
+            delete(directory);
+        }
+    }
+
+    /**
+     * Cut the log at every byte of its last record
+     */
+    private static void tornRecords(Path directory) throws IOException {
+        ServiceRegistry registry = new ServiceRegistry();
+        RegistryStore store = open(directory, registry);
+        for (int i = 0; i < 100; i++) {
+            register(registry, i, i % 2 == 0 ? LEASE : 0);
+        }
+        registry.remove(address(0));
+        store.flush(0);
+        Map<MachineAddress, Integer> before = contents(registry);
+        long start = Files.size(directory.resolve("registry.log"));
+
+        register(registry, 1000, LEASE);
+        store.flush(0);
+        Map<MachineAddress, Integer> after = contents(registry);
+        long end = Files.size(directory.resolve("registry.log"));
+        store.close();
+
+        Path crashed = directory.resolveSibling(directory.getFileName() + "-crashed");
+        for (long cut = start; cut <= end; cut++) {
+            copy(directory, crashed);
+            truncate(crashed.resolve("registry.log"), cut);
+
+            ServiceRegistry recovered = new ServiceRegistry();
+            RegistryStore again = open(crashed, recovered);
+            check(contents(recovered).equals(cut == end ? after : before), "log cut at " + cut + " of " + end
+                    + ": " + contents(recovered).size() + " services recovered");
+            check(Files.size(crashed.resolve("registry.log")) == (cut == end ? end : start),
+                    "log cut at " + cut + " not truncated before the torn record");
+
+            // The log goes on after the truncation
+            register(recovered, 2000, 0);
+            again.flush(0);
+            again.close();
+
+            ServiceRegistry reopened = new ServiceRegistry();
+            open(crashed, reopened).close();
+            check(reopened.get(address(2000)) != null, "record appended after the truncation at " + cut + " lost");
+        }
+        delete(crashed);
+
+        System.out.println("Log cut at each of the " + (end - start) + " bytes of its last record: recovered");
+    }
+
+    /**
+     * Flip a byte of the last record
+     */
+    private static void corruptedRecord(Path directory) throws IOException {
+        ServiceRegistry registry = new ServiceRegistry();
+        RegistryStore store = open(directory, registry);
+        register(registry, 1, LEASE);
+        store.flush(0);
+        Map<MachineAddress, Integer> before = contents(registry);
+        long start = Files.size(directory.resolve("registry.log"));
+
+        register(registry, 2, LEASE);
+        store.flush(0);
+        store.close();
+
+        Path log = directory.resolve("registry.log");
+        byte[] bytes = Files.readAllBytes(log);
+        bytes[(int) (start + (bytes.length - start) / 2)] ^= 0x5A;
+        Files.write(log, bytes);
+
+        ServiceRegistry recovered = new ServiceRegistry();
+        open(directory, recovered).close();
+        check(contents(recovered).equals(before), "corrupted record replayed");
+        check(Files.size(log) == start, "log not truncated before the corrupted record");
+
+        System.out.println("Corrupted record: dropped");
+    }
+
+    /**
+     * Crash after the snapshot was renamed, before the log was truncated: the records of the log are also in the
+     * snapshot
+     */
+    private static void snapshotThenCrash(Path directory) throws IOException {
+        ServiceRegistry registry = new ServiceRegistry();
+        RegistryStore store = open(directory, registry);
+        for (int i = 0; i < 10; i++) {
+            register(registry, i, LEASE);
+        }
+        registry.remove(address(3));
+        store.flush(0);
+
+        Path log = directory.resolve("registry.log");
+        byte[] beforeCompaction = Files.readAllBytes(log);
+        store.compact();
+        store.close();
+        Files.write(log, beforeCompaction);
+
+        ServiceRegistry recovered = new ServiceRegistry();
+        RegistryStore again = open(directory, recovered);
+        check(contents(recovered).equals(contents(registry)), "snapshot and log not recovered once");
+
+        // The sequence goes on after the records skipped: the next record is replayed
+        register(recovered, 42, LEASE);
+        again.flush(0);
+        again.close();
+
+        ServiceRegistry reopened = new ServiceRegistry();
+        open(directory, reopened).close();
+        check(reopened.get(address(42)) != null, "record appended after the skipped records lost");
+
+        System.out.println("Crash between the snapshot and the truncation of the log: recovered once");
+    }
+
+    /**
+     * The versions of a registration and of a removal are replayed, from the log then from a snapshot
+     */
+    private static void versions(Path directory) throws IOException {
+        HybridClock clock = new HybridClock();
+        Tombstones tombstones = new Tombstones(clock, Gossip.TOMBSTONE_TTL);
+        ServiceRegistry registry = new ServiceRegistry();
+        RegistryStore store = new RegistryStore(directory, registry, tombstones, RegistryStore.Fsync.NEVER);
+        store.recover(change -> { });
+
+        register(registry, 1, LEASE);
+        long registered = clock.next();
+        registry.get(address(1)).updateVersion(registered);
+        register(registry, 2, LEASE);
+        long removed = clock.next();
+        tombstones.add(ServiceType.values()[2 % ServiceType.values().length], address(2), removed);
+        registry.remove(address(2));
+        store.flush(0);
+        store.close();
+
+        for (String from : new String[]{"log", "snapshot"}) {
+            Map<MachineAddress, Long> versions = new HashMap<>();
+            Map<MachineAddress, Long> removals = new HashMap<>();
+            ServiceRegistry recovered = new ServiceRegistry();
+            RegistryStore again = new RegistryStore(directory, recovered,
+                    new Tombstones(new HybridClock(), Gossip.TOMBSTONE_TTL), RegistryStore.Fsync.NEVER);
+            again.recover(change -> (change.isRemoval() ? removals : versions).put(change.getAddress(),
+                    change.getServiceVersion()));
+
+            check(Long.valueOf(registered).equals(versions.get(address(1))), "version of the registration lost ("
+                    + from + ")");
+            check(Long.valueOf(removed).equals(removals.get(address(2))), "version of the removal lost (" + from
+                    + ")");
+            again.close();
+
+            // Compacted with the registry and the tombstones of the first store
+            RegistryStore compacted = new RegistryStore(directory, registry, tombstones, RegistryStore.Fsync.NEVER);
+            compacted.recover(change -> { });
+            compacted.compact();
+            compacted.close();
+        }
+
+        System.out.println("Versions of the registrations and removals: recovered");
+    }
+
+    /**
+     * Time to recover a snapshot and a log of the given number of services
+     */
+    private static void recoveryTime(Path directory, int services) throws IOException {
+        ServiceRegistry registry = new ServiceRegistry();
+        RegistryStore store = open(directory, registry);
+        for (int i = 0; i < services / 2; i++) {
+            register(registry, i, LEASE);
+        }
+        store.flush(0);
+        store.compact();
+        for (int i = services / 2; i < services; i++) {
+            register(registry, i, LEASE);
+        }
+        store.flush(0);
+        store.close();
+
+        for (int run = 0; run < 5; run++) {
+            ServiceRegistry recovered = new ServiceRegistry();
+            long start = System.nanoTime();
+            RegistryStore again = open(directory, recovered);
+            long micros = (System.nanoTime() - start) / 1000;
+            again.close();
+
+            check(contents(recovered).equals(contents(registry)), "services lost at recovery");
+            if (run == 4) {
+                System.out.println("Recovery of " + services + " services (snapshot and log): " + micros + " us");
+            }
+        }
+    }
+
+    /**
+     * Open a store and replay it into the registry, like the linker does
+     */
+    private static RegistryStore open(Path directory, ServiceRegistry registry) throws IOException {
+        RegistryStore store = new RegistryStore(directory, registry, RegistryStore.Fsync.NEVER);
+        store.recover(change -> {
+            if (change.isRemoval()) {
+                registry.remove(change.getAddress());
+            } else {
+                registry.add(change.getType(), change.getAddress(), change.getWeight());
+                registry.get(change.getAddress()).renewLease(change.getLease(), 0);
+            }
+        });
+        return store;
+    }
+
+    private static void register(ServiceRegistry registry, int service, int lease) {
+        registry.add(ServiceType.values()[service % ServiceType.values().length], address(service), 1 + service % 3);
+        registry.get(address(service)).renewLease(lease, 0);
+    }
+
+    private static MachineAddress address(int service) {
+        return new MachineAddress("127.0.0.1", 10000 + service);
+    }
+
+    /**
+     * Services of a registry, with their type, weight and lease
+     */
+    private static Map<MachineAddress, Integer> contents(ServiceRegistry registry) {
+        Map<MachineAddress, Integer> contents = new HashMap<>();
+        registry.forEach((type, endpoints) -> {
+            for (Endpoint endpoint : endpoints) {
+                contents.put(endpoint.getAddress(),
+                        (type.ordinal() * 256 + endpoint.getWeight()) * 100000 + endpoint.getLeaseMillis());
+            }
+        });
+        return contents;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    private static void truncate(Path file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(size);
+        }
+    }
+
+    private static void copy(Path from, Path to) throws IOException {
+        delete(to);
+        Files.createDirectories(to);
+        try (Stream<Path> files = Files.list(from)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.copy(file, to.resolve(file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    private static void delete(Path directory) throws IOException {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package services;
+
+import messages.Message;
+import messages.MessageType;
+import util.MachineAddress;
+import util.MemberList;
+import util.Options;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * @author Henrik Akesson
+ * @author Fabien Salathe
+ *
+ * All the linkers restart under 1000 services: measures the packet rate the services send to the linkers while they
+ * are down and when they come back, and the time until every service is registered again.
+ *
+ * The services are real services (ServiceSum) in the same JVM, with their retries (see RetryScheduler). The linkers
+ * are simulated: they count the datagrams, and the registrations, they receive per 100 ms, and while they are up,
+ * they acknowledge the registrations (with a lease and the linkers) and the heartbeats, like the linkers do.
+ *
+ * Scenarios:
+ * - "restart": the services are registered, then all the linkers are down for `outage` ms. The services find their
+ *   heartbeats unacknowledged and register with the other linkers, with backoff.
+ * - "cold": the services start while all the linkers are down, and register (handshake) with backoff.
+ *
+ * Launching (one scenario per JVM, the services never stop):
+ *    `java -cp <classes of src and test> services.LinkerRestartTest [scenario=restart|cold] [services=<number>]
+ *                 [outage=<ms, default 10000>]`
+ *
+ * Fails (exit code 1) when some services are not registered again 60 s after the linkers are back.
+ */
+public class LinkerRestartTest {
+
+    private static final int[] LINKER_PORTS = {9390, 9391};
+
+    private static final int FIRST_SERVICE_PORT = 20000;
+
+    private static final int LEASE = 10000;
+
+    private static final int HEARTBEAT = 1000;
+
+    private static final int BUCKET_MILLIS = 100;
+
+    private static final int BUCKETS = 1200;
+
+    private static final long REGISTRATION_TIMEOUT = 60000;
+
+    public static void main(String... args) throws Exception {
+        Options options = Options.parse(args, 0);
+        String scenario = options.getString("scenario", "restart");
+        int count = options.getInt("services", 1000);
+        long outage = options.getLong("outage", 10000);
+
+        List<MachineAddress> addresses = new ArrayList<>();
+        List<FakeLinker> linkers = new ArrayList<>();
+        for (int port : LINKER_PORTS) {
+            addresses.add(new MachineAddress("127.0.0.1", port));
+        }
+        for (int port : LINKER_PORTS) {
+            linkers.add(new FakeLinker(port, addresses));
+        }
+
+        boolean cold = scenario.equals("cold");
+        setUp(linkers, !cold);
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            ServiceSum service = new ServiceSum(new ArrayList<>(addresses), FIRST_SERVICE_PORT + i);
+            service.setHeartbeatInterval(HEARTBEAT);
+            service.setLease(LEASE);
+            service.setRetryAttempts(0);
+
+            Thread thread = new Thread(() -> {
+                try {
+                    if (service.handshake()) {
+                        service.listen();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }, "service-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        if (!cold) {
+            if (!awaitRegistered(linkers, count, start + REGISTRATION_TIMEOUT)) {
+                fail(linkers, count, "the services did not register before the restart");
+            }
+            // Let the heartbeats settle, then all the linkers go down
+            Thread.sleep(3 * HEARTBEAT);
+            setUp(linkers, false);
+        }
+
+        long down = System.currentTimeMillis();
+        for (FakeLinker linker : linkers) {
+            linker.reset(down);
+        }
+        Thread.sleep(outage);
+
+        long up = System.currentTimeMillis();
+        setUp(linkers, true);
+        boolean registered = awaitRegistered(linkers, count, up + REGISTRATION_TIMEOUT);
+        long all = System.currentTimeMillis() - up;
+        Thread.sleep(2000);
+
+        int[] received = new int[BUCKETS];
+        int[] registrations = new int[BUCKETS];
+        for (FakeLinker linker : linkers) {
+            for (int i = 0; i < BUCKETS; i++) {
+                received[i] += linker.received.get(i);
+                registrations[i] += linker.registrations.get(i);
+            }
+        }
+        int outageBuckets = (int) (outage / BUCKET_MILLIS);
+        int end = Math.min(BUCKETS, outageBuckets + (int) ((all + 2000) / BUCKET_MILLIS));
+
+        System.out.println(scenario + ": " + count + " services, linkers down for " + outage + " ms");
+        System.out.println("  datagrams while the linkers were down: " + sum(received, 0, outageBuckets)
+                + ", peak " + peak(received, 0, outageBuckets) + "/s, last second "
+                + sum(received, outageBuckets - 1000 / BUCKET_MILLIS, outageBuckets) + "/s");
+        System.out.println("  peak after the linkers came back: " + peak(received, outageBuckets, end)
+                + "/s, of which registrations " + peak(registrations, outageBuckets, end) + "/s");
+        System.out.println("  every service registered again " + all + " ms after the linkers came back"
+                + (registered ? "" : " (timed out)"));
+        System.out.println("  steady state: " + count * 1000 / HEARTBEAT + " heartbeats/s");
+
+        if (!registered) {
+            fail(linkers, count, "some services were not registered again");
+        }
+        System.out.println("OK");
+        System.exit(0);
+    }
+
+    private static void setUp(List<FakeLinker> linkers, boolean up) {
+        for (FakeLinker linker : linkers) {
+            linker.up = up;
+        }
+    }
+
+    private static boolean awaitRegistered(List<FakeLinker> linkers, int count, long deadline)
+            throws InterruptedException {
+        while (System.currentTimeMillis() < deadline) {
+            if (registered(linkers) >= count) {
+                return true;
+            }
+            Thread.sleep(50);
+        }
+        return false;
+    }
+
+    private static int registered(List<FakeLinker> linkers) {
+        Set<MachineAddress> services = ConcurrentHashMap.newKeySet();
+        for (FakeLinker linker : linkers) {
+            services.addAll(linker.registered);
+        }
+        return services.size();
+    }
+
+    private static void fail(List<FakeLinker> linkers, int count, String message) {
+        System.out.println("FAILED: " + message + " (" + registered(linkers) + " of " + count + ")");
+        System.exit(1);
+    }
+
+    private static int sum(int[] buckets, int from, int to) {
+        int sum = 0;
+        for (int i = Math.max(0, from); i < to; i++) {
+            sum += buckets[i];
+        }
+        return sum;
+    }
+
+    /**
+     * Highest number of datagrams received within one second
+     */
+    private static int peak(int[] buckets, int from, int to) {
+        int peak = 0;
+        int perSecond = 1000 / BUCKET_MILLIS;
+        for (int i = from; i < to; i++) {
+            peak = Math.max(peak, sum(buckets, i, Math.min(to, i + perSecond)));
+        }
+        return peak;
+    }
+
+    /**
+     * Linker that counts the datagrams it receives, and acknowledges the registrations and heartbeats while it is up
+     */
+    private static final class FakeLinker {
+        private final DatagramSocket socket;
+
+        private final byte[] ack;
+
+        private final byte[] heartbeatAck;
+
+        private final AtomicIntegerArray received = new AtomicIntegerArray(BUCKETS);
+
+        private final AtomicIntegerArray registrations = new AtomicIntegerArray(BUCKETS);
+
+        /**
+         * Services registered since the last reset
+         */
+        private final Set<MachineAddress> registered = ConcurrentHashMap.newKeySet();
+
+        private volatile boolean up;
+
+        private volatile long start = System.currentTimeMillis();
+
+        private FakeLinker(int port, List<MachineAddress> linkers) throws Exception {
+            socket = new DatagramSocket(port);
+
+            // [lease granted | linkers]
+            ByteBuffer payload = ByteBuffer.allocate(1024);
+            payload.putInt(LEASE);
+            MemberList.write(payload, linkers);
+            ack = new Message(MessageType.ACK, Arrays.copyOf(payload.array(), payload.position())).toByteArray();
+            heartbeatAck = new Message(MessageType.ACK, null).toByteArray();
+
+            Thread thread = new Thread(this::run, "linker-" + port);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void reset(long now) {
+            start = now;
+            registered.clear();
+            for (int i = 0; i < BUCKETS; i++) {
+                received.set(i, 0);
+                registrations.set(i, 0);
+            }
+        }
+
+        private void run() {
+            byte[] buffer = new byte[2048];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+
+            while (true) {
+                try {
+                    packet.setData(buffer);
+                    socket.receive(packet);
+
+                    long elapsed = System.currentTimeMillis() - start;
+                    int bucket = (int) Math.max(0, Math.min(BUCKETS - 1, elapsed / BUCKET_MILLIS));
+                    received.incrementAndGet(bucket);
+                    if (!up) {
+                        continue;
+                    }
+
+                    Message message = Message.fromByteArray(Arrays.copyOf(buffer, packet.getLength()));
+                    if (message.getMessageType() == MessageType.REGISTER_SERVICE) {
+                        registrations.incrementAndGet(bucket);
+                        registered.add(new MachineAddress(packet.getAddress().getHostAddress(), packet.getPort()));
+                        socket.send(new DatagramPacket(ack, ack.length, packet.getSocketAddress()));
+                    } else if (message.getMessageType() == MessageType.HEARTBEAT) {
+                        socket.send(new DatagramPacket(heartbeatAck, heartbeatAck.length, packet.getSocketAddress()));
+                    }
+                } catch (SocketException e) {
+                    return;
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}